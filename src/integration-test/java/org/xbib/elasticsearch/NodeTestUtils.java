@@ -122,6 +122,7 @@ public class NodeTestUtils {
                 .put("threadpool.bulk.size", Runtime.getRuntime().availableProcessors())
                 .put("threadpool.bulk.queue_size", 16 * Runtime.getRuntime().availableProcessors()) // default is 50, too low
                 .put("index.number_of_replicas", 0)
+                .put("action.ingest.pipeline_size", 100) // replicate shard batches in sub-batches
                 .put("path.home", getHome())
                 .build();
     }
@@ -138,6 +139,10 @@ public class NodeTestUtils {
         return clients.get(id);
     }
 
+    public Node node(String id) {
+        return nodes.get(id);
+    }
+
     private void closeNodes() throws IOException {
         logger.info("closing all clients");
         for (AbstractClient client : clients.values()) {
@@ -1,16 +1,57 @@
 package org.xbib.elasticsearch.helper;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.index.IndexAction;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.junit.Test;
 import org.xbib.elasticsearch.action.ingest.IngestAction;
+import org.xbib.elasticsearch.action.ingest.IngestRequest;
 import org.xbib.elasticsearch.action.ingest.IngestRequestBuilder;
+import org.xbib.elasticsearch.action.ingest.IngestResponse;
+import org.xbib.elasticsearch.action.ingest.IngestStreamReader;
+import org.xbib.elasticsearch.action.ingest.leader.IngestLeaderShardRequest;
+import org.xbib.elasticsearch.helper.client.ByteBudget;
+import org.xbib.elasticsearch.helper.client.IngestProcessor;
+import org.xbib.elasticsearch.rest.action.ingest.IngestStatusTable;
 import org.xbib.elasticsearch.NodeTestUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class IngestRequestTest extends NodeTestUtils {
 
     @Test(expected = ActionRequestValidationException.class)
@@ -47,4 +88,546 @@ public class IngestRequestTest extends NodeTestUtils {
         client.execute(IngestAction.INSTANCE, builder.request()).actionGet();
     }
 
+    @Test
+    public void testIngestTake() {
+        IngestRequest request = new IngestRequest();
+        for (int i = 0; i < 1000; i++) {
+            request.add(Requests.indexRequest("test").type("test").id(Integer.toString(i)).source("{\"a\":1}"));
+        }
+        request.add(new DeleteRequest("test", "test", "0"));
+        assertEquals(1001, request.numberOfActions());
+        assertEquals(1000L * (7 + 50) + 50L, request.estimatedSizeInBytes());
+        IngestRequest taken = request.take(300);
+        assertEquals(300, taken.numberOfActions());
+        assertEquals(300L * (7 + 50), taken.estimatedSizeInBytes());
+        assertEquals(701, request.numberOfActions());
+        assertEquals("300", ((IndexRequest) request.subRequests().get(0)).id());
+        taken.add(request.takeAll());
+        assertEquals(0, request.numberOfActions());
+        assertEquals(0L, request.estimatedSizeInBytes());
+        assertEquals(1001, taken.numberOfActions());
+        assertEquals(1000L * (7 + 50) + 50L, taken.estimatedSizeInBytes());
+        assertEquals("999", ((IndexRequest) taken.subRequests().get(999)).id());
+    }
+
+    @Test
+    public void testIngestItemListenerPositions() {
+        IngestRequest request = new IngestRequest();
+        List<PlainActionFuture<BulkItemResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            IndexRequest indexRequest = Requests.indexRequest("test").type("test").id(Integer.toString(i)).source("{\"a\":1}");
+            if (i % 3 == 0) {
+                PlainActionFuture<BulkItemResponse> future = PlainActionFuture.newFuture();
+                futures.add(future);
+                request.add(indexRequest, future);
+            } else {
+                request.add(indexRequest);
+            }
+        }
+        // the listeners move with their actions, across the chunks of the buffer
+        IngestRequest taken = request.take(300);
+        List<ActionListener<BulkItemResponse>> listeners = taken.itemListeners();
+        assertEquals(300, listeners.size());
+        assertTrue(listeners.get(0) == futures.get(0));
+        assertNull(listeners.get(1));
+        assertTrue(listeners.get(297) == futures.get(99));
+        listeners = request.itemListeners();
+        assertEquals(300, listeners.size());
+        assertTrue(listeners.get(0) == futures.get(100));
+        assertNull(listeners.get(299));
+        Map<String, IngestRequest> partitions = request.partition(new IngestRequest.Partitioner() {
+            @Override
+            public String partition(ActionRequest<?> actionRequest) {
+                return Integer.parseInt(((IndexRequest) actionRequest).id()) % 3 == 0 ? "listened" : "other";
+            }
+        });
+        assertEquals(100, partitions.get("listened").itemListeners().size());
+        assertTrue(partitions.get("listened").itemListeners().get(99) == futures.get(199));
+        assertNull(partitions.get("other").itemListeners());
+        assertNull(new IngestRequest().add(Requests.indexRequest("test").type("test").id("1").source("{}")).itemListeners());
+    }
+
+    @Test
+    public void testIngestPartition() {
+        IngestRequest request = new IngestRequest().timeout(TimeValue.timeValueSeconds(5));
+        for (int i = 0; i < 10; i++) {
+            request.add(Requests.indexRequest("test").type("test").id(Integer.toString(i)).source("{\"a\":1}"));
+        }
+        Map<String, IngestRequest> partitions = request.partition(new IngestRequest.Partitioner() {
+            @Override
+            public String partition(ActionRequest<?> actionRequest) {
+                return Integer.parseInt(((IndexRequest) actionRequest).id()) % 2 == 0 ? "even" : "odd";
+            }
+        });
+        assertEquals(2, partitions.size());
+        assertEquals("even", partitions.keySet().iterator().next());
+        IngestRequest odd = partitions.get("odd");
+        assertEquals(5, odd.numberOfActions());
+        assertEquals(5L * (7 + 50), odd.estimatedSizeInBytes());
+        assertEquals("1", ((IndexRequest) odd.subRequests().get(0)).id());
+        assertEquals("9", ((IndexRequest) odd.subRequests().get(4)).id());
+        assertEquals(TimeValue.timeValueSeconds(5), odd.timeout());
+        assertEquals(10, request.numberOfActions());
+    }
+
+    @Test
+    public void testIngestParse() throws Exception {
+        String data = "{\"index\":{\"_index\":\"test\",\"_type\":\"test\",\"_id\":\"1\"}}\n" +
+                "{\"a\":1}\n" +
+                "{ \"create\" : { \"_id\" : \"2\", \"_routing\" : \"r\", \"_ttl\" : \"1m\" } }\n" +
+                "{\"a\":2}\n" +
+                "{\"index\":{\"_id\":\"3\",\"_version\":5,\"_version_type\":\"external\"}}\n" +
+                "{\"a\":3}\n" +
+                "{\"index\":{\"_id\":\"\\u0034\"}}\n" +
+                "{\"a\":4}\n" +
+                "{\"delete\":{\"_index\":\"other\",\"_id\":\"5\"}}\n";
+        IngestRequest request = new IngestRequest().add(new BytesArray(data), "test", "test");
+        assertEquals(5, request.numberOfActions());
+        IndexRequest indexRequest = (IndexRequest) request.subRequests().get(0);
+        assertEquals("test", indexRequest.index());
+        assertEquals("1", indexRequest.id());
+        assertEquals("{\"a\":1}", indexRequest.source().toUtf8());
+        indexRequest = (IndexRequest) request.subRequests().get(1);
+        assertEquals(IndexRequest.OpType.CREATE, indexRequest.opType());
+        assertEquals("r", indexRequest.routing());
+        assertEquals(60000L, indexRequest.ttl().millis());
+        indexRequest = (IndexRequest) request.subRequests().get(2);
+        assertEquals(5L, indexRequest.version());
+        assertEquals(VersionType.EXTERNAL, indexRequest.versionType());
+        // escaped strings are parsed by the XContent parser
+        indexRequest = (IndexRequest) request.subRequests().get(3);
+        assertEquals("4", indexRequest.id());
+        DeleteRequest deleteRequest = (DeleteRequest) request.subRequests().get(4);
+        assertEquals("other", deleteRequest.index());
+        assertEquals("5", deleteRequest.id());
+    }
+
+    @Test
+    public void testIngestParallelParse() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                sb.append("{\"delete\":{\"_id\":\"").append(i).append("\"}}\n");
+            } else {
+                sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n");
+                // a source line which looks like a delete action
+                sb.append("{\"delete\":{\"_id\":\"x\"}}\n");
+            }
+        }
+        BytesArray data = new BytesArray(sb.toString());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            IngestRequest request = new IngestRequest().add(data, "test", "test", pool, 1024L);
+            assertEquals(1000, request.numberOfActions());
+            assertEquals(new IngestRequest().add(data, "test", "test").estimatedSizeInBytes(),
+                    request.estimatedSizeInBytes());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(Integer.toString(i), ((DocumentRequest<?>) request.subRequests().get(i)).id());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testIngestStreamReader() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                sb.append("{\"delete\":{\"_id\":\"").append(i).append("\"}}\n");
+            } else {
+                sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n");
+                // a source line which looks like a delete action
+                sb.append("{\"delete\":{\"_id\":\"x\"}}\n");
+            }
+        }
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        // a stream returning a few bytes per read, like the chunks of an upload
+        InputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        IngestStreamReader streamReader = new IngestStreamReader(in, 1024);
+        IngestStreamReader arrayReader = new IngestStreamReader(new BytesArray(data), 1024);
+        IngestRequest request = new IngestRequest();
+        int length = 0;
+        BytesReference segment;
+        while ((segment = streamReader.nextSegment()) != null) {
+            assertEquals(arrayReader.nextSegment(), segment);
+            int n = request.numberOfActions();
+            request.add(segment, "test", "test");
+            if (length + segment.length() < data.length) {
+                assertTrue(segment.length() >= 1024);
+            }
+            assertTrue(request.numberOfActions() > n);
+            length += segment.length();
+        }
+        assertNull(arrayReader.nextSegment());
+        assertEquals(data.length, length);
+        assertEquals(1000, request.numberOfActions());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.toString(i), ((DocumentRequest<?>) request.subRequests().get(i)).id());
+        }
+    }
+
+    @Test
+    public void testShardBatch() throws Exception {
+        List<ActionRequest<?>> requests = new ArrayList<>();
+        requests.add(new IndexRequest("test", "type1", "1").source("{\"name\":\"1\"}").routing("r").ttl(60000L));
+        requests.add(new IndexRequest("test", "type2", "2").source("{\"name\":\"2\"}").create(true)
+                .parent("p").timestamp("1000").version(5L).versionType(VersionType.EXTERNAL));
+        requests.add(new DeleteRequest("test", "type1", "3").routing("r").version(7L));
+        requests.add(new IndexRequest("test", "type1", "4").source("{\"name\":\"4\"}"));
+        IngestLeaderShardRequest request = new IngestLeaderShardRequest()
+                .setShardId(new ShardId("test", 0))
+                .setActionRequests(requests);
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        IngestLeaderShardRequest copy = new IngestLeaderShardRequest();
+        copy.readFrom(StreamInput.wrap(out.bytes()));
+        assertEquals(4, copy.getShardBatch().size());
+        IndexRequest indexRequest = (IndexRequest) copy.getActionRequests().get(0);
+        assertEquals("test", indexRequest.index());
+        assertEquals("type1", indexRequest.type());
+        assertEquals("1", indexRequest.id());
+        assertEquals("r", indexRequest.routing());
+        assertEquals(60000L, indexRequest.ttl().millis());
+        assertEquals(IndexRequest.OpType.INDEX, indexRequest.opType());
+        assertEquals(Versions.MATCH_ANY, indexRequest.version());
+        assertEquals("{\"name\":\"1\"}", indexRequest.source().toUtf8());
+        indexRequest = (IndexRequest) copy.getActionRequests().get(1);
+        assertEquals("type2", indexRequest.type());
+        assertEquals("p", indexRequest.parent());
+        assertEquals("1000", indexRequest.timestamp());
+        assertEquals(IndexRequest.OpType.CREATE, indexRequest.opType());
+        assertEquals(5L, indexRequest.version());
+        assertEquals(VersionType.EXTERNAL, indexRequest.versionType());
+        assertEquals("{\"name\":\"2\"}", indexRequest.source().toUtf8());
+        DeleteRequest deleteRequest = (DeleteRequest) copy.getActionRequests().get(2);
+        assertEquals("3", deleteRequest.id());
+        assertEquals("r", deleteRequest.routing());
+        assertEquals(7L, deleteRequest.version());
+        indexRequest = (IndexRequest) copy.getActionRequests().get(3);
+        assertNull(indexRequest.routing());
+        assertNull(indexRequest.ttl());
+        assertEquals("{\"name\":\"4\"}", indexRequest.source().toUtf8());
+    }
+
+    @Test
+    public void testIngestStatus() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test").execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        final IngestStatusTable statusTable = new IngestStatusTable(16);
+        IngestProcessor processor = new IngestProcessor(client)
+                .blocking(false)
+                .listener(statusTable)
+                .maxConcurrentRequests(1)
+                .maxActions(10);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n");
+            sb.append("{\"name\":\"").append(i).append("\"}\n");
+        }
+        final List<Long> ingestIds = new ArrayList<>();
+        processor.add(new BytesArray(sb.toString()), "test", "test", new IngestProcessor.IngestListener() {
+            @Override
+            public void onRequest(int concurrency, IngestRequest request) {
+                ingestIds.add(request.ingestId());
+                statusTable.onRequest(concurrency, request);
+            }
+
+            @Override
+            public void onResponse(int concurrency, IngestResponse response) {
+                statusTable.onResponse(concurrency, response);
+            }
+
+            @Override
+            public void onFailure(int concurrency, long ingestId, Throwable failure) {
+                statusTable.onFailure(concurrency, ingestId, failure);
+            }
+        });
+        // all ingest requests are known when add returns, although only one is in flight
+        assertEquals(5, ingestIds.size());
+        for (Long ingestId : ingestIds) {
+            assertNotNull(statusTable.get(ingestId));
+        }
+        processor.close();
+        processor.waitForResponses(TimeValue.timeValueSeconds(30));
+        for (Long ingestId : ingestIds) {
+            IngestStatusTable.Status status = statusTable.get(ingestId);
+            assertEquals(status.failures().toString(), IngestStatusTable.State.COMPLETED, status.state());
+            assertEquals(10, status.actions());
+            assertEquals(10, status.succeeded());
+        }
+        assertNull(statusTable.get(ingestIds.get(4) + 16));
+    }
+
+    @Test
+    public void testIngestAdmission() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test").execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final IngestProcessor processor = new IngestProcessor(client)
+                .admissionTimeout(TimeValue.timeValueMillis(10))
+                .maxConcurrentRequests(1)
+                .maxActions(1);
+        final BytesArray data = new BytesArray("{\"index\":{\"_id\":\"1\"}}\n{\"name\":\"1\"}\n");
+        // the only slot is held while the listener is notified of the request
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    processor.add(data, "test", "test", new IngestProcessor.IngestListener() {
+                        @Override
+                        public void onRequest(int concurrency, IngestRequest request) {
+                            inFlight.countDown();
+                            try {
+                                proceed.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+
+                        @Override
+                        public void onResponse(int concurrency, IngestResponse response) {
+                        }
+
+                        @Override
+                        public void onFailure(int concurrency, long ingestId, Throwable failure) {
+                        }
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        inFlight.await();
+        try {
+            processor.add(data, "test", "test", null);
+            fail("data must be rejected");
+        } catch (EsRejectedExecutionException e) {
+            assertEquals(1L, processor.rejections().getCount());
+            assertTrue(processor.retryAfter().seconds() >= 1L);
+        } finally {
+            proceed.countDown();
+            thread.join();
+        }
+        processor.close();
+    }
+
+    @Test
+    public void testIngestAdmissionQueue() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test").execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        final CountDownLatch responding = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        IngestProcessor processor = new IngestProcessor(client)
+                .blocking(false)
+                .admissionTimeout(TimeValue.timeValueSeconds(1))
+                .maxQueuedRequests(1)
+                .maxConcurrentRequests(1)
+                .maxActions(1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n{\"name\":\"").append(i).append("\"}\n");
+        }
+        // the only slot is held while the listener is notified of the first response
+        processor.add(new BytesArray(sb.toString()), "test", "test", new IngestProcessor.IngestListener() {
+            @Override
+            public void onRequest(int concurrency, IngestRequest request) {
+            }
+
+            @Override
+            public void onResponse(int concurrency, IngestResponse response) {
+                responding.countDown();
+                try {
+                    proceed.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onFailure(int concurrency, long ingestId, Throwable failure) {
+            }
+        });
+        assertTrue(responding.await(30, TimeUnit.SECONDS));
+        try {
+            // two requests are queued, which is over the bound of the queue
+            processor.add(new BytesArray("{\"index\":{\"_id\":\"3\"}}\n{\"name\":\"3\"}\n"), "test", "test", null);
+            fail("data must be rejected");
+        } catch (EsRejectedExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("queue full"));
+            assertEquals(1L, processor.rejections().getCount());
+        } finally {
+            proceed.countDown();
+        }
+        processor.close();
+    }
+
+    @Test
+    public void testIngestQueueByteBudget() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test").execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        final CountDownLatch responding = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        // no admission control, the byte budget bounds the queue of the non-blocking processor
+        IngestProcessor processor = new IngestProcessor(client)
+                .blocking(false)
+                .byteBudget(new ByteBudget(new ByteSizeValue(300), TimeValue.timeValueMillis(0), null))
+                .maxConcurrentRequests(1)
+                .maxActions(1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n{\"name\":\"").append(i).append("\"}\n");
+        }
+        BytesArray data = new BytesArray(sb.toString());
+        processor.add(data, "test", "test", new IngestProcessor.IngestListener() {
+            @Override
+            public void onRequest(int concurrency, IngestRequest request) {
+            }
+
+            @Override
+            public void onResponse(int concurrency, IngestResponse response) {
+                responding.countDown();
+                try {
+                    proceed.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onFailure(int concurrency, long ingestId, Throwable failure) {
+            }
+        });
+        assertTrue(responding.await(30, TimeUnit.SECONDS));
+        try {
+            processor.add(data, "test", "test", null);
+            fail("data must be rejected");
+        } catch (EsRejectedExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("byte budget"));
+            assertEquals(1L, processor.rejections().getCount());
+        } finally {
+            proceed.countDown();
+        }
+        processor.close();
+    }
+
+    @Test
+    public void testIngestAlias() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test")
+                .setSettings(Settings.settingsBuilder().put("index.number_of_shards", 3))
+                .execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        client.admin().indices().prepareAliases().addAlias("test", "alias").execute().actionGet();
+        // the second request is resolved and routed by the cached metadata of the first
+        for (int round = 0; round < 2; round++) {
+            IngestRequest request = new IngestRequest();
+            for (int i = 0; i < 30; i++) {
+                request.add(Requests.indexRequest("alias").type("test").id(round + "-" + i).source("{\"a\":1}"));
+            }
+            IngestResponse response = client.execute(IngestAction.INSTANCE, request).actionGet();
+            assertEquals(response.getFailures().toString(), 0, response.getFailures().size());
+            assertEquals(30, response.successSize());
+        }
+        client.admin().indices().prepareRefresh("test").execute().actionGet();
+        assertEquals(60L, client.prepareSearch("test").setSize(0).execute().actionGet().getHits().getTotalHits());
+    }
+
+    @Test
+    public void testIngestItemListener() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test").execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        IngestProcessor processor = new IngestProcessor(client)
+                .listener(new IngestStatusTable(16))
+                .maxActions(10);
+        List<PlainActionFuture<BulkItemResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            PlainActionFuture<BulkItemResponse> future = PlainActionFuture.newFuture();
+            processor.add(Requests.indexRequest("test").type("test").id(Integer.toString(i))
+                    .source("{\"a\":1}"), future);
+            futures.add(future);
+        }
+        processor.flush();
+        for (int i = 0; i < 5; i++) {
+            BulkItemResponse itemResponse = futures.get(i).actionGet(30, TimeUnit.SECONDS);
+            assertEquals(Integer.toString(i), itemResponse.getId());
+            assertEquals(i, itemResponse.getItemId());
+        }
+        // the second create of a document fails, the other actions of the request succeed
+        PlainActionFuture<BulkItemResponse> created = PlainActionFuture.newFuture();
+        processor.add(Requests.indexRequest("test").type("test").id("5").source("{\"a\":1}"), created);
+        PlainActionFuture<BulkItemResponse> duplicate = PlainActionFuture.newFuture();
+        processor.add(Requests.indexRequest("test").type("test").id("0").create(true)
+                .source("{\"a\":1}"), duplicate);
+        PlainActionFuture<BulkItemResponse> deleted = PlainActionFuture.newFuture();
+        processor.add(new DeleteRequest("test", "test", "1"), deleted);
+        processor.flush();
+        assertEquals("5", created.actionGet(30, TimeUnit.SECONDS).getId());
+        assertEquals("delete", deleted.actionGet(30, TimeUnit.SECONDS).getOpType());
+        try {
+            duplicate.actionGet(30, TimeUnit.SECONDS);
+            fail("the create of an existing document must fail");
+        } catch (ElasticsearchException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already exists"));
+        }
+        processor.close();
+    }
+
+    @Test
+    public void testIngestPartialSegments() throws Exception {
+        Client client = client("1");
+        client.admin().indices().prepareCreate("test").execute().actionGet();
+        client.admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        IngestProcessor processor = new IngestProcessor(client)
+                .segmentSize(new ByteSizeValue(40))
+                .maxActions(1000);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n{\"name\":\"").append(i).append("\"}\n");
+        }
+        // an illegal version fails the validation of the last segment
+        sb.append("{\"index\":{\"_id\":\"5\",\"_version_type\":\"external\",\"_version\":-5}}\n{\"name\":\"5\"}\n");
+        final List<IngestRequest> sent = new ArrayList<>();
+        try {
+            processor.add(new BytesArray(sb.toString()), "test", "test", new IngestProcessor.IngestListener() {
+                @Override
+                public void onRequest(int concurrency, IngestRequest request) {
+                    synchronized (sent) {
+                        sent.add(request);
+                    }
+                }
+
+                @Override
+                public void onResponse(int concurrency, IngestResponse response) {
+                }
+
+                @Override
+                public void onFailure(int concurrency, long ingestId, Throwable failure) {
+                }
+            });
+            fail("the last segment must fail");
+        } catch (Exception e) {
+            // the segments before the failed one are sent and reported
+            int actions = 0;
+            synchronized (sent) {
+                for (IngestRequest request : sent) {
+                    actions += request.numberOfActions();
+                }
+            }
+            assertTrue(Integer.toString(actions), actions > 0 && actions <= 5);
+        }
+        processor.close();
+    }
 }
@@ -1,7 +1,11 @@
 package org.xbib.elasticsearch.helper.client.http;
 
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
@@ -115,6 +119,77 @@ public class HttpBulkNodeClientTest extends NodeTestUtils {
         }
     }
 
+    @Test
+    public void testPreSerializedRandomDocs() throws Exception {
+        long numactions = NUM_ACTIONS;
+        final HttpBulkNodeClient client = ClientBuilder.builder()
+                .setMetric(new LongAdderIngestMetric())
+                .put("host", "127.0.0.1")
+                .put("port", 9200)
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .put(ClientBuilder.PRE_SERIALIZED, "true")
+                .toHttpBulkNodeClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < NUM_ACTIONS; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            assertEquals(numactions, client.getMetric().getSucceeded().getCount());
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testUpdateItemListeners() throws Exception {
+        for (String preSerialized : new String[] { "false", "true" }) {
+            final HttpBulkNodeClient client = ClientBuilder.builder()
+                    .setMetric(new LongAdderIngestMetric())
+                    .put("host", "127.0.0.1")
+                    .put("port", 9200)
+                    .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                    .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                    .put(ClientBuilder.PRE_SERIALIZED, preSerialized)
+                    .toHttpBulkNodeClient();
+            try {
+                client.newIndex("test" + preSerialized);
+                // the update is sent in the middle of the bulk request, the listeners after it keep their items
+                PlainActionFuture<BulkItemResponse> before = PlainActionFuture.newFuture();
+                PlainActionFuture<BulkItemResponse> updated = PlainActionFuture.newFuture();
+                PlainActionFuture<BulkItemResponse> after = PlainActionFuture.newFuture();
+                client.bulkIndex(new IndexRequest("test" + preSerialized, "test", "2").source("{ \"a\" : 2 }"), before);
+                client.bulkUpdate(new UpdateRequest("test" + preSerialized, "test", "1")
+                        .doc("{ \"b\" : 2 }").docAsUpsert(true), updated);
+                client.bulkIndex(new IndexRequest("test" + preSerialized, "test", "3").source("{ \"a\" : 3 }"), after);
+                client.flushIngest();
+                client.waitForResponses(TimeValue.timeValueSeconds(30));
+                assertEquals("2", before.actionGet(30, TimeUnit.SECONDS).getId());
+                BulkItemResponse updateResponse = updated.actionGet(30, TimeUnit.SECONDS);
+                assertEquals("1", updateResponse.getId());
+                assertEquals("update", updateResponse.getOpType());
+                assertEquals("3", after.actionGet(30, TimeUnit.SECONDS).getId());
+                client.refreshIndex("test" + preSerialized);
+                // the upsert of the update has created the third document
+                SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client.client(), SearchAction.INSTANCE)
+                        .setIndices("test" + preSerialized)
+                        .setQuery(QueryBuilders.matchAllQuery()).setSize(0);
+                assertEquals(3L, searchRequestBuilder.execute().actionGet().getHits().getTotalHits());
+                assertFalse(client.hasThrowable());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
     @Test
     public void testThreadedRandomDocs() throws Exception {
         int maxthreads = Runtime.getRuntime().availableProcessors();
@@ -0,0 +1,195 @@
+package org.xbib.elasticsearch.helper.client.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.helper.client.AdaptiveBulkSizer;
+import org.xbib.metrics.CountMetric;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bulk item statuses over HTTP, against a stub server which rejects items with 429 Too Many Requests.
+ */
+public class HttpBulkRetryTest {
+
+    private final static Pattern ID = Pattern.compile("\"_id\":\"([^\"]+)\"");
+
+    private HttpServer server;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile String lastBody;
+
+    /**
+     * The IDs of documents which are rejected once.
+     */
+    private final Set<String> rejectOnce = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/_bulk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String body = Streams.copyToString(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+                lastBody = body;
+                StringBuilder sb = new StringBuilder("{\"took\":1,\"errors\":false,\"items\":[");
+                Matcher m = ID.matcher(body);
+                boolean first = true;
+                while (m.find()) {
+                    String id = m.group(1);
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    sb.append("{\"index\":{\"_index\":\"test\",\"_type\":\"test\",\"_id\":\"").append(id).append("\",");
+                    if (rejectOnce.remove(id)) {
+                        sb.append("\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected\"}}}");
+                    } else {
+                        sb.append("\"_version\":1,\"status\":201}}");
+                    }
+                }
+                sb.append("]}");
+                byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private HttpElasticsearchClient client() {
+        return HttpElasticsearchClient.builder(Settings.EMPTY)
+                .url(url())
+                .build();
+    }
+
+    private URL url() {
+        try {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testRetryRejectedItemsOverHttp() throws Exception {
+        for (boolean preSerialized : new boolean[] { false, true }) {
+            for (int concurrency = 0; concurrency <= 1; concurrency++) {
+                requests.set(0);
+                rejectOnce.add("1");
+                HttpElasticsearchClient client = client();
+                RecordingListener listener = new RecordingListener();
+                CountMetric retried = new CountMetric();
+                HttpBulkProcessor processor = HttpBulkProcessor.builder(client, listener)
+                        .setConcurrentRequests(concurrency)
+                        .setBulkActions(3)
+                        .setMaxRetries(3)
+                        .setRetryBackoff(TimeValue.timeValueMillis(10))
+                        .setRetryCounter(retried)
+                        .setPreSerialized(preSerialized)
+                        .build();
+                for (int i = 0; i < 3; i++) {
+                    processor.add(new IndexRequest("test", "test", Integer.toString(i)).source("{\"a\":" + i + "}"));
+                }
+                assertTrue(processor.awaitClose(30, TimeUnit.SECONDS));
+                client.close();
+                assertEquals(0, listener.failures.size());
+                assertEquals(1, listener.responses.size());
+                BulkResponse response = listener.responses.get(0);
+                assertFalse(response.buildFailureMessage(), response.hasFailures());
+                assertEquals(3, response.getItems().length);
+                assertEquals("1", response.getItems()[1].getId());
+                // the rejected item was sent once more, alone
+                assertEquals(1L, retried.getCount());
+                assertEquals(2, requests.get());
+                assertEquals("{\"index\":{\"_index\":\"test\",\"_type\":\"test\",\"_id\":\"1\"}}\n{\"a\":1}\n", lastBody);
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptiveDecreaseOnRejectedItemsOverHttp() throws Exception {
+        rejectOnce.add("0");
+        HttpElasticsearchClient client = client();
+        RecordingListener listener = new RecordingListener();
+        AdaptiveBulkSizer sizer = new AdaptiveBulkSizer(10, 1, 100, 5, 0.5d, TimeValue.timeValueMinutes(1));
+        HttpBulkProcessor processor = HttpBulkProcessor.builder(client, listener)
+                .setConcurrentRequests(0)
+                .setAdaptiveBulkSizer(sizer)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            processor.add(new IndexRequest("test", "test", Integer.toString(i)).source("{\"a\":1}"));
+        }
+        // the rejected item halves the batch size, although the request was fast
+        assertEquals(5, sizer.getBulkActions());
+        for (int i = 10; i < 15; i++) {
+            processor.add(new IndexRequest("test", "test", Integer.toString(i)).source("{\"a\":1}"));
+        }
+        assertEquals(10, sizer.getBulkActions());
+        assertTrue(processor.awaitClose(30, TimeUnit.SECONDS));
+        client.close();
+        assertEquals(2, listener.responses.size());
+        assertTrue(listener.responses.get(0).hasFailures());
+        assertEquals(RestStatus.TOO_MANY_REQUESTS, listener.responses.get(0).getItems()[0].getFailure().getStatus());
+    }
+
+    static class RecordingListener implements HttpBulkProcessor.Listener {
+
+        final List<BulkResponse> responses = new CopyOnWriteArrayList<>();
+
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            failures.add(failure);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.xbib.elasticsearch.helper.client.ingest;
+
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.xbib.elasticsearch.NodeTestUtils;
+import org.xbib.elasticsearch.action.ingest.IngestCompressionMetrics;
+import org.xbib.elasticsearch.helper.client.ClientBuilder;
+import org.xbib.elasticsearch.helper.client.IngestTransportClient;
+import org.xbib.elasticsearch.helper.client.LongAdderIngestMetric;
+import org.xbib.metrics.Gauge;
+import org.xbib.metrics.MetricRegistry;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class IngestCompressionTest extends NodeTestUtils {
+
+    @Override
+    protected Settings getNodeSettings() {
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("action.ingest.compress_threshold", "1b")
+                .put("action.ingest.compress_sample_interval", 1)
+                .build();
+    }
+
+    @Test
+    public void testCompressionMetrics() throws Exception {
+        startNode("2");
+        startNode("3");
+        // only requests to other nodes are compressed, so keep the shards off node 1, which receives the documents
+        Settings settingsForIndex = Settings.settingsBuilder()
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 1)
+                .put("index.routing.allocation.exclude._name", "1")
+                .build();
+        final IngestTransportClient ingest = ClientBuilder.builder()
+                .put(getSettings())
+                .setMetric(new LongAdderIngestMetric())
+                .toIngestTransportClient();
+        try {
+            ingest.newIndex("test", settingsForIndex, null);
+            ingest.waitForCluster("GREEN", TimeValue.timeValueSeconds(30));
+            for (int i = 0; i < 100; i++) {
+                ingest.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            ingest.flushIngest();
+            ingest.waitForResponses(TimeValue.timeValueSeconds(30));
+            ingest.refreshIndex("test");
+            SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(ingest.client(), SearchAction.INSTANCE)
+                    .setIndices("test")
+                    .setQuery(matchAllQuery())
+                    .setSize(0);
+            assertEquals(100L, searchRequestBuilder.execute().actionGet().getHits().getTotalHits());
+            for (String stage : new String[] { IngestCompressionMetrics.LEADER, IngestCompressionMetrics.REPLICA }) {
+                long compressedBytes = 0L;
+                long compressionNanos = 0L;
+                Double compressionRatio = null;
+                for (String id : new String[] { "1", "2", "3" }) {
+                    MetricRegistry registry = node(id).injector().getInstance(IngestCompressionMetrics.class).getMetricRegistry();
+                    compressedBytes += registry.counter(MetricRegistry.name("ingest", stage, "compressed_bytes")).getCount();
+                    compressionNanos += registry.counter(MetricRegistry.name("ingest", stage, "compression_nanos")).getCount();
+                    Gauge gauge = registry.getGauges().get(MetricRegistry.name("ingest", stage, "compression_ratio"));
+                    assertNotNull(gauge);
+                    if (gauge.getValue() != null) {
+                        compressionRatio = (Double) gauge.getValue();
+                    }
+                }
+                assertTrue(stage + " compressed bytes", compressedBytes > 0L);
+                assertTrue(stage + " compression nanos", compressionNanos > 0L);
+                assertNotNull(stage + " compression ratio", compressionRatio);
+                assertTrue(stage + " compression ratio " + compressionRatio, compressionRatio > 0.0);
+            }
+        } finally {
+            assertFalse(ingest.hasThrowable());
+            ingest.shutdown();
+        }
+    }
+}
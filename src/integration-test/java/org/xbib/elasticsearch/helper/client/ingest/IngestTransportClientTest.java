@@ -170,4 +170,85 @@ public class IngestTransportClientTest extends NodeTestUtils {
             ingest.shutdown();
         }
     }
+
+    @Test
+    public void testOversizedIngestClient() throws Exception {
+        long numactions = NUM_ACTIONS;
+        final IngestTransportClient ingest = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                .put(ClientBuilder.OVERSIZED_VOLUME_PER_REQUEST, "1kb")
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .setMetric(new LongAdderIngestMetric())
+                .toIngestTransportClient();
+        try {
+            ingest.newIndex("test");
+            for (int i = 0; i < numactions; i++) {
+                // every 100th document is oversized and sent alone
+                ingest.index("test", "test", null, "{ \"name\" : \"" + randomString(i % 100 == 0 ? 2048 : 32) + "\"}");
+            }
+            ingest.flushIngest();
+            ingest.waitForResponses(TimeValue.timeValueSeconds(30));
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            assertEquals(numactions, ingest.getMetric().getSucceeded().getCount());
+            if (ingest.hasThrowable()) {
+                logger.error("error", ingest.getThrowable());
+            }
+            assertFalse(ingest.hasThrowable());
+            ingest.refreshIndex("test");
+            SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(ingest.client(), SearchAction.INSTANCE)
+                    .setIndices("test")
+                    .setQuery(QueryBuilders.matchAllQuery())
+                    .setSize(0);
+            assertEquals(numactions,
+                    searchRequestBuilder.execute().actionGet().getHits().getTotalHits());
+            ingest.shutdown();
+        }
+    }
+
+    @Test
+    public void testShardPartitionedIngestClient() throws Exception {
+        long numactions = NUM_ACTIONS;
+        Settings settings = Settings.settingsBuilder()
+                .put("index.number_of_shards", 5)
+                .put("index.number_of_replicas", 1)
+                .build();
+        final IngestTransportClient ingest = ClientBuilder.builder()
+                .put(getSettings())
+                .put("autodiscover", "true")
+                .put(ClientBuilder.SHARD_PARTITIONING, "true")
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .setMetric(new LongAdderIngestMetric())
+                .toIngestTransportClient();
+        try {
+            ingest.newIndex("test", settings, null)
+                    .startBulk("test", -1, 1000);
+            ingest.waitForCluster("GREEN", TimeValue.timeValueSeconds(30));
+            for (int i = 0; i < numactions; i++) {
+                ingest.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            ingest.flushIngest();
+            ingest.waitForResponses(TimeValue.timeValueSeconds(30));
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            ingest.stopBulk("test");
+            assertEquals(numactions, ingest.getMetric().getSucceeded().getCount());
+            if (ingest.hasThrowable()) {
+                logger.error("error", ingest.getThrowable());
+            }
+            assertFalse(ingest.hasThrowable());
+            ingest.refreshIndex("test");
+            SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(ingest.client(), SearchAction.INSTANCE)
+                    .setIndices("_all") // to avoid NPE
+                    .setQuery(QueryBuilders.matchAllQuery())
+                    .setSize(0);
+            assertEquals(numactions,
+                    searchRequestBuilder.execute().actionGet().getHits().getTotalHits());
+            ingest.shutdown();
+        }
+    }
 }
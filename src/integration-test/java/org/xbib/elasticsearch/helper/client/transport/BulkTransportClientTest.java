@@ -1,8 +1,19 @@
 
 package org.xbib.elasticsearch.helper.client.transport;
 
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
@@ -11,11 +22,20 @@ import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.junit.Before;
+import org.xbib.elasticsearch.helper.client.BulkPriority;
+import org.xbib.elasticsearch.helper.client.BulkProcessor;
 import org.xbib.elasticsearch.helper.client.BulkTransportClient;
 import org.xbib.elasticsearch.helper.client.ClientBuilder;
 import org.xbib.elasticsearch.helper.client.LongAdderIngestMetric;
+import org.xbib.elasticsearch.helper.client.ShardPartitioner;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -23,9 +43,11 @@ import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.xbib.elasticsearch.NodeTestUtils;
+import org.xbib.metrics.MetricRegistry;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class BulkTransportClientTest extends NodeTestUtils {
 
@@ -134,6 +156,456 @@ public class BulkTransportClientTest extends NodeTestUtils {
         }
     }
 
+    @Test
+    public void testAdaptiveBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .put(ClientBuilder.ADAPTIVE_BULK, "true")
+                .put(ClientBuilder.ADAPTIVE_BULK_MIN_ACTIONS, 10)
+                .put(ClientBuilder.ADAPTIVE_BULK_MAX_ACTIONS, 2000)
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < NUM_ACTIONS; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            assertEquals(NUM_ACTIONS.longValue(), client.getMetric().getSucceeded().getCount());
+            int bulkActions = client.getMetric().getCurrentBulkActions().getValue();
+            logger.info("adaptive bulk actions = {}", bulkActions);
+            assertTrue(bulkActions >= 10 && bulkActions <= 2000);
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testByteBudgetBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .put(ClientBuilder.MAX_BUFFERED_VOLUME, "16kb")
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < NUM_ACTIONS; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+                assertTrue(client.getMetric().getBufferedBytes().getValue() <= 16 * 1024);
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            assertEquals(NUM_ACTIONS.longValue(), client.getMetric().getSucceeded().getCount());
+            assertEquals(0L, client.getMetric().getBufferedBytes().getValue().longValue());
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testShardPartitionedBulkClient() throws Exception {
+        Settings settingsForIndex = Settings.settingsBuilder()
+                .put("index.number_of_shards", 5)
+                .build();
+        client("1").admin().indices().prepareCreate("test").setSettings(settingsForIndex).execute().actionGet();
+        client("1").admin().cluster().prepareHealth("test").setWaitForGreenStatus().execute().actionGet();
+        // the IDs as flushed, before the server generates the missing ones
+        final List<List<String>> flushed = new CopyOnWriteArrayList<>();
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+        BulkProcessor processor = BulkProcessor.builder(client("1"), new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+                List<String> ids = new ArrayList<>();
+                for (ActionRequest<?> actionRequest : request.requests()) {
+                    ids.add(((IndexRequest) actionRequest).id());
+                }
+                flushed.add(ids);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                if (response.hasFailures()) {
+                    failures.add(new IOException(response.buildFailureMessage()));
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                failures.add(failure);
+            }
+        }).setConcurrentRequests(1)
+                .setBulkActions(MAX_ACTIONS.intValue())
+                .setShardPartitioner(new ShardPartitioner(client("1"), TimeValue.timeValueSeconds(1)))
+                .build();
+        for (int i = 0; i < NUM_ACTIONS; i++) {
+            // every other document without ID, to be generated by the server
+            processor.add(new IndexRequest("test", "test", i % 2 == 0 ? Integer.toString(i) : null)
+                    .source("{ \"name\" : \"" + randomString(32) + "\"}"));
+        }
+        processor.flush();
+        assertTrue(processor.awaitClose(30, TimeUnit.SECONDS));
+        assertTrue(failures.toString(), failures.isEmpty());
+        ShardPartitioner verifier = new ShardPartitioner(client("1"), TimeValue.timeValueSeconds(1));
+        Set<String> nodeIds = new HashSet<>();
+        int n = 0;
+        for (List<String> ids : flushed) {
+            Set<String> requestNodeIds = new HashSet<>();
+            for (String id : ids) {
+                if (id != null) {
+                    requestNodeIds.add(verifier.partition(new IndexRequest("test", "test", id)));
+                }
+                n++;
+            }
+            assertEquals(1, requestNodeIds.size());
+            assertFalse(requestNodeIds.contains(ShardPartitioner.UNROUTED));
+            nodeIds.addAll(requestNodeIds);
+        }
+        assertEquals(NUM_ACTIONS.intValue(), n);
+        // the primaries are spread over both nodes
+        assertEquals(2, nodeIds.size());
+        client("1").admin().indices().prepareRefresh("test").execute().actionGet();
+        SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client("1"), SearchAction.INSTANCE)
+                .setQuery(QueryBuilders.matchAllQuery())
+                .setSize(0);
+        assertEquals(NUM_ACTIONS.longValue(), searchRequestBuilder.execute().actionGet().getHits().getTotalHits());
+    }
+
+    @Test
+    public void testMaxAgeBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 10000)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .put(ClientBuilder.FLUSH_MAX_AGE, TimeValue.timeValueMillis(200))
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 10; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            // no explicit flush, the buffered documents are sent once they are 200ms old
+            Thread.sleep(2000L);
+            assertEquals(10L, client.getMetric().getSucceeded().getCount());
+            // the timer is armed again for the next document after an idle period
+            for (int i = 0; i < 5; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            Thread.sleep(2000L);
+            assertEquals(15L, client.getMetric().getSucceeded().getCount());
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testItemListenerBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 100)
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        List<PlainActionFuture<BulkItemResponse>> futures = new ArrayList<>();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 250; i++) {
+                PlainActionFuture<BulkItemResponse> future = PlainActionFuture.newFuture();
+                futures.add(future);
+                client.bulkIndex(new IndexRequest("test", "test", Integer.toString(i))
+                        .source("{ \"name\" : \"" + randomString(32) + "\"}"), future);
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+            for (int i = 0; i < futures.size(); i++) {
+                BulkItemResponse itemResponse = futures.get(i).actionGet(30, TimeUnit.SECONDS);
+                assertFalse(itemResponse.isFailed());
+                assertEquals(Integer.toString(i), itemResponse.getId());
+            }
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testDoubleBufferedBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 50)
+                .put(ClientBuilder.MAX_CONCURRENT_REQUESTS, 0)
+                .put(ClientBuilder.DOUBLE_BUFFERED, "true")
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            // bulk requests are executed in order, so the last version of the document wins
+            for (int i = 0; i < 500; i++) {
+                client.index("test", "test", "1", "{ \"seq\" : " + i + "}");
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+            assertEquals(500L, client.getMetric().getSucceeded().getCount());
+            GetResponse getResponse = new GetRequestBuilder(client.client(), GetAction.INSTANCE)
+                    .setIndex("test").setType("test").setId("1").execute().actionGet();
+            assertEquals(499, getResponse.getSource().get("seq"));
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testHighPriorityBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 10000)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .put(ClientBuilder.HIGH_PRIORITY_MAX_ACTIONS_PER_REQUEST, 100)
+                .put(ClientBuilder.HIGH_PRIORITY_FLUSH_MAX_AGE, TimeValue.timeValueMillis(100))
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 1000; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            // high priority actions do not wait behind the buffered backfill
+            for (int i = 0; i < 5; i++) {
+                client.bulkIndex(new IndexRequest("test", "test", "live" + i)
+                        .source("{ \"name\" : \"" + randomString(32) + "\"}"), BulkPriority.HIGH);
+            }
+            Thread.sleep(2000L);
+            assertEquals(5L, client.getMetric().getSucceeded().getCount());
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+            assertEquals(1005L, client.getMetric().getSucceeded().getCount());
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescingBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 1000)
+                .put(ClientBuilder.COALESCING, "true")
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 100; i++) {
+                client.index("test", "test", "1", "{ \"seq\" : " + i + "}");
+            }
+            client.index("test", "test", "2", "{ \"a\" : 1}");
+            client.bulkUpdate(new UpdateRequest("test", "test", "2").doc("{ \"b\" : 2}"));
+            client.bulkUpdate(new UpdateRequest("test", "test", "2").doc("{ \"c\" : { \"d\" : 3 } }"));
+            client.bulkUpdate(new UpdateRequest("test", "test", "2").doc("{ \"c\" : { \"e\" : 4 } }"));
+            // an update with other options and an operation after a create are not coalesced
+            client.bulkUpdate(new UpdateRequest("test", "test", "2").doc("{ \"g\" : 5 }").detectNoop(false));
+            client.bulkIndex(new IndexRequest("test", "test", "3").create(true).source("{ \"f\" : 1}"));
+            client.index("test", "test", "3", "{ \"f\" : 2}");
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+            // 99 index operations on document 1 and two partial updates of document 2 are saved
+            assertEquals(101L, client.getMetric().getCoalesced().getCount());
+            assertEquals(6L, client.getMetric().getSucceeded().getCount());
+            GetResponse getResponse = new GetRequestBuilder(client.client(), GetAction.INSTANCE)
+                    .setIndex("test").setType("test").setId("1").execute().actionGet();
+            assertEquals(99, getResponse.getSource().get("seq"));
+            getResponse = new GetRequestBuilder(client.client(), GetAction.INSTANCE)
+                    .setIndex("test").setType("test").setId("2").execute().actionGet();
+            assertEquals(1, getResponse.getSource().get("a"));
+            assertEquals(2, getResponse.getSource().get("b"));
+            Map<?, ?> c = (Map<?, ?>) getResponse.getSource().get("c");
+            assertEquals(3, c.get("d"));
+            assertEquals(4, c.get("e"));
+            assertEquals(5, getResponse.getSource().get("g"));
+            getResponse = new GetRequestBuilder(client.client(), GetAction.INSTANCE)
+                    .setIndex("test").setType("test").setId("3").execute().actionGet();
+            assertEquals(2, getResponse.getSource().get("f"));
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompressionBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 100)
+                .put(ClientBuilder.COMPRESS_THRESHOLD, "1kb")
+                .put(ClientBuilder.COMPRESS_SAMPLE_INTERVAL, 1)
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 1000; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+            assertEquals(1000L, client.getMetric().getSucceeded().getCount());
+            assertTrue(client.getMetric().getCompressedBytes().getCount() > 0L);
+            assertTrue(client.getMetric().getCompressionNanos().getCount() > 0L);
+            assertTrue(client.getMetric().getCompressionRatio().getValue() < 1.0d);
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testDrainBulkClient() throws IOException {
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 100)
+                .put(ClientBuilder.MAX_CONCURRENT_REQUESTS, 2)
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 1050; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            BulkRequest unacknowledged = client.drain(TimeValue.timeValueSeconds(30));
+            assertEquals(0, unacknowledged.numberOfActions());
+            assertEquals(1050L, client.getMetric().getSucceeded().getCount());
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetricRegistryBulkClient() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, 100)
+                .setMetric(new LongAdderIngestMetric())
+                .setMetricRegistry(registry)
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test");
+            for (int i = 0; i < 1050; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            assertEquals(50, registry.getGauges().get(MetricRegistry.name(BulkProcessor.class, "default",
+                    "buffered_actions")).getValue());
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(30));
+            assertEquals(1050L, client.getMetric().getSucceeded().getCount());
+            assertEquals(10L, registry.counter(MetricRegistry.name(BulkProcessor.class, "default",
+                    "flush", "actions")).getCount());
+            assertEquals(1L, registry.counter(MetricRegistry.name(BulkProcessor.class, "default",
+                    "flush", "manual")).getCount());
+            assertEquals(11L, registry.histogram(MetricRegistry.name(BulkProcessor.class, "default",
+                    "batch", "actions")).getCount());
+            assertEquals(11L, registry.timer(MetricRegistry.name(BulkProcessor.class, "default",
+                    "before_bulk")).getCount());
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.shutdown();
+        }
+    }
+
     @Test
     public void testThreadedRandomDocsBulkClient() throws Exception {
         int maxthreads = Runtime.getRuntime().availableProcessors();
@@ -195,4 +667,55 @@ public class BulkTransportClientTest extends NodeTestUtils {
         }
     }
 
+    @Test
+    public void testDrainDeadlineBulkProcessor() throws Exception {
+        client("1").admin().indices().prepareCreate("test").execute().actionGet();
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch responded = new CountDownLatch(1);
+        final List<Long> before = new CopyOnWriteArrayList<>();
+        final List<Long> after = new CopyOnWriteArrayList<>();
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+        BulkProcessor processor = BulkProcessor.builder(client("1"), new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+                before.add(executionId);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                received.countDown();
+                try {
+                    // hold the only permit until the drain deadline has passed
+                    responded.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                after.add(executionId);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                after.add(executionId);
+                failures.add(failure);
+            }
+        }).setConcurrentRequests(1).setBulkActions(10).build();
+        for (int i = 0; i < 15; i++) {
+            processor.add(new IndexRequest("test", "test").source("{ \"name\" : " + i + "}"));
+            if (i == 9) {
+                assertTrue(received.await(30, TimeUnit.SECONDS));
+            }
+        }
+        // the second bulk request can not be sent before the deadline
+        BulkRequest unacknowledged = processor.drain(100L, TimeUnit.MILLISECONDS);
+        responded.countDown();
+        assertEquals(5, unacknowledged.numberOfActions());
+        long t0 = System.nanoTime();
+        while (after.size() < 2 && System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(30)) {
+            Thread.sleep(10L);
+        }
+        assertEquals(before.size(), after.size());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof ElasticsearchTimeoutException);
+    }
+
 }
@@ -0,0 +1,70 @@
+package org.xbib.elasticsearch.helper.client.transport;
+
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.xbib.elasticsearch.NodeTestUtils;
+import org.xbib.elasticsearch.helper.client.BulkTransportClient;
+import org.xbib.elasticsearch.helper.client.ClientBuilder;
+import org.xbib.elasticsearch.helper.client.LongAdderIngestMetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BulkTransportRetryTest extends NodeTestUtils {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(BulkTransportRetryTest.class.getSimpleName());
+
+    private final static Long MAX_ACTIONS = 100L;
+
+    private final static Long NUM_ACTIONS = 5000L;
+
+    @Override
+    protected Settings getNodeSettings() {
+        // a tiny bulk thread pool, so concurrent bulk requests get rejected
+        return Settings.settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("threadpool.bulk.size", 1)
+                .put("threadpool.bulk.queue_size", 4)
+                .build();
+    }
+
+    @Test
+    public void testRetryRejectedItems() throws Exception {
+        Settings settings = Settings.settingsBuilder()
+                .put("index.number_of_shards", 5)
+                .build();
+        final BulkTransportClient client = ClientBuilder.builder()
+                .put(getSettings())
+                .put(ClientBuilder.MAX_ACTIONS_PER_REQUEST, MAX_ACTIONS)
+                .put(ClientBuilder.MAX_CONCURRENT_REQUESTS, 4)
+                .put(ClientBuilder.FLUSH_INTERVAL, TimeValue.timeValueSeconds(60))
+                .put(ClientBuilder.MAX_RETRIES, 10)
+                .put(ClientBuilder.RETRY_BACKOFF, TimeValue.timeValueMillis(20))
+                .setMetric(new LongAdderIngestMetric())
+                .toBulkTransportClient();
+        try {
+            client.newIndex("test", settings, null);
+            for (int i = 0; i < NUM_ACTIONS; i++) {
+                client.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            client.flushIngest();
+            client.waitForResponses(TimeValue.timeValueSeconds(60));
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            logger.info("retried {} items", client.getMetric().getRetried().getCount());
+            assertEquals(NUM_ACTIONS.longValue(), client.getMetric().getSucceeded().getCount());
+            assertEquals(0L, client.getMetric().getFailed().getCount());
+            if (client.hasThrowable()) {
+                logger.error("error", client.getThrowable());
+            }
+            assertFalse(client.hasThrowable());
+            client.deleteIndex("test");
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.xbib.elasticsearch.helper.client.transport;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.client.support.Headers;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.helper.client.BulkProcessor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares one stripe with a stripe per producer, at a fixed number of producers, against a client which
+ * acknowledges bulk requests without sending them, so only the contention of the producers is measured.
+ */
+public class BulkTransportStripesTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(BulkTransportStripesTest.class.getName());
+
+    private final static int MAX_ACTIONS = 1000;
+
+    private final static int NUM_ACTIONS = 50000;
+
+    private final static int PRODUCERS = 4;
+
+    private final static int ROUNDS = 5;
+
+    private ThreadPool threadPool;
+
+    private NoOpClient client;
+
+    @Before
+    public void startClient() {
+        threadPool = new ThreadPool("stripes-test");
+        client = new NoOpClient(Settings.EMPTY, threadPool);
+    }
+
+    @After
+    public void stopClient() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testStripesScaling() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            // the first rounds warm up
+            for (int stripes : new int[] { 1, PRODUCERS }) {
+                long nanos = ingest(stripes);
+                logger.info("{} producer threads, {} stripes: {} docs in {} ms ({} docs/s)",
+                        PRODUCERS, stripes, PRODUCERS * NUM_ACTIONS, TimeUnit.NANOSECONDS.toMillis(nanos),
+                        PRODUCERS * NUM_ACTIONS * 1000000000L / Math.max(1L, nanos));
+            }
+        }
+    }
+
+    private long ingest(int stripes) throws Exception {
+        final List<Integer> full = new CopyOnWriteArrayList<>();
+        final List<Integer> remaining = new CopyOnWriteArrayList<>();
+        final AtomicLong failures = new AtomicLong();
+        final CountDownLatch produced = new CountDownLatch(PRODUCERS);
+        final BulkProcessor processor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+                if (produced.getCount() > 0) {
+                    full.add(request.numberOfActions());
+                } else {
+                    remaining.add(request.numberOfActions());
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                failures.incrementAndGet();
+            }
+        }).setBulkActions(MAX_ACTIONS).setStripes(stripes).build();
+        ThreadPoolExecutor pool =
+                EsExecutors.newFixed("bulkclient-test", PRODUCERS, 30, EsExecutors.daemonThreadFactory("bulkclient-test"));
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < PRODUCERS; i++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < NUM_ACTIONS; i++) {
+                            processor.add(new IndexRequest("test", "test").source("{ \"name\" : " + i + "}"));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        produced.countDown();
+                    }
+                }
+            });
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        assertTrue(produced.await(30, TimeUnit.SECONDS));
+        long nanos = System.nanoTime() - t0;
+        assertTrue(processor.awaitClose(30, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertEquals(0L, failures.get());
+        int n = 0;
+        for (int actions : full) {
+            // the threshold applies to the actions of all stripes
+            assertTrue(actions + " actions", actions >= MAX_ACTIONS);
+            n += actions;
+        }
+        int rest = 0;
+        for (int actions : remaining) {
+            rest += actions;
+        }
+        // the stripes never buffer more than one bulk request together
+        assertTrue(rest + " remaining actions", rest < MAX_ACTIONS);
+        assertEquals(PRODUCERS * NUM_ACTIONS, n + rest);
+        return nanos;
+    }
+
+    /**
+     * A client which acknowledges each action of a bulk request without sending it.
+     */
+    private static class NoOpClient extends AbstractClient {
+
+        NoOpClient(Settings settings, ThreadPool threadPool) {
+            super(settings, threadPool, Headers.EMPTY);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse,
+                RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+            BulkRequest bulkRequest = (BulkRequest) request;
+            BulkItemResponse[] items = new BulkItemResponse[bulkRequest.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = new BulkItemResponse(i, "index", new IndexResponse("test", "test", Integer.toString(i), 1L, true));
+            }
+            listener.onResponse((Response) new BulkResponse(items, 0L));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
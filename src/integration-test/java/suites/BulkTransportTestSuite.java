@@ -5,6 +5,8 @@ import org.junit.runners.Suite;
 import org.xbib.elasticsearch.helper.client.transport.BulkTransportClientTest;
 import org.xbib.elasticsearch.helper.client.transport.BulkTransportDuplicateIDTest;
 import org.xbib.elasticsearch.helper.client.transport.BulkTransportReplicaTest;
+import org.xbib.elasticsearch.helper.client.transport.BulkTransportRetryTest;
+import org.xbib.elasticsearch.helper.client.transport.BulkTransportStripesTest;
 import org.xbib.elasticsearch.helper.client.transport.BulkTransportUpdateReplicaLevelTest;
 
 @RunWith(ListenerSuite.class)
@@ -12,6 +14,8 @@ import org.xbib.elasticsearch.helper.client.transport.BulkTransportUpdateReplica
         BulkTransportClientTest.class,
         BulkTransportDuplicateIDTest.class,
         BulkTransportReplicaTest.class,
+        BulkTransportRetryTest.class,
+        BulkTransportStripesTest.class,
         BulkTransportUpdateReplicaLevelTest.class
 })
 public class BulkTransportTestSuite {
@@ -3,10 +3,12 @@ package suites;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.xbib.elasticsearch.helper.client.http.HttpBulkNodeClientTest;
+import org.xbib.elasticsearch.helper.client.http.HttpBulkRetryTest;
 
 @RunWith(ListenerSuite.class)
 @Suite.SuiteClasses({
-        HttpBulkNodeClientTest.class
+        HttpBulkNodeClientTest.class,
+        HttpBulkRetryTest.class
 })
 public class HttpBulkNodeTestSuite {
 
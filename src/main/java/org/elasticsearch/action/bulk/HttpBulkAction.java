@@ -7,21 +7,31 @@ import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.ChannelBufferBytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.rest.RestStatus;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.xbib.elasticsearch.helper.client.http.HttpAction;
 import org.xbib.elasticsearch.helper.client.http.HttpInvocationContext;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
@@ -32,51 +42,150 @@ public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
 
     @Override
     protected HttpRequest createHttpRequest(URL base, BulkRequest request) {
-        StringBuilder bulkContent = new StringBuilder();
-        for (ActionRequest actionRequest : request.requests()) {
-            if (actionRequest instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) actionRequest;
-                bulkContent.append("{\"").append(indexRequest.opType().lowercase()).append("\":{");
-                bulkContent.append("\"_index\":\"").append(indexRequest.index()).append("\"");
-                bulkContent.append(",\"_type\":\"").append(indexRequest.type()).append("\"");
-                if (indexRequest.id() != null) {
-                    bulkContent.append(",\"_id\":\"").append(indexRequest.id()).append("\"");
-                }
-                if (indexRequest.routing() != null) {
-                    bulkContent.append(",\"_routing\":\"").append(indexRequest.routing()).append("\""); // _routing
-                }
-                if (indexRequest.parent() != null) {
-                    bulkContent.append(",\"_parent\":\"").append(indexRequest.parent()).append("\"");
-                }
-                if (indexRequest.timestamp() != null) {
-                    bulkContent.append(",\"_timestamp\":\"").append(indexRequest.timestamp()).append("\"");
-                }
-                // avoid _ttl <= 0 at all cost!
-                if (indexRequest.ttl() != null && indexRequest.ttl().seconds() > 0) {
-                    bulkContent.append(",\"_ttl\":\"").append(indexRequest.ttl()).append("\"");
-                }
-                if (indexRequest.version() > 0) {
-                    bulkContent.append(",\"_version\":\"").append(indexRequest.version()).append("\"");
-                    if (indexRequest.versionType() != null) {
-                        bulkContent.append(",\"_version_type\":\"").append(indexRequest.versionType().name()).append("\"");
-                    }
-                }
-                bulkContent.append("}}\n");
-                bulkContent.append(indexRequest.source().toUtf8());
-                bulkContent.append("\n");
-            } else if (actionRequest instanceof DeleteRequest) {
-                DeleteRequest deleteRequest = (DeleteRequest) actionRequest;
-                bulkContent.append("{\"delete\":{");
-                bulkContent.append("\"_index\":\"").append(deleteRequest.index()).append("\"");
-                bulkContent.append(",\"_type\":\"").append(deleteRequest.type()).append("\"");
-                bulkContent.append(",\"_id\":\"").append(deleteRequest.id()).append("\"");
-                if (deleteRequest.routing() != null) {
-                    bulkContent.append(",\"_routing\":\"").append(deleteRequest.routing()).append("\""); // _routing
+        if (request instanceof SerializedBulkRequest) {
+            // the content was written when the actions were added, send it as it is
+            BytesReference content = ((SerializedBulkRequest) request).content();
+            return newRequest(HttpMethod.POST, base, "/_bulk", content.toChannelBuffer());
+        }
+        BytesStreamOutput content = new BytesStreamOutput();
+        Writer writer = new OutputStreamWriter(content, StandardCharsets.UTF_8);
+        try {
+            for (ActionRequest actionRequest : request.requests()) {
+                if (actionRequest instanceof IndexRequest) {
+                    write(content, writer, (IndexRequest) actionRequest);
+                } else if (actionRequest instanceof DeleteRequest) {
+                    write(writer, (DeleteRequest) actionRequest);
+                } else if (actionRequest instanceof UpdateRequest) {
+                    write(content, writer, (UpdateRequest) actionRequest);
                 }
-                bulkContent.append("}}\n");
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchException("unable to serialize bulk request", e);
+        }
+        return newRequest(HttpMethod.POST, base, "/_bulk", content.bytes().toChannelBuffer());
+    }
+
+    /**
+     * Write the action line and the source line of an index request to bulk content.
+     *
+     * @param out the bulk content
+     * @param writer a UTF-8 writer on the bulk content
+     * @param indexRequest the index request
+     * @throws IOException if the content can not be written
+     */
+    static void write(StreamOutput out, Writer writer, IndexRequest indexRequest) throws IOException {
+        writer.write("{\"");
+        writer.write(indexRequest.opType().lowercase());
+        writer.write("\":{");
+        writeHeader(writer, indexRequest.index(), indexRequest.type(), indexRequest.id(), indexRequest.routing());
+        writeField(writer, "_parent", indexRequest.parent());
+        writeField(writer, "_timestamp", indexRequest.timestamp());
+        // avoid _ttl <= 0 at all cost!
+        if (indexRequest.ttl() != null && indexRequest.ttl().seconds() > 0) {
+            writeField(writer, "_ttl", indexRequest.ttl().toString());
+        }
+        if (indexRequest.version() > 0) {
+            writeField(writer, "_version", Long.toString(indexRequest.version()));
+            if (indexRequest.versionType() != null) {
+                writeField(writer, "_version_type", indexRequest.versionType().name());
+            }
+        }
+        writer.write("}}\n");
+        writer.flush();
+        indexRequest.source().writeTo(out);
+        out.write('\n');
+    }
+
+    /**
+     * Write the action line of a delete request to bulk content.
+     *
+     * @param writer a UTF-8 writer on the bulk content
+     * @param deleteRequest the delete request
+     * @throws IOException if the content can not be written
+     */
+    static void write(Writer writer, DeleteRequest deleteRequest) throws IOException {
+        writer.write("{\"delete\":{");
+        writeHeader(writer, deleteRequest.index(), deleteRequest.type(), deleteRequest.id(), deleteRequest.routing());
+        writer.write("}}\n");
+        writer.flush();
+    }
+
+    /**
+     * Write the action line and the source line of an update request to bulk content. The source line contains
+     * the partial document, the script and the upsert document.
+     *
+     * @param out the bulk content
+     * @param writer a UTF-8 writer on the bulk content
+     * @param updateRequest the update request
+     * @throws IOException if the content can not be written
+     */
+    static void write(StreamOutput out, Writer writer, UpdateRequest updateRequest) throws IOException {
+        writer.write("{\"update\":{");
+        writeHeader(writer, updateRequest.index(), updateRequest.type(), updateRequest.id(), updateRequest.routing());
+        writeField(writer, "_parent", updateRequest.parent());
+        if (updateRequest.retryOnConflict() > 0) {
+            writer.write(",\"_retry_on_conflict\":");
+            writer.write(Integer.toString(updateRequest.retryOnConflict()));
+        }
+        if (updateRequest.version() > 0) {
+            writeField(writer, "_version", Long.toString(updateRequest.version()));
+            if (updateRequest.versionType() != null) {
+                writeField(writer, "_version_type", updateRequest.versionType().name());
+            }
+        }
+        writer.write("}}\n");
+        writer.flush();
+        XContentBuilder builder = XContentFactory.jsonBuilder(out).startObject();
+        if (updateRequest.doc() != null) {
+            builder.rawField("doc", updateRequest.doc().source());
+            builder.field("doc_as_upsert", updateRequest.docAsUpsert());
+            builder.field("detect_noop", updateRequest.detectNoop());
+        }
+        if (updateRequest.script() != null) {
+            builder.field("script", updateRequest.script());
+            builder.field("scripted_upsert", updateRequest.scriptedUpsert());
+        }
+        if (updateRequest.upsertRequest() != null) {
+            builder.rawField("upsert", updateRequest.upsertRequest().source());
+        }
+        if (updateRequest.fields() != null) {
+            builder.array("fields", updateRequest.fields());
+        }
+        builder.endObject().flush();
+        out.write('\n');
+    }
+
+    private static void writeHeader(Writer writer, String index, String type, String id, String routing) throws IOException {
+        writer.write("\"_index\":");
+        writeString(writer, index);
+        writeField(writer, "_type", type);
+        writeField(writer, "_id", id);
+        writeField(writer, "_routing", routing);
+    }
+
+    private static void writeField(Writer writer, String name, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        writer.write(",\"");
+        writer.write(name);
+        writer.write("\":");
+        writeString(writer, value);
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                writer.write(value, start, i - start);
+                writer.write(c == '"' || c == '\\' ? "\\" + c : String.format(Locale.ROOT, "\\u%04x", (int) c));
+                start = i + 1;
             }
         }
-        return newPostRequest(base, "/_bulk", bulkContent);
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
     }
 
     @Override
@@ -109,8 +218,7 @@ public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
                 String type = (String) item.get(TYPE);
                 String id = (String) item.get(ID);
                 if (item.containsKey(ERROR)) {
-                    ElasticsearchException e = new ElasticsearchException(item.get(ERROR).toString());
-                    BulkItemResponse.Failure failure = new BulkItemResponse.Failure(index, type, id, e);
+                    BulkItemResponse.Failure failure = failure(item, index, type, id);
                     list.add(new BulkItemResponse(i++, UPDATE_OP, failure));
                 } else {
                     UpdateResponse updateResponse = new UpdateResponse(index, type, id,
@@ -124,8 +232,7 @@ public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
                 String type = (String) item.get(TYPE);
                 String id = (String) item.get(ID);
                 if (item.containsKey(ERROR)) {
-                    ElasticsearchException e = new ElasticsearchException(item.get(ERROR).toString());
-                    BulkItemResponse.Failure failure = new BulkItemResponse.Failure(index, type, id, e);
+                    BulkItemResponse.Failure failure = failure(item, index, type, id);
                     list.add(new BulkItemResponse(i++, INDEX_OP, failure));
                 } else {
                     int status = (Integer) item.get(STATUS);
@@ -140,8 +247,7 @@ public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
                 String type = (String) item.get(TYPE);
                 String id = (String) item.get(ID);
                 if (item.containsKey(ERROR)) {
-                    ElasticsearchException e = new ElasticsearchException(item.get(ERROR).toString());
-                    BulkItemResponse.Failure failure = new BulkItemResponse.Failure(index, type, id, e);
+                    BulkItemResponse.Failure failure = failure(item, index, type, id);
                     list.add(new BulkItemResponse(i++, CREATE_OP, failure));
                 } else {
                     int status = (Integer) item.get(STATUS);
@@ -156,8 +262,7 @@ public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
                 String type = (String) item.get(TYPE);
                 String id = (String) item.get(ID);
                 if (item.containsKey(ERROR)) {
-                    ElasticsearchException e = new ElasticsearchException(item.get(ERROR).toString());
-                    BulkItemResponse.Failure failure = new BulkItemResponse.Failure(index, type, id, e);
+                    BulkItemResponse.Failure failure = failure(item, index, type, id);
                     list.add(new BulkItemResponse(i++, DELETE_OP, failure));
                 } else {
                     int status = (Integer) item.get(STATUS);
@@ -171,6 +276,48 @@ public class HttpBulkAction extends HttpAction<BulkRequest, BulkResponse> {
         return list.toArray(new BulkItemResponse[list.size()]);
     }
 
+    /**
+     * Build the failure of an item with the status of the item, so rejected items can be told apart from
+     * other failures, e.g. for retries.
+     *
+     * @param item  the item
+     * @param index the index
+     * @param type  the type
+     * @param id    the ID
+     * @return the failure
+     */
+    private static BulkItemResponse.Failure failure(Map<String,?> item, String index, String type, String id) {
+        RestStatus status = RestStatus.INTERNAL_SERVER_ERROR;
+        Object code = item.get(STATUS);
+        if (code instanceof Number) {
+            for (RestStatus restStatus : RestStatus.values()) {
+                if (restStatus.getStatus() == ((Number) code).intValue()) {
+                    status = restStatus;
+                    break;
+                }
+            }
+        }
+        return new BulkItemResponse.Failure(index, type, id, new HttpItemException(item.get(ERROR).toString(), status));
+    }
+
+    /**
+     * The failure of a bulk item received over HTTP, with the status of the item.
+     */
+    static class HttpItemException extends ElasticsearchException {
+
+        private final RestStatus status;
+
+        HttpItemException(String msg, RestStatus status) {
+            super(msg);
+            this.status = status;
+        }
+
+        @Override
+        public RestStatus status() {
+            return status;
+        }
+    }
+
     private final static String INDEX = "_index";
     private final static String TYPE = "_type";
     private final static String ID = "_id";
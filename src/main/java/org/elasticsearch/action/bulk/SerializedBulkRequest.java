@@ -0,0 +1,243 @@
+package org.elasticsearch.action.bulk;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.util.BigArrays;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * A bulk request which writes the bulk content of its index, update and delete actions when they are added, into
+ * paged buffers of {@link BigArrays}. The HTTP bulk action sends this content as it is, instead of building it
+ * from the action requests.
+ *
+ * The action requests are not kept, so each document is held only once, as bulk content. For each action, the
+ * operation type, index, type and ID are kept together with the offset of the action in the bulk content, for
+ * reporting failures and for building the requests of retries by {@link #subset(int[], int)}. Therefore,
+ * {@link #requests()} is not supported.
+ *
+ * The buffers are recycled if the big arrays are backed by a page cache recycler, so the request must be
+ * closed after the response has been received.
+ */
+public class SerializedBulkRequest extends BulkRequest implements Releasable {
+
+    private final ReleasableBytesStreamOutput content;
+
+    private final Writer writer;
+
+    private String[] opTypes = new String[16];
+
+    private String[] indices = new String[16];
+
+    private String[] types = new String[16];
+
+    private String[] ids = new String[16];
+
+    /**
+     * The offsets of the actions in the bulk content, followed by the end of the last action.
+     */
+    private int[] offsets = new int[17];
+
+    private int count;
+
+    private ActionRequestValidationException validationException;
+
+    public SerializedBulkRequest(BigArrays bigArrays) {
+        this.content = new ReleasableBytesStreamOutput(bigArrays);
+        this.writer = new OutputStreamWriter(content, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    BulkRequest internalAdd(IndexRequest request, @Nullable Object payload) {
+        validate(request);
+        try {
+            HttpBulkAction.write(content, writer, request);
+        } catch (IOException e) {
+            throw new ElasticsearchException("unable to serialize index request", e);
+        }
+        added(request.opType().lowercase(), request.index(), request.type(), request.id(), payload);
+        return this;
+    }
+
+    @Override
+    BulkRequest internalAdd(UpdateRequest request, @Nullable Object payload) {
+        validate(request);
+        try {
+            HttpBulkAction.write(content, writer, request);
+        } catch (IOException e) {
+            throw new ElasticsearchException("unable to serialize update request", e);
+        }
+        added("update", request.index(), request.type(), request.id(), payload);
+        return this;
+    }
+
+    @Override
+    public BulkRequest add(DeleteRequest request, @Nullable Object payload) {
+        validate(request);
+        try {
+            HttpBulkAction.write(writer, request);
+        } catch (IOException e) {
+            throw new ElasticsearchException("unable to serialize delete request", e);
+        }
+        added("delete", request.index(), request.type(), request.id(), payload);
+        return this;
+    }
+
+    /**
+     * The actions are only kept as bulk content.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public List<ActionRequest> requests() {
+        throw new UnsupportedOperationException("the actions of a serialized bulk request are only kept as bulk content");
+    }
+
+    @Override
+    public int numberOfActions() {
+        return count;
+    }
+
+    @Override
+    public long estimatedSizeInBytes() {
+        return content.size();
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        if (count == 0) {
+            return addValidationError("no requests added", validationException);
+        }
+        return validationException;
+    }
+
+    /**
+     * Returns the operation type of an action, i.e. index, create, update or delete.
+     *
+     * @param position the position of the action
+     * @return the operation type
+     */
+    public String opType(int position) {
+        return opTypes[position];
+    }
+
+    /**
+     * Returns the index of an action.
+     *
+     * @param position the position of the action
+     * @return the index
+     */
+    public String index(int position) {
+        return indices[position];
+    }
+
+    /**
+     * Returns the type of an action.
+     *
+     * @param position the position of the action
+     * @return the type
+     */
+    public String type(int position) {
+        return types[position];
+    }
+
+    /**
+     * Returns the ID of an action, which is null for index actions with an ID generated by the server.
+     *
+     * @param position the position of the action
+     * @return the ID
+     */
+    public String id(int position) {
+        return ids[position];
+    }
+
+    /**
+     * Create a bulk request of some of the actions of this request, by copying their bulk content. The new
+     * request uses buffers which are not recycled.
+     *
+     * @param positions the positions of the actions
+     * @param n the number of positions
+     * @return the new bulk request
+     */
+    public SerializedBulkRequest subset(int[] positions, int n) {
+        SerializedBulkRequest request = new SerializedBulkRequest(BigArrays.NON_RECYCLING_INSTANCE);
+        request.consistencyLevel(consistencyLevel()).refresh(refresh()).timeout(timeout());
+        BytesReference bytes = content.bytes();
+        try {
+            for (int i = 0; i < n; i++) {
+                int position = positions[i];
+                bytes.slice(offsets[position], offsets[position + 1] - offsets[position]).writeTo(request.content);
+                request.added(opTypes[position], indices[position], types[position], ids[position],
+                        payloads != null ? payloads.get(position) : null);
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchException("unable to copy bulk content", e);
+        }
+        return request;
+    }
+
+    /**
+     * Returns the bulk content written so far.
+     *
+     * @return the bulk content
+     */
+    public BytesReference content() {
+        return content.bytes();
+    }
+
+    @Override
+    public void close() {
+        content.bytes().close();
+    }
+
+    private void validate(ActionRequest<?> request) {
+        ActionRequestValidationException e = request.validate();
+        if (e != null) {
+            for (String error : e.validationErrors()) {
+                validationException = addValidationError(error, validationException);
+            }
+        }
+    }
+
+    private void added(String opType, String index, String type, String id, @Nullable Object payload) {
+        if (count == ids.length) {
+            int size = count << 1;
+            opTypes = Arrays.copyOf(opTypes, size);
+            indices = Arrays.copyOf(indices, size);
+            types = Arrays.copyOf(types, size);
+            ids = Arrays.copyOf(ids, size);
+            offsets = Arrays.copyOf(offsets, size + 1);
+        }
+        opTypes[count] = opType;
+        indices[count] = index;
+        types[count] = type;
+        ids[count] = id;
+        if (payload != null && payloads == null) {
+            payloads = new ArrayList<>(count + 10);
+            for (int i = 0; i < count; i++) {
+                payloads.add(null);
+            }
+        }
+        if (payloads != null) {
+            payloads.add(payload);
+        }
+        count++;
+        offsets[count] = content.size();
+    }
+}
@@ -0,0 +1,404 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.VersionType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The metadata of an action line in the bulk format, like {@code {"index":{"_index":"test","_id":"1"}}}.
+ *
+ * Action lines in JSON are small and regular, so they are read by {@link #scan(byte[], int, int, String, String)},
+ * a scanner over the bytes which matches field names without creating strings. Lines the scanner does not
+ * handle, like escaped strings, fractions, or other content types than JSON, are read by
+ * {@link #parse(XContent, BytesReference, String, String)} with an XContent parser.
+ */
+final class ActionMetadata {
+
+    private static final int INDEX = 0;
+
+    private static final int TYPE = 1;
+
+    private static final int ID = 2;
+
+    private static final int ROUTING = 3;
+
+    private static final int PARENT = 4;
+
+    private static final int TIMESTAMP = 5;
+
+    private static final int TTL = 6;
+
+    private static final int OP_TYPE = 7;
+
+    private static final int VERSION = 8;
+
+    private static final int VERSION_TYPE = 9;
+
+    private static final int UNKNOWN = -1;
+
+    private static final String[] FIELD_NAMES = {
+            "_index", "_type", "_id", "_routing", "routing", "_parent", "parent", "_timestamp", "timestamp",
+            "_ttl", "ttl", "op_type", "opType", "_version", "version",
+            "_version_type", "_versionType", "version_type", "versionType"
+    };
+
+    private static final int[] FIELDS = {
+            INDEX, TYPE, ID, ROUTING, ROUTING, PARENT, PARENT, TIMESTAMP, TIMESTAMP,
+            TTL, TTL, OP_TYPE, OP_TYPE, VERSION, VERSION,
+            VERSION_TYPE, VERSION_TYPE, VERSION_TYPE, VERSION_TYPE
+    };
+
+    private static final byte[] DELETE = "delete".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[][] FIELD_BYTES = new byte[FIELD_NAMES.length][];
+
+    static {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            FIELD_BYTES[i] = FIELD_NAMES[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    String action;
+
+    String index;
+
+    String type;
+
+    String id;
+
+    String routing;
+
+    String parent;
+
+    String timestamp;
+
+    Long ttl;
+
+    String opType;
+
+    long version = Versions.MATCH_ANY;
+
+    VersionType versionType = VersionType.INTERNAL;
+
+    private ActionMetadata(@Nullable String defaultIndex, @Nullable String defaultType) {
+        this.index = defaultIndex;
+        this.type = defaultType;
+    }
+
+    /**
+     * Scan a JSON action line.
+     *
+     * @param bytes        the bytes
+     * @param from         the start of the line
+     * @param to           the end of the line, exclusive
+     * @param defaultIndex the default index
+     * @param defaultType  the default type
+     * @return the metadata, or null if the line must be parsed by {@link #parse(XContent, BytesReference, String, String)}
+     */
+    static ActionMetadata scan(byte[] bytes, int from, int to,
+                               @Nullable String defaultIndex, @Nullable String defaultType) {
+        ActionMetadata metadata = new ActionMetadata(defaultIndex, defaultType);
+        return new Scanner(bytes, from, to).scan(metadata) ? metadata : null;
+    }
+
+    /**
+     * Returns the number of source lines following a JSON action line, by reading the action name only.
+     *
+     * @param bytes the bytes
+     * @param from  the start of the line
+     * @param to    the end of the line, exclusive
+     * @return 0 for a delete action or an empty line, 1 for other actions, or -1 if the line can not be scanned
+     */
+    static int sourceLines(byte[] bytes, int from, int to) {
+        Scanner scanner = new Scanner(bytes, from, to);
+        scanner.skipWhitespace();
+        if (scanner.pos == to) {
+            return 0;
+        }
+        if (!scanner.next((byte) '{') || !scanner.string()) {
+            return -1;
+        }
+        return scanner.stop - scanner.start == DELETE.length &&
+                scanner.matches(DELETE) ? 0 : 1;
+    }
+
+    /**
+     * Parse an action line.
+     *
+     * @param xContent     the content type of the line
+     * @param line         the line
+     * @param defaultIndex the default index
+     * @param defaultType  the default type
+     * @return the metadata, or null if the line is empty
+     * @throws IOException if the line can not be parsed
+     */
+    static ActionMetadata parse(XContent xContent, BytesReference line,
+                                @Nullable String defaultIndex, @Nullable String defaultType) throws IOException {
+        XContentParser parser = xContent.createParser(line);
+        try {
+            // Move to START_OBJECT
+            XContentParser.Token token = parser.nextToken();
+            if (token == null) {
+                return null;
+            }
+            assert token == XContentParser.Token.START_OBJECT;
+            // Move to FIELD_NAME, that's the move
+            token = parser.nextToken();
+            assert token == XContentParser.Token.FIELD_NAME;
+            ActionMetadata metadata = new ActionMetadata(defaultIndex, defaultType);
+            metadata.action = parser.currentName();
+
+            // at this stage, next token can either be END_OBJECT (and use default index and type, with auto generated id)
+            // or START_OBJECT which will have another set of parameters
+
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (token.isValue()) {
+                    if ("_index".equals(currentFieldName)) {
+                        metadata.index = parser.text();
+                    } else if ("_type".equals(currentFieldName)) {
+                        metadata.type = parser.text();
+                    } else if ("_id".equals(currentFieldName)) {
+                        metadata.id = parser.text();
+                    } else if ("_routing".equals(currentFieldName) || "routing".equals(currentFieldName)) {
+                        metadata.routing = parser.text();
+                    } else if ("_parent".equals(currentFieldName) || "parent".equals(currentFieldName)) {
+                        metadata.parent = parser.text();
+                    } else if ("_timestamp".equals(currentFieldName) || "timestamp".equals(currentFieldName)) {
+                        metadata.timestamp = parser.text();
+                    } else if ("_ttl".equals(currentFieldName) || "ttl".equals(currentFieldName)) {
+                        if (parser.currentToken() == XContentParser.Token.VALUE_STRING) {
+                            metadata.ttl = TimeValue.parseTimeValue(parser.text(), null, currentFieldName).millis();
+                        } else {
+                            metadata.ttl = parser.longValue();
+                        }
+                    } else if ("op_type".equals(currentFieldName) || "opType".equals(currentFieldName)) {
+                        metadata.opType = parser.text();
+                    } else if ("_version".equals(currentFieldName) || "version".equals(currentFieldName)) {
+                        metadata.version = parser.longValue();
+                    } else if ("_version_type".equals(currentFieldName) || "_versionType".equals(currentFieldName) || "version_type".equals(currentFieldName) || "versionType".equals(currentFieldName)) {
+                        metadata.versionType = VersionType.fromString(parser.text());
+                    }
+                }
+            }
+            return metadata;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * A scanner for an action line of the form {@code {"action":{"field":value,...}}}, where the values are
+     * strings without escapes or integers.
+     */
+    private static class Scanner {
+
+        private final byte[] bytes;
+
+        private final int end;
+
+        private int pos;
+
+        private int start;
+
+        private int stop;
+
+        private long number;
+
+        Scanner(byte[] bytes, int from, int to) {
+            this.bytes = bytes;
+            this.pos = from;
+            this.end = to;
+        }
+
+        boolean scan(ActionMetadata metadata) {
+            if (!next((byte) '{') || !string()) {
+                return false;
+            }
+            metadata.action = text();
+            if (!next((byte) ':') || !next((byte) '{')) {
+                return false;
+            }
+            skipWhitespace();
+            if (pos < end && bytes[pos] == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    if (!string()) {
+                        return false;
+                    }
+                    int field = field();
+                    if (!next((byte) ':')) {
+                        return false;
+                    }
+                    skipWhitespace();
+                    if (pos >= end) {
+                        return false;
+                    }
+                    boolean isString = bytes[pos] == '"';
+                    if (isString ? !string() : !number()) {
+                        return false;
+                    }
+                    if (!assign(metadata, field, isString)) {
+                        return false;
+                    }
+                    skipWhitespace();
+                    if (pos >= end) {
+                        return false;
+                    }
+                    byte b = bytes[pos++];
+                    if (b == '}') {
+                        break;
+                    }
+                    if (b != ',') {
+                        return false;
+                    }
+                }
+            }
+            if (!next((byte) '}')) {
+                return false;
+            }
+            skipWhitespace();
+            return pos == end;
+        }
+
+        private boolean assign(ActionMetadata metadata, int field, boolean isString) {
+            switch (field) {
+                case INDEX:
+                    metadata.index = text();
+                    return true;
+                case TYPE:
+                    metadata.type = text();
+                    return true;
+                case ID:
+                    metadata.id = text();
+                    return true;
+                case ROUTING:
+                    metadata.routing = text();
+                    return true;
+                case PARENT:
+                    metadata.parent = text();
+                    return true;
+                case TIMESTAMP:
+                    metadata.timestamp = text();
+                    return true;
+                case TTL:
+                    metadata.ttl = isString ? TimeValue.parseTimeValue(text(), null, "_ttl").millis() : number;
+                    return true;
+                case OP_TYPE:
+                    metadata.opType = text();
+                    return true;
+                case VERSION:
+                    if (isString) {
+                        return false;
+                    }
+                    metadata.version = number;
+                    return true;
+                case VERSION_TYPE:
+                    metadata.versionType = VersionType.fromString(text());
+                    return true;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Match the last string against the known field names.
+         *
+         * @return the field, or UNKNOWN
+         */
+        private int field() {
+            int length = stop - start;
+            for (int i = 0; i < FIELD_BYTES.length; i++) {
+                byte[] name = FIELD_BYTES[i];
+                if (name.length == length && matches(name)) {
+                    return FIELDS[i];
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private boolean matches(byte[] name) {
+            for (int j = 0; j < name.length; j++) {
+                if (name[j] != bytes[start + j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String text() {
+            return new String(bytes, start, stop - start, StandardCharsets.UTF_8);
+        }
+
+        private boolean string() {
+            if (!next((byte) '"')) {
+                return false;
+            }
+            start = pos;
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b == '"') {
+                    stop = pos++;
+                    return true;
+                }
+                if (b == '\\' || (b >= 0 && b < 0x20)) {
+                    return false;
+                }
+                pos++;
+            }
+            return false;
+        }
+
+        private boolean number() {
+            start = pos;
+            boolean negative = pos < end && bytes[pos] == '-';
+            if (negative) {
+                pos++;
+            }
+            long value = 0L;
+            int digits = 0;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                value = value * 10 + (bytes[pos++] - '0');
+                digits++;
+            }
+            stop = pos;
+            if (digits == 0 || digits > 18) {
+                return false;
+            }
+            if (pos < end && (bytes[pos] == '.' || bytes[pos] == 'e' || bytes[pos] == 'E')) {
+                return false;
+            }
+            number = negative ? -value : value;
+            return true;
+        }
+
+        private boolean next(byte b) {
+            skipWhitespace();
+            if (pos < end && bytes[pos] == b) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return;
+                }
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A buffer of action requests in fixed size array chunks. The number of actions and their estimated size
+ * are kept in counters, so both are O(1). Taking actions moves whole chunks to the new buffer, and only the
+ * actions of a partially taken chunk are copied, so taken actions are neither polled one by one nor validated
+ * again.
+ *
+ * An action may have a listener, which is kept at the position of the action in a parallel array of its chunk,
+ * so listeners move with their actions and are found by position. The array of a chunk is allocated with the
+ * first listener of the chunk.
+ *
+ * The buffer is thread safe, all methods are guarded by the lock of the buffer.
+ */
+final class ActionRequestBuffer {
+
+    static final int REQUEST_OVERHEAD = 50;
+
+    private static final int CHUNK_SIZE = 256;
+
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+
+    private int size;
+
+    private long sizeInBytes;
+
+    private int listeners;
+
+    /**
+     * The estimated size of an action request.
+     *
+     * @param request the action request
+     * @return the estimated size in bytes
+     */
+    static long sizeOf(ActionRequest<?> request) {
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            return indexRequest.source() != null ? indexRequest.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
+        }
+        return REQUEST_OVERHEAD;
+    }
+
+    void add(ActionRequest<?> request) {
+        add(request, null);
+    }
+
+    /**
+     * Add an action with a listener.
+     *
+     * @param request  the action
+     * @param listener the listener, or null
+     */
+    synchronized void add(ActionRequest<?> request, Object listener) {
+        Chunk chunk = chunks.peekLast();
+        if (chunk == null || chunk.tail == CHUNK_SIZE) {
+            chunk = new Chunk();
+            chunks.addLast(chunk);
+        }
+        long bytes = sizeOf(request);
+        if (listener != null) {
+            if (chunk.listeners == null) {
+                chunk.listeners = new Object[CHUNK_SIZE];
+            }
+            chunk.listeners[chunk.tail] = listener;
+            chunk.listenerCount++;
+            listeners++;
+        }
+        chunk.requests[chunk.tail++] = request;
+        chunk.sizeInBytes += bytes;
+        size++;
+        sizeInBytes += bytes;
+    }
+
+    /**
+     * Move all actions of another buffer to the end of this buffer.
+     *
+     * @param buffer the other buffer
+     */
+    void add(ActionRequestBuffer buffer) {
+        if (buffer == this) {
+            return;
+        }
+        ActionRequestBuffer moved = buffer.take(Integer.MAX_VALUE);
+        synchronized (this) {
+            chunks.addAll(moved.chunks);
+            size += moved.size;
+            sizeInBytes += moved.sizeInBytes;
+            listeners += moved.listeners;
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Take actions from the head of the buffer.
+     *
+     * @param numRequests the maximum number of actions to take
+     * @return a new buffer with the actions taken
+     */
+    synchronized ActionRequestBuffer take(int numRequests) {
+        ActionRequestBuffer buffer = new ActionRequestBuffer();
+        int n = Math.min(numRequests, size);
+        while (n > 0) {
+            Chunk chunk = chunks.peekFirst();
+            int available = chunk.tail - chunk.head;
+            if (available <= n) {
+                // the whole rest of the chunk moves, the new buffer owns the chunk
+                chunks.pollFirst();
+                buffer.chunks.addLast(chunk);
+                buffer.size += available;
+                buffer.sizeInBytes += chunk.sizeInBytes;
+                buffer.listeners += chunk.listenerCount;
+                n -= available;
+            } else {
+                Chunk slice = new Chunk();
+                System.arraycopy(chunk.requests, chunk.head, slice.requests, 0, n);
+                for (int i = chunk.head; i < chunk.head + n; i++) {
+                    slice.sizeInBytes += sizeOf(chunk.requests[i]);
+                    chunk.requests[i] = null;
+                }
+                if (chunk.listeners != null) {
+                    for (int i = chunk.head; i < chunk.head + n; i++) {
+                        if (chunk.listeners[i] != null) {
+                            if (slice.listeners == null) {
+                                slice.listeners = new Object[CHUNK_SIZE];
+                            }
+                            slice.listeners[i - chunk.head] = chunk.listeners[i];
+                            chunk.listeners[i] = null;
+                            slice.listenerCount++;
+                        }
+                    }
+                    chunk.listenerCount -= slice.listenerCount;
+                    buffer.listeners += slice.listenerCount;
+                }
+                slice.tail = n;
+                chunk.head += n;
+                chunk.sizeInBytes -= slice.sizeInBytes;
+                buffer.chunks.addLast(slice);
+                buffer.size += n;
+                buffer.sizeInBytes += slice.sizeInBytes;
+                n = 0;
+            }
+        }
+        size -= buffer.size;
+        sizeInBytes -= buffer.sizeInBytes;
+        listeners -= buffer.listeners;
+        return buffer;
+    }
+
+    /**
+     * Returns the actions of the buffer.
+     *
+     * @return a snapshot of the actions in order
+     */
+    synchronized List<ActionRequest<?>> toList() {
+        List<ActionRequest<?>> list = new ArrayList<>(size);
+        for (Chunk chunk : chunks) {
+            for (int i = chunk.head; i < chunk.tail; i++) {
+                list.add(chunk.requests[i]);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the listeners of the actions of the buffer, by the positions of the actions.
+     *
+     * @return a snapshot of the listeners with null for actions without listener, or null if no action
+     * has a listener
+     */
+    synchronized Object[] listeners() {
+        if (listeners == 0) {
+            return null;
+        }
+        Object[] array = new Object[size];
+        int pos = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.listeners != null) {
+                System.arraycopy(chunk.listeners, chunk.head, array, pos, chunk.tail - chunk.head);
+            }
+            pos += chunk.tail - chunk.head;
+        }
+        return array;
+    }
+
+    private static class Chunk {
+
+        private final ActionRequest<?>[] requests = new ActionRequest<?>[CHUNK_SIZE];
+
+        private int head;
+
+        private int tail;
+
+        private long sizeInBytes;
+
+        private Object[] listeners;
+
+        private int listenerCount;
+    }
+}
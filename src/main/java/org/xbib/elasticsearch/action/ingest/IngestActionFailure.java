@@ -13,6 +13,8 @@ public class IngestActionFailure implements Streamable {
 
     private ShardId shardId;
 
+    private int position = -1;
+
     private String message;
 
     IngestActionFailure() {
@@ -24,6 +26,19 @@ public class IngestActionFailure implements Streamable {
         this.message = message;
     }
 
+    /**
+     * A failure of a single action.
+     *
+     * @param ingestId the ingest ID
+     * @param shardId  the shard ID, or null
+     * @param position the position of the action in its request
+     * @param message  the failure message
+     */
+    public IngestActionFailure(long ingestId, ShardId shardId, int position, String message) {
+        this(ingestId, shardId, message);
+        this.position = position;
+    }
+
     public static IngestActionFailure from(StreamInput in) throws IOException {
         IngestActionFailure itemFailure = new IngestActionFailure();
         itemFailure.readFrom(in);
@@ -38,6 +53,16 @@ public class IngestActionFailure implements Streamable {
         return shardId;
     }
 
+    /**
+     * Returns the position of the failed action. A failure returned by an ingest response has the position
+     * of the action in the ingest request, a failure of a leader shard the position in the shard request.
+     *
+     * @return the position, or -1 if the failure is not a failure of a single action
+     */
+    public int position() {
+        return position;
+    }
+
     public String message() {
         return message;
     }
@@ -48,6 +73,7 @@ public class IngestActionFailure implements Streamable {
         if (in.readBoolean()) {
             shardId = ShardId.readShardId(in);
         }
+        position = in.readInt();
         message = in.readString();
     }
 
@@ -60,10 +86,11 @@ public class IngestActionFailure implements Streamable {
         } else {
             out.writeBoolean(false);
         }
+        out.writeInt(position);
         out.writeString(message);
     }
 
     public String toString() {
-        return "[ingestId=" + ingestId + ",shardId=" + shardId + ",message=" + message + "]";
+        return "[ingestId=" + ingestId + ",shardId=" + shardId + ",position=" + position + ",message=" + message + "]";
     }
 }
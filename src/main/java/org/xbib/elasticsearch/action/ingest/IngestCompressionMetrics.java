@@ -0,0 +1,66 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.xbib.elasticsearch.common.CompressionPolicy;
+import org.xbib.metrics.MetricName;
+import org.xbib.metrics.MetricRegistry;
+import org.xbib.metrics.SettableGauge;
+
+/**
+ * The compression of the shard requests which this node sends to leader and replica shards. Requests above
+ * {@code action.ingest.compress_threshold} are compressed, and every n-th compressed request is sampled, with n
+ * given by {@code action.ingest.compress_sample_interval}.
+ *
+ * The metrics are registered in a metric registry of the node, by stage {@code leader} or {@code replica}:
+ * the counters {@code compressed_bytes} and {@code compression_nanos}, and the gauge {@code compression_ratio}
+ * of the last sample, e.g. {@code ingest.leader.compression_ratio}.
+ */
+public class IngestCompressionMetrics {
+
+    public final static String LEADER = "leader";
+
+    public final static String REPLICA = "replica";
+
+    private final static int DEFAULT_SAMPLE_INTERVAL = 100;
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private final ByteSizeValue threshold;
+
+    private final int sampleInterval;
+
+    @Inject
+    public IngestCompressionMetrics(Settings settings) {
+        this.threshold = settings.getAsBytesSize("action.ingest.compress_threshold", null);
+        this.sampleInterval = settings.getAsInt("action.ingest.compress_sample_interval", DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * The metric registry with the compression metrics of all stages.
+     *
+     * @return the metric registry
+     */
+    public MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    /**
+     * Create the compression policy of a stage, with its metrics registered.
+     *
+     * @param stage the stage, {@link #LEADER} or {@link #REPLICA}
+     * @return the compression policy, or null if no compression threshold is set
+     */
+    public CompressionPolicy compressionPolicy(String stage) {
+        if (threshold == null) {
+            return null;
+        }
+        MetricName ratioName = MetricRegistry.name("ingest", stage, "compression_ratio");
+        metricRegistry.remove(ratioName);
+        return new CompressionPolicy(threshold, sampleInterval,
+                metricRegistry.counter(MetricRegistry.name("ingest", stage, "compressed_bytes")),
+                metricRegistry.counter(MetricRegistry.name("ingest", stage, "compression_nanos")),
+                metricRegistry.register(ratioName, new SettableGauge<Double>()));
+    }
+}
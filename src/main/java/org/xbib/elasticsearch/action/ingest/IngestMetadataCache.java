@@ -0,0 +1,172 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.routing.OperationRouting;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A node level cache of the metadata for routing ingest actions, that is the concrete indices of aliases,
+ * the routing of aliases, the mappings of types, and the shards of indices. Ingest requests usually go to the
+ * same few indices or aliases, so the metadata is resolved once per cluster state instead of once per action.
+ *
+ * The cache is keyed by the version and the UUID of the cluster state, a new cluster state drops all entries.
+ * Failed resolutions are not cached.
+ */
+final class IngestMetadataCache {
+
+    private static final Object NONE = new Object();
+
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+
+    private final OperationRouting operationRouting;
+
+    private volatile Entry entry;
+
+    IngestMetadataCache(IndexNameExpressionResolver indexNameExpressionResolver, OperationRouting operationRouting) {
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.operationRouting = operationRouting;
+    }
+
+    /**
+     * Returns the cached metadata of a cluster state.
+     *
+     * @param state the cluster state
+     * @return the cached metadata
+     */
+    Entry get(ClusterState state) {
+        Entry e = entry;
+        if (e == null || e.version != state.version() || !e.stateUUID.equals(state.stateUUID())) {
+            e = new Entry(state);
+            entry = e;
+        }
+        return e;
+    }
+
+    /**
+     * Drop the cached metadata.
+     */
+    void invalidate() {
+        entry = null;
+    }
+
+    final class Entry {
+
+        private final ClusterState state;
+
+        private final long version;
+
+        private final String stateUUID;
+
+        private final ConcurrentMap<String, String> concreteIndices = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<String, Object> aliasRoutings = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<String, Object> mappings = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<String, ShardId[]> shardIds = new ConcurrentHashMap<>();
+
+        private Entry(ClusterState state) {
+            this.state = state;
+            this.version = state.version();
+            this.stateUUID = state.stateUUID();
+        }
+
+        ClusterState state() {
+            return state;
+        }
+
+        /**
+         * Resolve the concrete index of an action.
+         *
+         * @param request the action
+         * @return the concrete index
+         */
+        String concreteIndex(DocumentRequest<?> request) {
+            String concreteIndex = concreteIndices.get(request.index());
+            if (concreteIndex == null) {
+                concreteIndex = indexNameExpressionResolver.concreteSingleIndex(state, request);
+                concreteIndices.put(request.index(), concreteIndex);
+            }
+            return concreteIndex;
+        }
+
+        /**
+         * Resolve the routing of an action by the routing of an alias. Only the resolution without a routing
+         * of the action is cached.
+         *
+         * @param routing      the routing of the action, or null
+         * @param indexOrAlias the index or the alias
+         * @return the routing
+         */
+        String routing(@Nullable String routing, String indexOrAlias) {
+            if (routing != null) {
+                return state.metaData().resolveIndexRouting(routing, indexOrAlias);
+            }
+            Object aliasRouting = aliasRoutings.get(indexOrAlias);
+            if (aliasRouting == null) {
+                String resolved = state.metaData().resolveIndexRouting(null, indexOrAlias);
+                aliasRouting = resolved != null ? resolved : NONE;
+                aliasRoutings.put(indexOrAlias, aliasRouting);
+            }
+            return aliasRouting != NONE ? (String) aliasRouting : null;
+        }
+
+        /**
+         * Returns the mapping of a type, or the default mapping.
+         *
+         * @param concreteIndex the concrete index
+         * @param type          the type
+         * @return the mapping, or null
+         */
+        MappingMetaData mapping(String concreteIndex, String type) {
+            String key = concreteIndex + '/' + type;
+            Object mapping = mappings.get(key);
+            if (mapping == null) {
+                IndexMetaData indexMetaData = state.metaData().index(concreteIndex);
+                MappingMetaData mappingMetaData = indexMetaData != null ? indexMetaData.mappingOrDefault(type) : null;
+                mapping = mappingMetaData != null ? mappingMetaData : NONE;
+                mappings.put(key, mapping);
+            }
+            return mapping != NONE ? (MappingMetaData) mapping : null;
+        }
+
+        /**
+         * Returns the shards of a concrete index, by shard number.
+         *
+         * @param concreteIndex the concrete index
+         * @return the shards
+         */
+        ShardId[] shardIds(String concreteIndex) {
+            ShardId[] ids = shardIds.get(concreteIndex);
+            if (ids == null) {
+                ids = new ShardId[state.metaData().getIndices().get(concreteIndex).getNumberOfShards()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = new ShardId(concreteIndex, i);
+                }
+                shardIds.put(concreteIndex, ids);
+            }
+            return ids;
+        }
+
+        /**
+         * Returns the shard number of an action.
+         *
+         * @param concreteIndex the concrete index
+         * @param type          the type
+         * @param id            the ID
+         * @param routing       the routing
+         * @return the shard number
+         */
+        int shard(String concreteIndex, String type, String id, @Nullable String routing) {
+            return operationRouting.shardId(state, concreteIndex, type, id, routing).id();
+        }
+    }
+}
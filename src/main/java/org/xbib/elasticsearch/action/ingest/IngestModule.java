@@ -0,0 +1,14 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Binds the node services of the ingest action.
+ */
+public class IngestModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(IngestCompressionMetrics.class).asEagerSingleton();
+    }
+}
@@ -1,10 +1,12 @@
 package org.xbib.elasticsearch.action.ingest;
 
 import com.google.common.collect.Lists;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.CompositeIndicesRequest;
 import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.common.Nullable;
@@ -15,24 +17,26 @@ import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContent;
 import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.VersionType;
+import org.elasticsearch.common.xcontent.XContentType;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static org.elasticsearch.action.ValidateActions.addValidationError;
 
 public class IngestRequest extends ActionRequest<IngestRequest> implements CompositeIndicesRequest {
 
-    private static final int REQUEST_OVERHEAD = 50;
-
-    private final Queue<ActionRequest<?>> requests = newQueue();
-
-    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final ActionRequestBuffer requests;
 
     private TimeValue timeout = Consistency.DEFAULT_TIMEOUT;
 
@@ -40,6 +44,14 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
 
     private long ingestId;
 
+    public IngestRequest() {
+        this(new ActionRequestBuffer());
+    }
+
+    private IngestRequest(ActionRequestBuffer requests) {
+        this.requests = requests;
+    }
+
     public IngestRequest timeout(TimeValue timeout) {
         this.timeout = timeout;
         return this;
@@ -67,12 +79,24 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
         return ingestId;
     }
 
-    public Queue<ActionRequest<?>> newQueue() {
-        return new ConcurrentLinkedQueue<ActionRequest<?>>();
+    /**
+     * Returns the actions of this request.
+     *
+     * @return a snapshot of the actions
+     */
+    protected List<ActionRequest<?>> requests() {
+        return requests.toList();
     }
 
-    protected Queue<ActionRequest<?>> requests() {
-        return requests;
+    /**
+     * Create a queue for actions. Ingest requests no longer keep their actions in a queue, see {@link #requests()}.
+     *
+     * @return a new concurrent queue
+     * @deprecated the actions are kept in a chunked buffer, {@link #requests()} returns a list snapshot
+     */
+    @Deprecated
+    public Queue<ActionRequest<?>> newQueue() {
+        return new ConcurrentLinkedQueue<ActionRequest<?>>();
     }
 
     public IngestRequest add(ActionRequest<?>... requests) {
@@ -110,17 +134,100 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
         return internalAdd(request);
     }
 
+    /**
+     * Move all actions of another ingest request into this request.
+     *
+     * @param request the other request
+     * @return this request
+     */
+    public IngestRequest add(IngestRequest request) {
+        requests.add(request.requests);
+        return this;
+    }
+
     public IngestRequest add(DeleteRequest request) {
-        requests.offer(request);
-        sizeInBytes.addAndGet(REQUEST_OVERHEAD);
+        requests.add(request);
         return this;
     }
 
+    /**
+     * Add an index action with a listener for the item response of the action. Listeners are not sent with
+     * the request, they are kept at the position of the action and move with it.
+     *
+     * @param request  the index action
+     * @param listener the listener
+     * @return this request
+     */
+    public IngestRequest add(IndexRequest request, ActionListener<BulkItemResponse> listener) {
+        validate(request);
+        requests.add(request, listener);
+        return this;
+    }
+
+    /**
+     * Add a delete action with a listener for the item response of the action, see
+     * {@link #add(IndexRequest, ActionListener)}.
+     *
+     * @param request  the delete action
+     * @param listener the listener
+     * @return this request
+     */
+    public IngestRequest add(DeleteRequest request, ActionListener<BulkItemResponse> listener) {
+        requests.add(request, listener);
+        return this;
+    }
+
+    /**
+     * Returns the listeners of the actions, by the positions of the actions.
+     *
+     * @return the listeners with null for actions without listener, or null if no action has a listener
+     */
+    @SuppressWarnings("unchecked")
+    public List<ActionListener<BulkItemResponse>> itemListeners() {
+        Object[] listeners = requests.listeners();
+        return listeners != null ? (List<ActionListener<BulkItemResponse>>) (List<?>) Arrays.asList(listeners) : null;
+    }
+
+    /**
+     * Split the actions of this request into requests by partition key. The actions are moved in order and
+     * without being validated again, the new requests inherit timeout and consistency. This request is not
+     * changed.
+     *
+     * @param partitioner the partitioner
+     * @return the requests by partition key, in the order of the first action of each partition
+     */
+    public Map<String, IngestRequest> partition(Partitioner partitioner) {
+        Map<String, IngestRequest> partitions = new LinkedHashMap<>();
+        List<ActionRequest<?>> list = requests.toList();
+        Object[] listeners = requests.listeners();
+        for (int i = 0; i < list.size(); i++) {
+            ActionRequest<?> request = list.get(i);
+            String key = partitioner.partition(request);
+            IngestRequest partition = partitions.get(key);
+            if (partition == null) {
+                partition = new IngestRequest().timeout(timeout).requiredConsistency(requiredConsistency);
+                partitions.put(key, partition);
+            }
+            partition.append(request, listeners != null ? listeners[i] : null);
+        }
+        return partitions;
+    }
+
+    /**
+     * Append an action which has already been validated.
+     *
+     * @param request  the action
+     * @param listener the listener of the action, or null
+     */
+    void append(ActionRequest<?> request, Object listener) {
+        requests.add(request, listener);
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public List<? extends IndicesRequest> subRequests() {
         List<IndicesRequest> indicesRequests = Lists.newArrayList();
-        for (ActionRequest<?> request : requests) {
+        for (ActionRequest<?> request : requests.toList()) {
             assert request instanceof IndicesRequest;
             indicesRequests.add((IndicesRequest) request);
         }
@@ -133,17 +240,26 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
      * @return the number of actions
      */
     public int numberOfActions() {
-        // for ConcurrentLinkedList, this call is not O(n), and may not be the size of the current list
         return requests.size();
     }
 
+    /**
+     * The estimated size in bytes of an action in an ingest request.
+     *
+     * @param request the action
+     * @return the estimated byte size
+     */
+    public static long estimatedSizeInBytes(ActionRequest<?> request) {
+        return ActionRequestBuffer.sizeOf(request);
+    }
+
     /**
      * The estimated size in bytes of the ingest request.
      *
      * @return the estimated byte size
      */
     public long estimatedSizeInBytes() {
-        return sizeInBytes.longValue();
+        return requests.sizeInBytes();
     }
 
     /**
@@ -188,101 +304,100 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
         int from = 0;
         int length = data.length();
         byte marker = xContent.streamSeparator();
+        // JSON action lines are scanned directly in the backing array
+        byte[] array = data.hasArray() && xContent.type() == XContentType.JSON ? data.array() : null;
+        int offset = array != null ? data.arrayOffset() : 0;
         while (true) {
             int nextMarker = findNextMarker(marker, from, data, length);
             if (nextMarker == -1) {
                 break;
             }
-            // now parse the move
-            XContentParser parser = xContent.createParser(data.slice(from, nextMarker - from));
-            try {
-                // move pointers
-                from = nextMarker + 1;
-
-                // Move to START_OBJECT
-                XContentParser.Token token = parser.nextToken();
-                if (token == null) {
-                    continue;
+            ActionMetadata metadata = array != null ?
+                    ActionMetadata.scan(array, offset + from, offset + nextMarker, defaultIndex, defaultType) : null;
+            if (metadata == null) {
+                metadata = ActionMetadata.parse(xContent, data.slice(from, nextMarker - from), defaultIndex, defaultType);
+            }
+            // move pointers
+            from = nextMarker + 1;
+            if (metadata == null) {
+                continue;
+            }
+            if ("delete".equals(metadata.action)) {
+                add(new DeleteRequest(metadata.index, metadata.type, metadata.id).parent(metadata.parent)
+                        .version(metadata.version).versionType(metadata.versionType).routing(metadata.routing));
+            } else {
+                nextMarker = findNextMarker(marker, from, data, length);
+                if (nextMarker == -1) {
+                    break;
                 }
-                assert token == XContentParser.Token.START_OBJECT;
-                // Move to FIELD_NAME, that's the move
-                token = parser.nextToken();
-                assert token == XContentParser.Token.FIELD_NAME;
-                String action = parser.currentName();
-
-                String index = defaultIndex;
-                String type = defaultType;
-                String id = null;
-                String routing = null;
-                String parent = null;
-                String timestamp = null;
-                Long ttl = null;
-                String opType = null;
-                long version = 0;
-                VersionType versionType = VersionType.INTERNAL;
-
-                // at this stage, next token can either be END_OBJECT (and use default index and type, with auto generated id)
-                // or START_OBJECT which will have another set of parameters
-
-                String currentFieldName = null;
-                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
-                    if (token == XContentParser.Token.FIELD_NAME) {
-                        currentFieldName = parser.currentName();
-                    } else if (token.isValue()) {
-                        if ("_index".equals(currentFieldName)) {
-                            index = parser.text();
-                        } else if ("_type".equals(currentFieldName)) {
-                            type = parser.text();
-                        } else if ("_id".equals(currentFieldName)) {
-                            id = parser.text();
-                        } else if ("_routing".equals(currentFieldName) || "routing".equals(currentFieldName)) {
-                            routing = parser.text();
-                        } else if ("_parent".equals(currentFieldName) || "parent".equals(currentFieldName)) {
-                            parent = parser.text();
-                        } else if ("_timestamp".equals(currentFieldName) || "timestamp".equals(currentFieldName)) {
-                            timestamp = parser.text();
-                        } else if ("_ttl".equals(currentFieldName) || "ttl".equals(currentFieldName)) {
-                            if (parser.currentToken() == XContentParser.Token.VALUE_STRING) {
-                                ttl = TimeValue.parseTimeValue(parser.text(), null, currentFieldName).millis();
-                            } else {
-                                ttl = parser.longValue();
-                            }
-                        } else if ("op_type".equals(currentFieldName) || "opType".equals(currentFieldName)) {
-                            opType = parser.text();
-                        } else if ("_version".equals(currentFieldName) || "version".equals(currentFieldName)) {
-                            version = parser.longValue();
-                        } else if ("_version_type".equals(currentFieldName) || "_versionType".equals(currentFieldName) || "version_type".equals(currentFieldName) || "versionType".equals(currentFieldName)) {
-                            versionType = VersionType.fromString(parser.text());
-                        }
+                if ("index".equals(metadata.action)) {
+                    if (metadata.opType == null) {
+                        internalAdd(indexRequest(metadata)
+                                .source(data.slice(from, nextMarker - from)));
+                    } else {
+                        internalAdd(indexRequest(metadata)
+                                .create("create".equals(metadata.opType))
+                                .source(data.slice(from, nextMarker - from)));
                     }
+                } else if ("create".equals(metadata.action)) {
+                    internalAdd(indexRequest(metadata)
+                            .create(true)
+                            .source(data.slice(from, nextMarker - from)));
                 }
+                from = nextMarker + 1;
+            }
+        }
+        return this;
+    }
 
-                if ("delete".equals(action)) {
-                    add(new DeleteRequest(index, type, id).parent(parent).version(version).versionType(versionType).routing(routing));
-                } else {
-                    nextMarker = findNextMarker(marker, from, data, length);
-                    if (nextMarker == -1) {
-                        break;
-                    }
-                    if ("index".equals(action)) {
-                        if (opType == null) {
-                            internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).timestamp(timestamp).ttl(ttl).version(version).versionType(versionType)
-                                    .source(data.slice(from, nextMarker - from)));
-                        } else {
-                            internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).timestamp(timestamp).ttl(ttl).version(version).versionType(versionType)
-                                    .create("create".equals(opType))
-                                    .source(data.slice(from, nextMarker - from)));
-                        }
-                    } else if ("create".equals(action)) {
-                        internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).timestamp(timestamp).ttl(ttl).version(version).versionType(versionType)
-                                .create(true)
-                                .source(data.slice(from, nextMarker - from)));
-                    }
-                    from = nextMarker + 1;
+    /**
+     * Adds framed data in binary format, parsed in parallel. The data is split at action line boundaries
+     * into chunks of at least the given size, one chunk for each thread of the pool at most. The chunks are
+     * parsed concurrently, the first one by the calling thread, and their actions are added in the order of
+     * the data. Data which can not be split, because it is not JSON or too small, is parsed by the calling
+     * thread only.
+     *
+     * @param data         data
+     * @param defaultIndex the default index
+     * @param defaultType  the default type
+     * @param pool         the pool for parsing the chunks
+     * @param chunkSize    the minimum size of a chunk in bytes
+     * @return this request
+     * @throws Exception if data could not be added
+     */
+    public IngestRequest add(final BytesReference data, @Nullable final String defaultIndex, @Nullable final String defaultType,
+                             ForkJoinPool pool, long chunkSize) throws Exception {
+        int chunks = (int) Math.min(pool.getParallelism(), data.length() / Math.max(1L, chunkSize));
+        int[] boundaries = chunks > 1 && data.hasArray() && XContentFactory.xContentType(data) == XContentType.JSON ?
+                split(data, chunks) : null;
+        if (boundaries == null) {
+            return add(data, defaultIndex, defaultType);
+        }
+        List<ForkJoinTask<IngestRequest>> tasks = new ArrayList<>(boundaries.length - 2);
+        for (int i = 1; i < boundaries.length - 1; i++) {
+            final BytesReference chunk = data.slice(boundaries[i], boundaries[i + 1] - boundaries[i]);
+            tasks.add(pool.submit(new Callable<IngestRequest>() {
+                @Override
+                public IngestRequest call() throws Exception {
+                    return new IngestRequest().add(chunk, defaultIndex, defaultType);
                 }
-            } finally {
-                parser.close();
+            }));
+        }
+        try {
+            add(new IngestRequest().add(data.slice(0, boundaries[1]), defaultIndex, defaultType));
+            for (ForkJoinTask<IngestRequest> task : tasks) {
+                add(task.get());
+            }
+        } catch (ExecutionException e) {
+            for (ForkJoinTask<IngestRequest> task : tasks) {
+                task.cancel(false);
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (Exception e) {
+            for (ForkJoinTask<IngestRequest> task : tasks) {
+                task.cancel(false);
             }
+            throw e;
         }
         return this;
     }
@@ -293,44 +408,18 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
      * @return a bulk request
      */
     public IngestRequest takeAll() {
-        IngestRequest request = new IngestRequest();
-        while (!requests.isEmpty()) {
-            ActionRequest<?> actionRequest = requests.poll();
-            request.add(actionRequest);
-            if (actionRequest instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) actionRequest;
-                long length = indexRequest.source() != null ? indexRequest.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
-                sizeInBytes.addAndGet(-length);
-            } else if (actionRequest instanceof DeleteRequest) {
-                sizeInBytes.addAndGet(REQUEST_OVERHEAD);
-            }
-        }
-        return request;
+        return take(Integer.MAX_VALUE);
     }
 
     /**
-     * Take a number of requests from the bulk request queue.
-     * This method is thread safe.
+     * Take a number of requests from the bulk request queue. The requests are moved without being
+     * validated again. This method is thread safe.
      *
      * @param numRequests number of requests
      * @return a partial bulk request
      */
     public IngestRequest take(int numRequests) {
-        IngestRequest request = new IngestRequest();
-        for (int i = 0; i < numRequests; i++) {
-            ActionRequest<?> actionRequest = requests.poll();
-            request.add(actionRequest);
-            if (actionRequest instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) actionRequest;
-                long length = indexRequest.source() != null ? indexRequest.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
-                sizeInBytes.addAndGet(-length);
-            } else if (actionRequest instanceof DeleteRequest) {
-                sizeInBytes.addAndGet(REQUEST_OVERHEAD);
-            } else {
-                throw new IllegalStateException("action request not supported: " + actionRequest.getClass().getName());
-            }
-        }
-        return request;
+        return new IngestRequest(requests.take(numRequests));
     }
 
     @Override
@@ -339,7 +428,7 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
         if (requests.isEmpty()) {
             validationException = addValidationError("no requests added", null);
         }
-        for (ActionRequest<?> request : requests) {
+        for (ActionRequest<?> request : requests.toList()) {
             if (request == null) {
                 validationException = addValidationError("null request added", null);
             } else {
@@ -378,8 +467,9 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
     public void writeTo(StreamOutput out) throws IOException {
         timeout.writeTo(out);
         out.writeLong(ingestId);
-        out.writeVInt(requests.size());
-        for (ActionRequest<?> request : requests) {
+        List<ActionRequest<?>> list = requests.toList();
+        out.writeVInt(list.size());
+        for (ActionRequest<?> request : list) {
             if (request instanceof IndexRequest) {
                 out.writeByte((byte) 0);
             } else if (request instanceof DeleteRequest) {
@@ -390,6 +480,12 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
     }
 
     IngestRequest internalAdd(IndexRequest request) {
+        validate(request);
+        requests.add(request);
+        return this;
+    }
+
+    private static void validate(IndexRequest request) {
         if (request == null) {
             ActionRequestValidationException e = new ActionRequestValidationException();
             e.addValidationError("request must not be null");
@@ -399,12 +495,80 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
         if (validationException != null) {
             throw validationException;
         }
-        requests.offer(request);
-        sizeInBytes.addAndGet(request.source().length() + REQUEST_OVERHEAD);
-        return this;
+    }
+
+    private static IndexRequest indexRequest(ActionMetadata metadata) {
+        IndexRequest request = new IndexRequest(metadata.index, metadata.type, metadata.id).routing(metadata.routing)
+                .parent(metadata.parent).timestamp(metadata.timestamp)
+                .version(metadata.version).versionType(metadata.versionType);
+        // do not unbox a missing ttl
+        if (metadata.ttl != null) {
+            request.ttl(metadata.ttl);
+        }
+        return request;
+    }
+
+    /**
+     * Find the offsets of action lines which split the data into chunks of about equal size. Only the action
+     * names are read, to skip the source lines.
+     *
+     * @param data   the data
+     * @param chunks the number of chunks
+     * @return the offsets of the chunks, starting with 0 and ending with the length of the data,
+     * or null if the data can not be split
+     */
+    private int[] split(BytesReference data, int chunks) {
+        byte[] array = data.array();
+        int offset = data.arrayOffset();
+        int length = data.length();
+        byte marker = XContentType.JSON.xContent().streamSeparator();
+        int step = length / chunks;
+        List<Integer> boundaries = new ArrayList<>(chunks + 1);
+        boundaries.add(0);
+        int from = 0;
+        while (from < length) {
+            if (from >= boundaries.size() * step && boundaries.size() < chunks) {
+                boundaries.add(from);
+            }
+            int nextMarker = findNextMarker(marker, from, data, length);
+            if (nextMarker == -1) {
+                break;
+            }
+            int sourceLines = ActionMetadata.sourceLines(array, offset + from, offset + nextMarker);
+            if (sourceLines < 0) {
+                return null;
+            }
+            from = nextMarker + 1;
+            if (sourceLines > 0) {
+                nextMarker = findNextMarker(marker, from, data, length);
+                if (nextMarker == -1) {
+                    break;
+                }
+                from = nextMarker + 1;
+            }
+        }
+        if (boundaries.size() < 2) {
+            return null;
+        }
+        int[] offsets = new int[boundaries.size() + 1];
+        for (int i = 0; i < boundaries.size(); i++) {
+            offsets[i] = boundaries.get(i);
+        }
+        offsets[boundaries.size()] = length;
+        return offsets;
     }
 
     private int findNextMarker(byte marker, int from, BytesReference data, int length) {
+        if (data.hasArray()) {
+            byte[] array = data.array();
+            int offset = data.arrayOffset();
+            for (int i = offset + from; i < offset + length; i++) {
+                if (array[i] == marker) {
+                    return i - offset;
+                }
+            }
+            return -1;
+        }
         for (int i = from; i < length; i++) {
             if (data.get(i) == marker) {
                 return i;
@@ -412,4 +576,12 @@ public class IngestRequest extends ActionRequest<IngestRequest> implements Compo
         }
         return -1;
     }
+
+    /**
+     * Computes the partition key of an action.
+     */
+    public interface Partitioner {
+
+        String partition(ActionRequest<?> request);
+    }
 }
@@ -0,0 +1,194 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads data in the bulk format as segments of complete actions, so the actions can be parsed and sent
+ * while the rest of the data is read. A segment ends after an action, the action line and the source line
+ * of an index or create action are never cut apart. A segment is at least as large as the segment size,
+ * unless the data ends, and larger only by the last action.
+ *
+ * Read from a stream, each segment is a new array, so the heap held by the reader is bounded by about
+ * twice the segment size plus the largest action. Read from a reference with an array, the segments are
+ * slices without copying.
+ *
+ * Only JSON action lines are scanned. If an action line can not be scanned, the rest of the data is
+ * returned as one segment for the parser.
+ */
+public class IngestStreamReader {
+
+    private static final byte MARKER = XContentType.JSON.xContent().streamSeparator();
+
+    private final InputStream in;
+
+    private final int segmentSize;
+
+    private byte[] buf;
+
+    private int start;
+
+    private int end;
+
+    private int scan;
+
+    private int cut;
+
+    private int searched;
+
+    private boolean expectSource;
+
+    private boolean eof;
+
+    /**
+     * Create a reader of a stream.
+     *
+     * @param in          the stream
+     * @param segmentSize the minimum size of a segment in bytes
+     */
+    public IngestStreamReader(InputStream in, int segmentSize) {
+        this.in = in;
+        this.segmentSize = Math.max(segmentSize, 1);
+        this.buf = new byte[this.segmentSize];
+    }
+
+    /**
+     * Create a reader of data in memory.
+     *
+     * @param data        the data
+     * @param segmentSize the minimum size of a segment in bytes
+     */
+    public IngestStreamReader(BytesReference data, int segmentSize) {
+        this.in = null;
+        this.segmentSize = Math.max(segmentSize, 1);
+        BytesReference array = data.hasArray() ? data : data.toBytesArray();
+        this.buf = array.array();
+        this.start = array.arrayOffset();
+        this.end = start + array.length();
+        this.scan = start;
+        this.cut = start;
+        this.searched = start;
+        this.eof = true;
+    }
+
+    /**
+     * Returns the next segment of complete actions.
+     *
+     * @return the segment, or null at the end of the data
+     * @throws IOException if the stream can not be read
+     */
+    public BytesReference nextSegment() throws IOException {
+        while (true) {
+            if (!scan()) {
+                // an action line which can not be scanned, leave the rest to the parser
+                readFully();
+                cut = end;
+                return segment();
+            }
+            if (cut - start >= segmentSize) {
+                return segment();
+            }
+            if (eof) {
+                // the rest, a missing line is handled by the parser
+                cut = end;
+                return cut > start ? segment() : null;
+            }
+            read();
+        }
+    }
+
+    /**
+     * Scan the complete lines after the last scanned line, until the segment is complete.
+     *
+     * @return false if an action line can not be scanned
+     */
+    private boolean scan() {
+        while (cut - start < segmentSize) {
+            // do not search an incomplete line again after each read
+            int nextMarker = findNextMarker(Math.max(scan, searched));
+            if (nextMarker == -1) {
+                searched = end;
+                return true;
+            }
+            if (expectSource) {
+                expectSource = false;
+                cut = nextMarker + 1;
+            } else {
+                int sourceLines = ActionMetadata.sourceLines(buf, scan, nextMarker);
+                if (sourceLines < 0) {
+                    return false;
+                }
+                if (sourceLines == 0) {
+                    cut = nextMarker + 1;
+                } else {
+                    expectSource = true;
+                }
+            }
+            scan = nextMarker + 1;
+        }
+        return true;
+    }
+
+    private BytesReference segment() {
+        BytesReference segment = new BytesArray(buf, start, cut - start);
+        if (eof) {
+            start = cut;
+            return segment;
+        }
+        // the segment keeps the array, move the incomplete rest into a new one
+        byte[] rest = new byte[Math.max(segmentSize, 2 * (end - cut))];
+        System.arraycopy(buf, cut, rest, 0, end - cut);
+        scan -= cut;
+        searched = Math.max(searched - cut, 0);
+        end -= cut;
+        start = 0;
+        cut = 0;
+        buf = rest;
+        return segment;
+    }
+
+    private void read() throws IOException {
+        if (end == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0) {
+            eof = true;
+        } else {
+            end += n;
+        }
+    }
+
+    private void readFully() throws IOException {
+        if (eof) {
+            return;
+        }
+        BytesStreamOutput out = new BytesStreamOutput(Math.max(end - start, segmentSize) * 2);
+        out.write(buf, start, end - start);
+        byte[] b = new byte[8192];
+        int n;
+        while ((n = in.read(b)) != -1) {
+            out.write(b, 0, n);
+        }
+        BytesReference rest = out.bytes().toBytesArray();
+        buf = rest.array();
+        start = rest.arrayOffset();
+        end = start + rest.length();
+        eof = true;
+    }
+
+    private int findNextMarker(int from) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == MARKER) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
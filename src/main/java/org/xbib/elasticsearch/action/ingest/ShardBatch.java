@@ -0,0 +1,272 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The actions of an ingest request for a single shard, in a columnar wire format.
+ *
+ * All actions of a batch belong to the index of the shard, so the index is not written per action. The
+ * operations, flags, versions and version types are written as primitive columns, types, routings and
+ * parents by a string table, because they repeat, and the sources as one contiguous block. When read from
+ * the transport, the sources are slices of the block, without copying.
+ *
+ * The flag of an auto generated ID can not be set on an index request, so it is kept by the batch,
+ * see {@link #autoGeneratedId(int)}.
+ */
+public class ShardBatch {
+
+    private static final byte NONE = 0;
+
+    private static final byte INDEX = 1;
+
+    private static final byte CREATE = 2;
+
+    private static final byte DELETE = 3;
+
+    private static final int ID = 1;
+
+    private static final int ROUTING = 2;
+
+    private static final int PARENT = 4;
+
+    private static final int TIMESTAMP = 8;
+
+    private static final int TTL = 16;
+
+    private static final int AUTO_GENERATED_ID = 32;
+
+    /**
+     * Versions are written as unsigned numbers, from the lowest special version on.
+     */
+    private static final long VERSION_OFFSET = 4L;
+
+    private final List<ActionRequest<?>> requests;
+
+    private final boolean[] autoGeneratedIds;
+
+    /**
+     * Create a batch of actions.
+     *
+     * @param requests the actions, a list with random access
+     */
+    public ShardBatch(List<ActionRequest<?>> requests) {
+        this.requests = requests;
+        this.autoGeneratedIds = new boolean[requests.size()];
+        for (int i = 0; i < autoGeneratedIds.length; i++) {
+            ActionRequest<?> request = requests.get(i);
+            autoGeneratedIds[i] = request instanceof IndexRequest && ((IndexRequest) request).autoGeneratedId();
+        }
+    }
+
+    private ShardBatch(List<ActionRequest<?>> requests, boolean[] autoGeneratedIds) {
+        this.requests = requests;
+        this.autoGeneratedIds = autoGeneratedIds;
+    }
+
+    public List<ActionRequest<?>> requests() {
+        return requests;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    public ActionRequest<?> get(int i) {
+        return requests.get(i);
+    }
+
+    /**
+     * Returns true if the ID of an index action has been generated.
+     *
+     * @param i the position of the action
+     * @return true if the ID has been generated
+     */
+    public boolean autoGeneratedId(int i) {
+        return autoGeneratedIds[i];
+    }
+
+    public void writeTo(StreamOutput out) throws IOException {
+        int size = requests.size();
+        out.writeVInt(size);
+        byte[] ops = new byte[size];
+        byte[] flags = new byte[size];
+        Map<String, Integer> ordinals = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        long sourceBytes = 0L;
+        for (int i = 0; i < size; i++) {
+            ActionRequest<?> request = requests.get(i);
+            int flag = 0;
+            if (request == null) {
+                ops[i] = NONE;
+                continue;
+            } else if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                ops[i] = indexRequest.opType() == IndexRequest.OpType.CREATE ? CREATE : INDEX;
+                ordinal(indexRequest.type(), ordinals, strings);
+                flag |= indexRequest.id() != null ? ID : 0;
+                flag |= ordinal(indexRequest.routing(), ordinals, strings) >= 0 ? ROUTING : 0;
+                flag |= ordinal(indexRequest.parent(), ordinals, strings) >= 0 ? PARENT : 0;
+                flag |= indexRequest.timestamp() != null ? TIMESTAMP : 0;
+                flag |= indexRequest.ttl() != null ? TTL : 0;
+                flag |= autoGeneratedIds[i] ? AUTO_GENERATED_ID : 0;
+                sourceBytes += indexRequest.source() != null ? indexRequest.source().length() : 0;
+            } else if (request instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) request;
+                ops[i] = DELETE;
+                ordinal(deleteRequest.type(), ordinals, strings);
+                flag |= deleteRequest.id() != null ? ID : 0;
+                flag |= ordinal(deleteRequest.routing(), ordinals, strings) >= 0 ? ROUTING : 0;
+            } else {
+                throw new ElasticsearchException("action request not supported: " + request.getClass().getName());
+            }
+            flags[i] = (byte) flag;
+        }
+        if (sourceBytes > Integer.MAX_VALUE) {
+            throw new ElasticsearchException("shard batch sources too large: " + sourceBytes);
+        }
+        out.writeBytes(ops);
+        out.writeBytes(flags);
+        out.writeVInt(strings.size());
+        for (String s : strings) {
+            out.writeString(s);
+        }
+        for (int i = 0; i < size; i++) {
+            ActionRequest<?> request = requests.get(i);
+            if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                out.writeVInt(ordinals.get(indexRequest.type()));
+                if ((flags[i] & ID) != 0) {
+                    out.writeString(indexRequest.id());
+                }
+                if ((flags[i] & ROUTING) != 0) {
+                    out.writeVInt(ordinals.get(indexRequest.routing()));
+                }
+                if ((flags[i] & PARENT) != 0) {
+                    out.writeVInt(ordinals.get(indexRequest.parent()));
+                }
+                if ((flags[i] & TIMESTAMP) != 0) {
+                    out.writeString(indexRequest.timestamp());
+                }
+                if ((flags[i] & TTL) != 0) {
+                    out.writeVLong(indexRequest.ttl().millis());
+                }
+                writeVersion(out, indexRequest.version(), indexRequest.versionType());
+                out.writeVInt(indexRequest.source() != null ? indexRequest.source().length() : 0);
+            } else if (request instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) request;
+                out.writeVInt(ordinals.get(deleteRequest.type()));
+                if ((flags[i] & ID) != 0) {
+                    out.writeString(deleteRequest.id());
+                }
+                if ((flags[i] & ROUTING) != 0) {
+                    out.writeVInt(ordinals.get(deleteRequest.routing()));
+                }
+                writeVersion(out, deleteRequest.version(), deleteRequest.versionType());
+            }
+        }
+        // one contiguous block of sources
+        out.writeVInt((int) sourceBytes);
+        for (ActionRequest<?> request : requests) {
+            if (request instanceof IndexRequest && ((IndexRequest) request).source() != null) {
+                ((IndexRequest) request).source().writeTo(out);
+            }
+        }
+    }
+
+    public static ShardBatch readFrom(StreamInput in, String index) throws IOException {
+        int size = in.readVInt();
+        byte[] ops = new byte[size];
+        in.readBytes(ops, 0, size);
+        byte[] flags = new byte[size];
+        in.readBytes(flags, 0, size);
+        String[] strings = new String[in.readVInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+        List<ActionRequest<?>> requests = new ArrayList<>(size);
+        boolean[] autoGeneratedIds = new boolean[size];
+        int[] sourceLengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            int flag = flags[i];
+            if (ops[i] == NONE) {
+                requests.add(null);
+            } else if (ops[i] == DELETE) {
+                DeleteRequest deleteRequest = new DeleteRequest(index, strings[in.readVInt()],
+                        (flag & ID) != 0 ? in.readString() : null);
+                if ((flag & ROUTING) != 0) {
+                    deleteRequest.routing(strings[in.readVInt()]);
+                }
+                deleteRequest.version(readVersion(in)).versionType(VersionType.fromValue(in.readByte()));
+                requests.add(deleteRequest);
+            } else {
+                IndexRequest indexRequest = new IndexRequest(index, strings[in.readVInt()],
+                        (flag & ID) != 0 ? in.readString() : null);
+                if ((flag & ROUTING) != 0) {
+                    indexRequest.routing(strings[in.readVInt()]);
+                }
+                if ((flag & PARENT) != 0) {
+                    indexRequest.parent(strings[in.readVInt()]);
+                }
+                if ((flag & TIMESTAMP) != 0) {
+                    indexRequest.timestamp(in.readString());
+                }
+                if ((flag & TTL) != 0) {
+                    indexRequest.ttl(TimeValue.timeValueMillis(in.readVLong()));
+                }
+                indexRequest.version(readVersion(in)).versionType(VersionType.fromValue(in.readByte()));
+                indexRequest.create(ops[i] == CREATE);
+                autoGeneratedIds[i] = (flag & AUTO_GENERATED_ID) != 0;
+                sourceLengths[i] = in.readVInt();
+                requests.add(indexRequest);
+            }
+        }
+        BytesReference sources = in.readBytesReference();
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            if (ops[i] == INDEX || ops[i] == CREATE) {
+                ((IndexRequest) requests.get(i)).source(sources.slice(offset, sourceLengths[i]));
+                offset += sourceLengths[i];
+            }
+        }
+        return new ShardBatch(requests, autoGeneratedIds);
+    }
+
+    private static int ordinal(String s, Map<String, Integer> ordinals, List<String> strings) {
+        if (s == null) {
+            return -1;
+        }
+        Integer ordinal = ordinals.get(s);
+        if (ordinal == null) {
+            ordinal = strings.size();
+            ordinals.put(s, ordinal);
+            strings.add(s);
+        }
+        return ordinal;
+    }
+
+    private static void writeVersion(StreamOutput out, long version, VersionType versionType) throws IOException {
+        if (version < -VERSION_OFFSET) {
+            throw new ElasticsearchException("version not supported: " + version);
+        }
+        out.writeVLong(version + VERSION_OFFSET);
+        out.writeByte(versionType.getValue());
+    }
+
+    private static long readVersion(StreamInput in) throws IOException {
+        return in.readVLong() - VERSION_OFFSET;
+    }
+}
@@ -15,8 +15,8 @@ import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
-import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.threadpool.ThreadPool;
@@ -27,8 +27,12 @@ import org.xbib.elasticsearch.action.ingest.leader.TransportLeaderShardIngestAct
 import org.xbib.elasticsearch.action.ingest.replica.IngestReplicaShardRequest;
 import org.xbib.elasticsearch.action.ingest.replica.TransportReplicaShardIngestAction;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -43,6 +47,10 @@ public class TransportIngestAction extends HandledTransportAction<IngestRequest,
 
     private final TransportReplicaShardIngestAction replicaShardIngestAction;
 
+    private final IngestMetadataCache metadataCache;
+
+    private final int pipelineSize;
+
     @Inject
     public TransportIngestAction(Settings settings, ThreadPool threadPool,
                                  TransportService transportService, ClusterService clusterService,
@@ -55,6 +63,8 @@ public class TransportIngestAction extends HandledTransportAction<IngestRequest,
         this.leaderShardIngestAction = leaderShardIngestAction;
         this.replicaShardIngestAction = replicaShardIngestAction;
         this.allowIdGeneration = this.settings.getAsBoolean("action.allow_id_generation", true);
+        this.pipelineSize = this.settings.getAsInt("action.ingest.pipeline_size", 1000);
+        this.metadataCache = new IngestMetadataCache(indexNameExpressionResolver, clusterService.operationRouting());
     }
 
     @Override
@@ -69,58 +79,61 @@ public class TransportIngestAction extends HandledTransportAction<IngestRequest,
             listener.onFailure(e);
             return;
         }
-        final ConcreteIndices concreteIndices = new ConcreteIndices(clusterState, indexNameExpressionResolver);
-        MetaData metaData = clusterState.metaData();
-        final List<ActionRequest<?>> requests = new LinkedList<>();
+        // resolve and route all requests in a single pass, by the cached metadata of the cluster state
+        final IngestMetadataCache.Entry metadata = metadataCache.get(clusterState);
+        final int numberOfActions = ingestRequest.numberOfActions();
+        Map<String, ShardActions[]> requestsByIndex = new HashMap<>();
+        int position = -1;
         for (ActionRequest<?> request : ingestRequest.requests()) {
-            String concreteIndex = concreteIndices.resolveIfAbsent((DocumentRequest)request);
+            position++;
+            String concreteIndex = metadata.concreteIndex((DocumentRequest) request);
+            String type;
+            String id;
+            String routing;
             if (request instanceof IndexRequest) {
                 try {
                     IndexRequest indexRequest = (IndexRequest) request;
-                    indexRequest.routing(metaData.resolveIndexRouting(indexRequest.routing(), concreteIndex));
+                    indexRequest.routing(metadata.routing(indexRequest.routing(), concreteIndex));
                     indexRequest.index(concreteIndex);
-                    MappingMetaData mappingMd = null;
-                    if (metaData.hasIndex(concreteIndex)) {
-                        mappingMd = metaData.index(concreteIndex).mappingOrDefault(indexRequest.type());
-                    }
-                    indexRequest.process(metaData, mappingMd, allowIdGeneration, concreteIndex);
-                    requests.add(indexRequest);
+                    MappingMetaData mappingMd = metadata.mapping(concreteIndex, indexRequest.type());
+                    indexRequest.process(clusterState.metaData(), mappingMd, allowIdGeneration, concreteIndex);
+                    type = indexRequest.type();
+                    id = indexRequest.id();
+                    routing = indexRequest.routing();
                 } catch (Throwable e) {
                     logger.error(e.getMessage(), e);
-                    ingestResponse.addFailure(new IngestActionFailure(-1L, null, ExceptionsHelper.detailedMessage(e)));
+                    ingestResponse.addFailure(new IngestActionFailure(-1L, null, position, ExceptionsHelper.detailedMessage(e)));
+                    continue;
                 }
             } else if (request instanceof DeleteRequest) {
                 DeleteRequest deleteRequest = (DeleteRequest) request;
-                deleteRequest.routing(metaData.resolveIndexRouting(deleteRequest.routing(), concreteIndex));
+                deleteRequest.routing(metadata.routing(deleteRequest.routing(), concreteIndex));
                 deleteRequest.index(concreteIndex);
-                requests.add(deleteRequest);
+                type = deleteRequest.type();
+                id = deleteRequest.id();
+                routing = deleteRequest.routing();
             } else {
                 throw new ElasticsearchException("action request not known: " + request.getClass().getName());
             }
+            ShardActions[] shards = requestsByIndex.get(concreteIndex);
+            if (shards == null) {
+                shards = new ShardActions[metadata.shardIds(concreteIndex).length];
+                requestsByIndex.put(concreteIndex, shards);
+            }
+            int shard = metadata.shard(concreteIndex, type, id, routing);
+            if (shards[shard] == null) {
+                shards[shard] = new ShardActions(numberOfActions / shards.length + 1);
+            }
+            shards[shard].add(request, position);
         }
-        // second, go over all the requests and create a shard request map
-        Map<ShardId, List<ActionRequest<?>>> requestsByShard = new HashMap<>();
-        for (ActionRequest<?> request : requests) {
-            if (request instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) request;
-                String concreteIndex = concreteIndices.getConcreteIndex(indexRequest.index());
-                ShardId shardId = clusterService.operationRouting().indexShards(clusterState, concreteIndex, indexRequest.type(), indexRequest.id(), indexRequest.routing()).shardId();
-                List<ActionRequest<?>> list = requestsByShard.get(shardId);
-                if (list == null) {
-                    list = new LinkedList<>();
-                    requestsByShard.put(shardId, list);
+        Map<ShardId, ShardActions> requestsByShard = new HashMap<>();
+        for (Map.Entry<String, ShardActions[]> entry : requestsByIndex.entrySet()) {
+            ShardId[] shardIds = metadata.shardIds(entry.getKey());
+            ShardActions[] shards = entry.getValue();
+            for (int i = 0; i < shards.length; i++) {
+                if (shards[i] != null) {
+                    requestsByShard.put(shardIds[i], shards[i]);
                 }
-                list.add(request);
-            } else if (request instanceof DeleteRequest) {
-                DeleteRequest deleteRequest = (DeleteRequest) request;
-                String concreteIndex = concreteIndices.getConcreteIndex(deleteRequest.index());
-                ShardId shardId = clusterService.operationRouting().indexShards(clusterState, concreteIndex, deleteRequest.type(), deleteRequest.id(), deleteRequest.routing()).shardId();
-                List<ActionRequest<?>> list = requestsByShard.get(shardId);
-                if (list == null) {
-                    list = new LinkedList<>();
-                    requestsByShard.put(shardId, list);
-                }
-                list.add(deleteRequest);
             }
         }
         if (requestsByShard.isEmpty()) {
@@ -131,12 +144,181 @@ public class TransportIngestAction extends HandledTransportAction<IngestRequest,
             listener.onResponse(ingestResponse);
             return;
         }
-        // third, for each shard, execute leader/replica action
-        final AtomicInteger successCount = new AtomicInteger(0);
-        final AtomicInteger responseCounter = new AtomicInteger(requestsByShard.size());
-        for (Map.Entry<ShardId, List<ActionRequest<?>>> entry : requestsByShard.entrySet()) {
-            final ShardId shardId = entry.getKey();
-            final List<ActionRequest<?>> actionRequests = entry.getValue();
+        // third, for each shard, execute leader/replica actions, large shard batches in sub-batches
+        final IngestExecution execution = new IngestExecution(ingestRequest, ingestResponse, listener, startTime);
+        List<ShardPipeline> pipelines = new ArrayList<>(requestsByShard.size());
+        for (Map.Entry<ShardId, ShardActions> entry : requestsByShard.entrySet()) {
+            ShardPipeline pipeline = new ShardPipeline(execution, entry.getKey(), entry.getValue(),
+                    subBatches(entry.getValue().requests));
+            execution.responseCounter.addAndGet(pipeline.subBatches.size());
+            pipelines.add(pipeline);
+        }
+        for (ShardPipeline pipeline : pipelines) {
+            pipeline.start();
+        }
+    }
+
+    /**
+     * Split the actions of a shard into sub-batches of at most the pipeline size.
+     *
+     * @param actionRequests the actions of a shard
+     * @return the sub-batches
+     */
+    private List<List<ActionRequest<?>>> subBatches(List<ActionRequest<?>> actionRequests) {
+        int size = actionRequests.size();
+        if (pipelineSize <= 0 || size <= pipelineSize) {
+            return Collections.singletonList(actionRequests);
+        }
+        List<List<ActionRequest<?>>> subBatches = new ArrayList<>(size / pipelineSize + 1);
+        for (int from = 0; from < size; from += pipelineSize) {
+            subBatches.add(actionRequests.subList(from, Math.min(size, from + pipelineSize)));
+        }
+        return subBatches;
+    }
+
+    /**
+     * Drop the cached metadata of indices, aliases, mappings and shards. The cache is also dropped by a new
+     * cluster state.
+     */
+    public void invalidateMetadataCache() {
+        metadataCache.invalidate();
+    }
+
+    /**
+     * Apply the results of the leader shard to the actions for the replica shards. Failed actions are
+     * dropped, and actions with a version get the version of the leader.
+     *
+     * @param actionRequests the actions of the leader shard request
+     * @param response       the leader shard response
+     * @return the actions for the replica shards
+     */
+    private static List<ActionRequest<?>> replicaRequests(List<ActionRequest<?>> actionRequests,
+                                                          IngestLeaderShardResponse response) {
+        long[] versions = response.getVersions();
+        boolean[] failed = response.getFailed();
+        List<ActionRequest<?>> requests = new ArrayList<>(actionRequests.size());
+        for (int i = 0; i < actionRequests.size(); i++) {
+            ActionRequest<?> actionRequest = actionRequests.get(i);
+            if (actionRequest == null || (i < failed.length && failed[i])) {
+                continue;
+            }
+            if (i < versions.length) {
+                if (actionRequest instanceof IndexRequest) {
+                    IndexRequest indexRequest = (IndexRequest) actionRequest;
+                    if (indexRequest.version() != Versions.MATCH_ANY) {
+                        indexRequest.version(versions[i]);
+                    }
+                } else if (actionRequest instanceof DeleteRequest) {
+                    DeleteRequest deleteRequest = (DeleteRequest) actionRequest;
+                    if (deleteRequest.version() != Versions.MATCH_ANY) {
+                        deleteRequest.version(versions[i]);
+                    }
+                }
+            }
+            requests.add(actionRequest);
+        }
+        return requests;
+    }
+
+    /**
+     * The actions of a shard, with their positions in the ingest request.
+     */
+    private static class ShardActions {
+
+        private final List<ActionRequest<?>> requests;
+
+        private int[] positions;
+
+        ShardActions(int capacity) {
+            this.requests = new ArrayList<>(capacity);
+            this.positions = new int[capacity];
+        }
+
+        void add(ActionRequest<?> request, int position) {
+            if (requests.size() == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            positions[requests.size()] = position;
+            requests.add(request);
+        }
+    }
+
+    /**
+     * The state of the execution of an ingest request over all shards.
+     */
+    private static class IngestExecution {
+
+        private final IngestRequest ingestRequest;
+
+        private final IngestResponse ingestResponse;
+
+        private final ActionListener<IngestResponse> listener;
+
+        private final long startTime;
+
+        private final AtomicInteger successCount = new AtomicInteger(0);
+
+        private final AtomicInteger responseCounter = new AtomicInteger(0);
+
+        IngestExecution(IngestRequest ingestRequest, IngestResponse ingestResponse,
+                        ActionListener<IngestResponse> listener, long startTime) {
+            this.ingestRequest = ingestRequest;
+            this.ingestResponse = ingestResponse;
+            this.listener = listener;
+            this.startTime = startTime;
+        }
+
+        void countDown() {
+            if (responseCounter.decrementAndGet() == 0) {
+                long millis = Math.max(1, System.currentTimeMillis() - startTime);
+                ingestResponse.setSuccessSize(successCount.get()).setTookInMillis(millis);
+                listener.onResponse(ingestResponse);
+            }
+        }
+    }
+
+    /**
+     * The leader and replica actions of a shard. The leader executes the sub-batches one after another, and
+     * each sub-batch is forwarded to the replicas as soon as the leader has executed it and assigned the
+     * versions, so the replicas work while the leader executes the next sub-batch. The replicas receive
+     * the sub-batches in the order of the leader.
+     */
+    private class ShardPipeline {
+
+        private final IngestExecution execution;
+
+        private final ShardId shardId;
+
+        private final ShardActions actions;
+
+        private final List<List<ActionRequest<?>>> subBatches;
+
+        private final int[] offsets;
+
+        private final Deque<IngestReplicaShardRequest> replicaQueue = new ArrayDeque<>();
+
+        private boolean replicating;
+
+        ShardPipeline(IngestExecution execution, ShardId shardId, ShardActions actions,
+                      List<List<ActionRequest<?>>> subBatches) {
+            this.execution = execution;
+            this.shardId = shardId;
+            this.actions = actions;
+            this.subBatches = subBatches;
+            this.offsets = new int[subBatches.size()];
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + subBatches.get(i - 1).size();
+            }
+        }
+
+        void start() {
+            executeLeader(0);
+        }
+
+        private void executeLeader(final int i) {
+            final IngestRequest ingestRequest = execution.ingestRequest;
+            final IngestResponse ingestResponse = execution.ingestResponse;
+            final List<ActionRequest<?>> actionRequests = subBatches.get(i);
             final IngestLeaderShardRequest ingestLeaderShardRequest = new IngestLeaderShardRequest()
                     .setIngestId(ingestRequest.ingestId())
                     .setShardId(shardId)
@@ -146,88 +328,89 @@ public class TransportIngestAction extends HandledTransportAction<IngestRequest,
             leaderShardIngestAction.execute(ingestLeaderShardRequest, new ActionListener<IngestLeaderShardResponse>() {
                 @Override
                 public void onResponse(IngestLeaderShardResponse ingestLeaderShardResponse) {
-                    long millis = System.currentTimeMillis() - startTime;
-                    ingestResponse.setIngestId(ingestRequest.ingestId());
                     ingestResponse.setLeaderResponse(ingestLeaderShardResponse);
-                    successCount.addAndGet(ingestLeaderShardResponse.getSuccessCount());
+                    execution.successCount.addAndGet(ingestLeaderShardResponse.getSuccessCount());
+                    for (IngestActionFailure failure : ingestLeaderShardResponse.getFailures()) {
+                        int position = failure.position() >= 0 ? actions.positions[offsets[i] + failure.position()] : -1;
+                        ingestResponse.addFailure(new IngestActionFailure(ingestRequest.ingestId(), shardId, position, failure.message()));
+                    }
+                    IngestReplicaShardRequest ingestReplicaShardRequest = null;
                     int quorumShards = ingestLeaderShardResponse.getQuorumShards();
                     if (quorumShards < 0) {
                         ingestResponse.addFailure(new IngestActionFailure(ingestRequest.ingestId(), shardId, "quorum not reached for shard " + shardId));
                     } else if (quorumShards > 0) {
-                        responseCounter.incrementAndGet();
-                        final IngestReplicaShardRequest ingestReplicaShardRequest =
-                                new IngestReplicaShardRequest(ingestLeaderShardRequest.getIngestId(),
-                                        ingestLeaderShardRequest.getShardId(),
-                                        ingestLeaderShardRequest.getActionRequests());
-                        ingestReplicaShardRequest.timeout(ingestRequest.timeout());
-                        replicaShardIngestAction.execute(ingestReplicaShardRequest, new ActionListener<TransportReplicaShardIngestAction.ReplicaOperationResponse>() {
-                            @Override
-                            public void onResponse(TransportReplicaShardIngestAction.ReplicaOperationResponse response) {
-                                long millis = Math.max(1, System.currentTimeMillis() - startTime);
-                                ingestResponse.addReplicaResponses(response.responses());
-                                if (responseCounter.decrementAndGet() == 0) {
-                                    ingestResponse.setSuccessSize(successCount.get())
-                                            .setTookInMillis(millis);
-                                    listener.onResponse(ingestResponse);
-                                }
-                            }
-
-                            @Override
-                            public void onFailure(Throwable e) {
-                                long millis = Math.max(1, System.currentTimeMillis() - startTime);
-                                logger.error(e.getMessage(), e);
-                                ingestResponse.addFailure(new IngestActionFailure(ingestRequest.ingestId(), shardId, ExceptionsHelper.detailedMessage(e)));
-                                if (responseCounter.decrementAndGet() == 0) {
-                                    ingestResponse.setSuccessSize(successCount.get())
-                                            .setTookInMillis(millis);
-                                    listener.onResponse(ingestResponse);
-                                }
-                            }
-                        });
+                        execution.responseCounter.incrementAndGet();
+                        ingestReplicaShardRequest = new IngestReplicaShardRequest(ingestLeaderShardRequest.getIngestId(),
+                                ingestLeaderShardRequest.getShardId(),
+                                replicaRequests(actionRequests, ingestLeaderShardResponse))
+                                .timeout(ingestRequest.timeout());
+                    }
+                    // the leader continues with the next sub-batch while the replicas take this one
+                    if (i + 1 < subBatches.size()) {
+                        executeLeader(i + 1);
                     }
-                    if (responseCounter.decrementAndGet() == 0) {
-                        ingestResponse.setSuccessSize(successCount.get()).setTookInMillis(millis);
-                        listener.onResponse(ingestResponse);
+                    if (ingestReplicaShardRequest != null) {
+                        replicate(ingestReplicaShardRequest);
                     }
+                    execution.countDown();
                 }
 
                 @Override
                 public void onFailure(Throwable e) {
-                    long millis = System.currentTimeMillis() - startTime;
                     logger.error(e.getMessage(), e);
-                    ingestResponse.addFailure(new IngestActionFailure(-1L, shardId, ExceptionsHelper.detailedMessage(e)));
-                    if (responseCounter.decrementAndGet() == 0) {
-                        ingestResponse.setSuccessSize(successCount.get()).setTookInMillis(millis);
-                        listener.onResponse(ingestResponse);
+                    // the actions of the remaining sub-batches of the shard are not executed
+                    String message = ExceptionsHelper.detailedMessage(e);
+                    for (int j = offsets[i]; j < actions.requests.size(); j++) {
+                        ingestResponse.addFailure(new IngestActionFailure(-1L, shardId, actions.positions[j], message));
+                    }
+                    for (int j = i; j < subBatches.size(); j++) {
+                        execution.countDown();
                     }
                 }
-
             });
         }
-    }
 
-    private static class ConcreteIndices  {
-        private final ClusterState state;
-        private final IndexNameExpressionResolver indexNameExpressionResolver;
-        private final Map<String, String> indices = new HashMap<>();
-
-        ConcreteIndices(ClusterState state, IndexNameExpressionResolver indexNameExpressionResolver) {
-            this.state = state;
-            this.indexNameExpressionResolver = indexNameExpressionResolver;
+        private void replicate(IngestReplicaShardRequest ingestReplicaShardRequest) {
+            synchronized (this) {
+                if (replicating) {
+                    replicaQueue.add(ingestReplicaShardRequest);
+                    return;
+                }
+                replicating = true;
+            }
+            executeReplica(ingestReplicaShardRequest);
         }
 
-        String getConcreteIndex(String indexOrAlias) {
-            return indices.get(indexOrAlias);
+        private void replicated() {
+            IngestReplicaShardRequest next;
+            synchronized (this) {
+                next = replicaQueue.poll();
+                if (next == null) {
+                    replicating = false;
+                    return;
+                }
+            }
+            executeReplica(next);
         }
 
-        String resolveIfAbsent(DocumentRequest<?> request) {
-            String concreteIndex = indices.get(request.index());
-            if (concreteIndex == null) {
-                concreteIndex = indexNameExpressionResolver.concreteSingleIndex(state, request);
-                indices.put(request.index(), concreteIndex);
-            }
-            return concreteIndex;
+        private void executeReplica(IngestReplicaShardRequest ingestReplicaShardRequest) {
+            final IngestResponse ingestResponse = execution.ingestResponse;
+            replicaShardIngestAction.execute(ingestReplicaShardRequest, new ActionListener<TransportReplicaShardIngestAction.ReplicaOperationResponse>() {
+                @Override
+                public void onResponse(TransportReplicaShardIngestAction.ReplicaOperationResponse response) {
+                    ingestResponse.addReplicaResponses(response.responses());
+                    replicated();
+                    execution.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.error(e.getMessage(), e);
+                    ingestResponse.addFailure(new IngestActionFailure(execution.ingestRequest.ingestId(), shardId, ExceptionsHelper.detailedMessage(e)));
+                    replicated();
+                    execution.countDown();
+                }
+            });
         }
     }
-
 }
@@ -1,10 +1,6 @@
 package org.xbib.elasticsearch.action.ingest.leader;
 
-import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
-import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.index.shard.ShardId;
@@ -27,7 +23,9 @@ public class IngestLeaderShardResponse extends ActionResponse {
 
     private long tookInMillis;
 
-    private List<ActionRequest<?>> actionRequests = new LinkedList<ActionRequest<?>>();
+    private long[] versions = new long[0];
+
+    private boolean[] failed = new boolean[0];
 
     private List<IngestActionFailure> failures = Collections.synchronizedList(new LinkedList<IngestActionFailure>());
 
@@ -80,12 +78,31 @@ public class IngestLeaderShardResponse extends ActionResponse {
         return this;
     }
 
-    public List<ActionRequest<?>> getActionRequests() {
-        return actionRequests;
+    /**
+     * Returns the versions of the actions on the leader shard, by position in the shard request.
+     *
+     * @return the versions
+     */
+    public long[] getVersions() {
+        return versions;
     }
 
-    public IngestLeaderShardResponse setActionRequests(List<ActionRequest<?>> actionRequests) {
-        this.actionRequests = actionRequests;
+    public IngestLeaderShardResponse setVersions(long[] versions) {
+        this.versions = versions;
+        return this;
+    }
+
+    /**
+     * Returns the failed actions on the leader shard, by position in the shard request.
+     *
+     * @return true for a failed action
+     */
+    public boolean[] getFailed() {
+        return failed;
+    }
+
+    public IngestLeaderShardResponse setFailed(boolean[] failed) {
+        this.failed = failed;
         return this;
     }
 
@@ -108,24 +125,16 @@ public class IngestLeaderShardResponse extends ActionResponse {
         }
         successCount = in.readVInt();
         quorumShards = in.readVInt();
-        actionRequests = new LinkedList<>();
         int size = in.readVInt();
+        versions = new long[size];
+        failed = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            versions[i] = in.readLong();
+        }
+        byte[] b = new byte[size];
+        in.readBytes(b, 0, size);
         for (int i = 0; i < size; i++) {
-            boolean exists = in.readBoolean();
-            if (exists) {
-                boolean b = in.readBoolean();
-                if (b) {
-                    IndexRequest indexRequest = new IndexRequest();
-                    indexRequest.readFrom(in);
-                    actionRequests.add(indexRequest);
-                } else {
-                    DeleteRequest deleteRequest = new DeleteRequest();
-                    deleteRequest.readFrom(in);
-                    actionRequests.add(deleteRequest);
-                }
-            } else {
-                actionRequests.add(null);
-            }
+            failed[i] = b[i] != 0;
         }
         failures = new LinkedList<>();
         size = in.readVInt();
@@ -147,22 +156,15 @@ public class IngestLeaderShardResponse extends ActionResponse {
         }
         out.writeVInt(successCount);
         out.writeVInt(quorumShards);
-        out.writeVInt(actionRequests.size());
-        for (ActionRequest<?> actionRequest : actionRequests) {
-            if (actionRequest == null) {
-                out.writeBoolean(false);
-            } else {
-                out.writeBoolean(true);
-                if (actionRequest instanceof IndexRequest) {
-                    out.writeBoolean(true);
-                } else if (actionRequest instanceof DeleteRequest) {
-                    out.writeBoolean(false);
-                } else {
-                    throw new ElasticsearchException("action request not supported: " + actionRequest.getClass().getName());
-                }
-                actionRequest.writeTo(out);
-            }
+        out.writeVInt(versions.length);
+        for (long version : versions) {
+            out.writeLong(version);
+        }
+        byte[] b = new byte[failed.length];
+        for (int i = 0; i < failed.length; i++) {
+            b[i] = failed[i] ? (byte) 1 : (byte) 0;
         }
+        out.writeBytes(b);
         out.writeVInt(failures.size());
         for (IngestActionFailure f : failures) {
             f.writeTo(out);
@@ -26,7 +26,6 @@ import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Streamable;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
-import org.elasticsearch.common.lucene.uid.Versions;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.IndexService;
@@ -41,12 +40,16 @@ import org.elasticsearch.transport.BaseTransportResponseHandler;
 import org.elasticsearch.transport.ConnectTransportException;
 import org.elasticsearch.transport.TransportChannel;
 import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequest;
 import org.elasticsearch.transport.TransportRequestHandler;
 import org.elasticsearch.transport.TransportRequestOptions;
 import org.elasticsearch.transport.TransportService;
 import org.xbib.elasticsearch.action.ingest.Consistency;
 import org.xbib.elasticsearch.action.ingest.IngestAction;
 import org.xbib.elasticsearch.action.ingest.IngestActionFailure;
+import org.xbib.elasticsearch.action.ingest.IngestCompressionMetrics;
+import org.xbib.elasticsearch.action.ingest.ShardBatch;
+import org.xbib.elasticsearch.common.CompressionPolicy;
 
 import java.io.IOException;
 import java.util.LinkedList;
@@ -64,17 +67,21 @@ public class TransportLeaderShardIngestAction
     private final IndicesService indicesService;
     private final TransportRequestOptions transportOptions;
 
+    private final CompressionPolicy compressionPolicy;
+
     @Inject
     public TransportLeaderShardIngestAction(Settings settings, TransportService transportService, ClusterService clusterService,
                                             IndicesService indicesService, ThreadPool threadPool,
                                             ActionFilters actionFilters,
-                                            IndexNameExpressionResolver indexNameExpressionResolver) {
+                                            IndexNameExpressionResolver indexNameExpressionResolver,
+                                            IngestCompressionMetrics compressionMetrics) {
         super(settings, IngestAction.NAME, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
         this.transportService = transportService;
         this.clusterService = clusterService;
         this.indicesService = indicesService;
         this.transportAction = transportAction();
         this.transportOptions = transportOptions();
+        this.compressionPolicy = compressionPolicy(compressionMetrics);
         this.executor = executor();
         transportService.registerRequestHandler(transportAction, IngestLeaderShardRequest.class,
                 ThreadPool.Names.SAME, new LeaderOperationTransportHandler());
@@ -88,6 +95,15 @@ public class TransportLeaderShardIngestAction
         return IngestAction.INSTANCE.transportOptions(settings);
     }
 
+    protected CompressionPolicy compressionPolicy(IngestCompressionMetrics compressionMetrics) {
+        return compressionMetrics.compressionPolicy(IngestCompressionMetrics.LEADER);
+    }
+
+    protected TransportRequestOptions transportOptions(TransportRequest transportRequest, IngestLeaderShardRequest request) {
+        return compressionPolicy != null ? compressionPolicy.options(transportOptions, transportRequest,
+                CompressionPolicy.estimatedSizeInBytes(request.getActionRequests())) : transportOptions;
+    }
+
     protected IngestLeaderShardRequest newRequestInstance() {
         return new IngestLeaderShardRequest();
     }
@@ -115,31 +131,29 @@ public class TransportLeaderShardIngestAction
     protected IngestLeaderShardResponse shardOperationOnLeader(ClusterState clusterState, int replicaLevel, LeaderOperationRequest shardRequest) {
         final long t0 = shardRequest.startTime();
         final IngestLeaderShardRequest request = shardRequest.request();
+        final ShardBatch batch = request.getShardBatch();
         int successCount = 0;
         List<IngestActionFailure> failures = new LinkedList<>();
-        int size = request.getActionRequests().size();
+        int size = batch.size();
+        // the requests are not modified, so they are unchanged when the operation is retried
         long[] versions = new long[size];
+        boolean[] failed = new boolean[size];
         IndexService indexService = indicesService.indexServiceSafe(request.index());
         for (int i = 0; i < size; i++) {
-            ActionRequest<?> actionRequest = request.getActionRequests().get(i);
+            ActionRequest<?> actionRequest = batch.get(i);
             if (actionRequest instanceof IndexRequest) {
                 try {
                     IndexRequest indexRequest = (IndexRequest) actionRequest;
-                    long version = indexOperationOnLeader(indexRequest, request);
-                    versions[i] = indexRequest.version();
-                    indexRequest.version(indexRequest.version() == Versions.MATCH_ANY ? Versions.MATCH_ANY : version);
+                    versions[i] = indexOperationOnLeader(indexRequest, batch.autoGeneratedId(i), request);
                     successCount++;
                 } catch (Throwable e) {
                     if (retryLeaderException(e)) {
-                        for (int j = 0; j < i; j++) {
-                            ((IndexRequest) request.getActionRequests().get(j)).version(versions[j]);
-                        }
                         logger.error(e.getMessage(), e);
                         throw new ElasticsearchException(e.getMessage(), e);
                     }
                     logger.error("[{}][{}] failed to execute ingest (index) {}", e, request.index(), shardRequest.shardId(), actionRequest);
-                    failures.add(new IngestActionFailure(request.getIngestId(), request.getShardId(), ExceptionsHelper.detailedMessage(e)));
-                    request.getActionRequests().set(i, null);
+                    failures.add(new IngestActionFailure(request.getIngestId(), request.getShardId(), i, ExceptionsHelper.detailedMessage(e)));
+                    failed[i] = true;
                 }
             } else if (actionRequest instanceof DeleteRequest) {
                 try {
@@ -147,20 +161,19 @@ public class TransportLeaderShardIngestAction
                     DeleteRequest deleteRequest = (DeleteRequest) actionRequest;
                     Engine.Delete delete = indexShard.prepareDeleteOnPrimary(deleteRequest.type(), deleteRequest.id(), deleteRequest.version(), deleteRequest.versionType());
                     indexShard.delete(delete);
-                    deleteRequest.version(deleteRequest.version() == Versions.MATCH_ANY ? Versions.MATCH_ANY : delete.version());
+                    versions[i] = delete.version();
                     successCount++;
                 } catch (Throwable e) {
                     if (retryLeaderException(e)) {
-                        for (int j = 0; j < i; j++) {
-                            ((DeleteRequest) request.getActionRequests().get(j)).version(versions[j]);
-                        }
                         logger.error(e.getMessage(), e);
                         throw new ElasticsearchException(e.getMessage(), e);
                     }
                     logger.error("[{}][{}] failed to execute ingest (delete) {}", e, request.index(), shardRequest.shardId(), actionRequest);
-                    failures.add(new IngestActionFailure(request.getIngestId(), request.getShardId(), ExceptionsHelper.detailedMessage(e)));
-                    request.getActionRequests().set(i, null);
+                    failures.add(new IngestActionFailure(request.getIngestId(), request.getShardId(), i, ExceptionsHelper.detailedMessage(e)));
+                    failed[i] = true;
                 }
+            } else {
+                failed[i] = true;
             }
         }
         int quorumShards = findQuorum(clusterState, shards(clusterState, request), request);
@@ -170,11 +183,12 @@ public class TransportLeaderShardIngestAction
                 .setShardId(request.getShardId())
                 .setSuccessCount(successCount)
                 .setQuorumShards(quorumShards)
-                .setActionRequests(request.getActionRequests())
+                .setVersions(versions)
+                .setFailed(failed)
                 .setFailures(failures);
     }
 
-    private long indexOperationOnLeader(IndexRequest indexRequest,
+    private long indexOperationOnLeader(IndexRequest indexRequest, boolean autoGeneratedId,
                                         IngestLeaderShardRequest request) {
         SourceToParse sourceToParse = SourceToParse.source(SourceToParse.Origin.PRIMARY, indexRequest.source())
                 .type(indexRequest.type())
@@ -196,7 +210,7 @@ public class TransportLeaderShardIngestAction
                     indexRequest.version(),
                     indexRequest.versionType(),
                     false,
-                    indexRequest.autoGeneratedId());
+                    autoGeneratedId);
             indexShard.create(create);
             return create.version();
         } else {
@@ -391,7 +405,7 @@ public class TransportLeaderShardIngestAction
                     }
                 } else {
                     DiscoveryNode node = observer.observedState().nodes().get(shard.currentNodeId());
-                    transportService.sendRequest(node, transportAction, request, transportOptions, new BaseTransportResponseHandler<IngestLeaderShardResponse>() {
+                    transportService.sendRequest(node, transportAction, request, transportOptions(request, request), new BaseTransportResponseHandler<IngestLeaderShardResponse>() {
 
                         @Override
                         public IngestLeaderShardResponse newInstance() {
@@ -1,19 +1,18 @@
 package org.xbib.elasticsearch.action.ingest.replica;
 
-import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
-import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.shard.ShardId;
+import org.xbib.elasticsearch.action.ingest.ShardBatch;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.action.ValidateActions.addValidationError;
@@ -32,7 +31,7 @@ public class IngestReplicaShardRequest extends ActionRequest<IngestReplicaShardR
 
     private ShardId shardId;
 
-    private List<ActionRequest<?>> actionRequests = new LinkedList<>();
+    private ShardBatch batch = new ShardBatch(new ArrayList<ActionRequest<?>>());
 
     public IngestReplicaShardRequest() {
     }
@@ -41,7 +40,8 @@ public class IngestReplicaShardRequest extends ActionRequest<IngestReplicaShardR
         this.index = shardId.index().name();
         this.ingestId = ingestId;
         this.shardId = shardId;
-        this.actionRequests = actionRequests;
+        this.batch = new ShardBatch(actionRequests instanceof RandomAccess ?
+                actionRequests : new ArrayList<>(actionRequests));
     }
 
     public long ingestId() {
@@ -53,7 +53,11 @@ public class IngestReplicaShardRequest extends ActionRequest<IngestReplicaShardR
     }
 
     public List<ActionRequest<?>> actionRequests() {
-        return actionRequests;
+        return batch.requests();
+    }
+
+    public ShardBatch shardBatch() {
+        return batch;
     }
 
     public final boolean operationThreaded() {
@@ -110,22 +114,7 @@ public class IngestReplicaShardRequest extends ActionRequest<IngestReplicaShardR
         timeout.writeTo(out);
         out.writeLong(ingestId);
         shardId.writeTo(out);
-        out.writeVInt(actionRequests.size());
-        for (ActionRequest<?> actionRequest : actionRequests) {
-            if (actionRequest == null) {
-                out.writeBoolean(false);
-                continue;
-            }
-            out.writeBoolean(true);
-            if (actionRequest instanceof IndexRequest) {
-                out.writeBoolean(true);
-            } else if (actionRequest instanceof DeleteRequest) {
-                out.writeBoolean(false);
-            } else {
-                throw new ElasticsearchException("action request not supported: " + actionRequest.getClass().getName());
-            }
-            actionRequest.writeTo(out);
-        }
+        batch.writeTo(out);
     }
 
     @Override
@@ -135,24 +124,6 @@ public class IngestReplicaShardRequest extends ActionRequest<IngestReplicaShardR
         timeout = TimeValue.readTimeValue(in);
         ingestId = in.readLong();
         shardId = ShardId.readShardId(in);
-        int size = in.readVInt();
-        actionRequests = new LinkedList<>();
-        for (int i = 0; i < size; i++) {
-            boolean exists = in.readBoolean();
-            if (exists) {
-                boolean b = in.readBoolean();
-                if (b) {
-                    IndexRequest indexRequest = new IndexRequest();
-                    indexRequest.readFrom(in);
-                    actionRequests.add(indexRequest);
-                } else {
-                    DeleteRequest deleteRequest = new DeleteRequest();
-                    deleteRequest.readFrom(in);
-                    actionRequests.add(deleteRequest);
-                }
-            } else {
-                actionRequests.add(null);
-            }
-        }
+        batch = ShardBatch.readFrom(in, index);
     }
 }
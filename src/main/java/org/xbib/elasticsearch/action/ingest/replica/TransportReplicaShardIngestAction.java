@@ -42,11 +42,15 @@ import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.BaseTransportResponseHandler;
 import org.elasticsearch.transport.TransportChannel;
 import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequest;
 import org.elasticsearch.transport.TransportRequestHandler;
 import org.elasticsearch.transport.TransportRequestOptions;
 import org.elasticsearch.transport.TransportService;
 import org.xbib.elasticsearch.action.ingest.IngestAction;
 import org.xbib.elasticsearch.action.ingest.IngestActionFailure;
+import org.xbib.elasticsearch.action.ingest.IngestCompressionMetrics;
+import org.xbib.elasticsearch.action.ingest.ShardBatch;
+import org.xbib.elasticsearch.common.CompressionPolicy;
 
 import java.io.IOException;
 import java.util.LinkedList;
@@ -72,11 +76,14 @@ public class TransportReplicaShardIngestAction
 
     private final TransportRequestOptions transportOptions;
 
+    private final CompressionPolicy compressionPolicy;
+
     @Inject
     public TransportReplicaShardIngestAction(Settings settings, TransportService transportService, ClusterService clusterService,
                                              IndicesService indicesService, ThreadPool threadPool, ShardStateAction shardStateAction,
                                              ActionFilters actionFilters,
-                                             IndexNameExpressionResolver indexNameExpressionResolver) {
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             IngestCompressionMetrics compressionMetrics) {
         super(settings, IngestAction.NAME, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
         this.transportService = transportService;
         this.clusterService = clusterService;
@@ -84,6 +91,7 @@ public class TransportReplicaShardIngestAction
         this.shardStateAction = shardStateAction;
         this.transportAction = transportAction();
         this.transportOptions = transportOptions();
+        this.compressionPolicy = compressionPolicy(compressionMetrics);
         this.executor = executor();
         transportService.registerRequestHandler(transportAction, ReplicaOperationRequest.class,
                 ThreadPool.Names.SAME, new ReplicaOperationTransportHandler());
@@ -97,6 +105,15 @@ public class TransportReplicaShardIngestAction
         return IngestAction.INSTANCE.transportOptions(settings);
     }
 
+    protected CompressionPolicy compressionPolicy(IngestCompressionMetrics compressionMetrics) {
+        return compressionMetrics.compressionPolicy(IngestCompressionMetrics.REPLICA);
+    }
+
+    protected TransportRequestOptions transportOptions(TransportRequest transportRequest, IngestReplicaShardRequest request) {
+        return compressionPolicy != null ? compressionPolicy.options(transportOptions, transportRequest,
+                CompressionPolicy.estimatedSizeInBytes(request.actionRequests())) : transportOptions;
+    }
+
     protected IngestReplicaShardResponse newResponseInstance() {
         return new IngestReplicaShardResponse();
     }
@@ -127,16 +144,17 @@ public class TransportReplicaShardIngestAction
         final IndexShard indexShard = indicesService.indexServiceSafe(shardRequest.request().index()).shardSafe(shardRequest.shardId());
         int successCount = 0;
         List<IngestActionFailure> failure = new LinkedList<>();
-        int size = request.actionRequests().size();
+        ShardBatch batch = request.shardBatch();
+        int size = batch.size();
         for (int i = 0; i < size; i++) {
-            ActionRequest<?> actionRequest = request.actionRequests().get(i);
+            ActionRequest<?> actionRequest = batch.get(i);
             if (actionRequest == null) {
                 continue;
             }
             if (actionRequest instanceof IndexRequest) {
                 IndexRequest indexRequest = (IndexRequest) actionRequest;
                 try {
-                    indexOperationOnReplica(indexShard, indexRequest);
+                    indexOperationOnReplica(indexShard, indexRequest, batch.autoGeneratedId(i));
                     successCount++;
                 } catch (Throwable e) {
                     failure.add(new IngestActionFailure(request.ingestId(), request.shardId(), ExceptionsHelper.detailedMessage(e)));
@@ -159,7 +177,7 @@ public class TransportReplicaShardIngestAction
                 successCount, System.currentTimeMillis() - t0, failure);
     }
 
-    private void indexOperationOnReplica(IndexShard indexShard, IndexRequest indexRequest) {
+    private void indexOperationOnReplica(IndexShard indexShard, IndexRequest indexRequest, boolean autoGeneratedId) {
         SourceToParse sourceToParse = SourceToParse.source(SourceToParse.Origin.REPLICA, indexRequest.source())
                 .type(indexRequest.type())
                 .id(indexRequest.id())
@@ -178,7 +196,7 @@ public class TransportReplicaShardIngestAction
                     indexRequest.version(),
                     indexRequest.versionType(),
                     false,
-                    indexRequest.autoGeneratedId());
+                    autoGeneratedId);
             indexShard.create(create);
         }
     }
@@ -393,7 +411,7 @@ public class TransportReplicaShardIngestAction
                         }
                     } else {
                         final DiscoveryNode node = observer.observedState().nodes().get(nodeId);
-                        transportService.sendRequest(node, transportAction, replicaRequest, transportOptions, new BaseTransportResponseHandler<IngestReplicaShardResponse>() {
+                        transportService.sendRequest(node, transportAction, replicaRequest, transportOptions(replicaRequest, request), new BaseTransportResponseHandler<IngestReplicaShardResponse>() {
                             @Override
                             public IngestReplicaShardResponse newInstance() {
                                 return newResponseInstance();
@@ -0,0 +1,138 @@
+package org.xbib.elasticsearch.common;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.xbib.metrics.Count;
+import org.xbib.metrics.SettableGauge;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A compression policy decides per request whether a request is compressed on the transport. Requests with
+ * an estimated size above a threshold are compressed, smaller requests are sent raw, since compressing them
+ * costs more CPU than it saves bandwidth.
+ *
+ * The transport compresses while writing to the channel, so the compressed size is not known. Every n-th
+ * compressed request is sampled by compressing it once more, and the ratio and time of the sample are recorded.
+ */
+public class CompressionPolicy {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(CompressionPolicy.class.getName());
+
+    private static final int REQUEST_OVERHEAD = 50;
+
+    private final long thresholdBytes;
+
+    private final int sampleInterval;
+
+    private final Count compressedBytes;
+
+    private final Count compressionNanos;
+
+    private final SettableGauge<Double> compressionRatio;
+
+    private final AtomicLong compressed = new AtomicLong();
+
+    /**
+     * Create a compression policy.
+     *
+     * @param threshold the estimated request size from which requests are compressed
+     * @param sampleInterval sample every n-th compressed request, or zero for no samples
+     * @param compressedBytes a counter for the estimated bytes of compressed requests, or null
+     * @param compressionNanos a counter for the time spent on compressing the samples, or null
+     * @param compressionRatio a gauge for the compressed size divided by the raw size of the last sample, or null
+     */
+    public CompressionPolicy(ByteSizeValue threshold, int sampleInterval,
+                             @Nullable Count compressedBytes, @Nullable Count compressionNanos,
+                             @Nullable SettableGauge<Double> compressionRatio) {
+        this.thresholdBytes = threshold.bytes();
+        this.sampleInterval = sampleInterval;
+        this.compressedBytes = compressedBytes;
+        this.compressionNanos = compressionNanos;
+        this.compressionRatio = compressionRatio;
+    }
+
+    /**
+     * Returns true if a request of the given size should be compressed.
+     *
+     * @param bytes the estimated size of the request
+     * @return true if the request should be compressed
+     */
+    public boolean compress(long bytes) {
+        return bytes >= thresholdBytes;
+    }
+
+    /**
+     * Returns the transport options for a request.
+     *
+     * @param options the transport options of the action
+     * @param request the request
+     * @param bytes the estimated size of the request
+     * @return the transport options with compression set for this request
+     */
+    public TransportRequestOptions options(TransportRequestOptions options, TransportRequest request, long bytes) {
+        boolean compress = compress(bytes);
+        if (compress) {
+            if (compressedBytes != null) {
+                compressedBytes.inc(bytes);
+            }
+            if (sampleInterval > 0 && compressed.incrementAndGet() % sampleInterval == 0) {
+                sample(request);
+            }
+        }
+        if (compress == options.compress()) {
+            return options;
+        }
+        return TransportRequestOptions.builder(options).withCompress(compress).build();
+    }
+
+    /**
+     * Estimate the size of action requests on the transport.
+     *
+     * @param requests the action requests
+     * @return the estimated size in bytes
+     */
+    public static long estimatedSizeInBytes(Collection<? extends ActionRequest<?>> requests) {
+        long bytes = 0L;
+        for (ActionRequest<?> request : requests) {
+            if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                bytes += indexRequest.source() != null ? indexRequest.source().length() : 0;
+            }
+            bytes += REQUEST_OVERHEAD;
+        }
+        return bytes;
+    }
+
+    private void sample(TransportRequest request) {
+        try {
+            BytesStreamOutput raw = new BytesStreamOutput();
+            request.writeTo(raw);
+            long t0 = System.nanoTime();
+            BytesStreamOutput bytes = new BytesStreamOutput();
+            StreamOutput out = CompressorFactory.defaultCompressor().streamOutput(bytes);
+            raw.bytes().writeTo(out);
+            out.close();
+            long nanos = System.nanoTime() - t0;
+            if (compressionNanos != null) {
+                compressionNanos.inc(nanos);
+            }
+            if (compressionRatio != null && raw.size() > 0) {
+                compressionRatio.setValue((double) bytes.size() / raw.size());
+            }
+        } catch (IOException e) {
+            logger.warn("unable to sample compression: " + e.getMessage(), e);
+        }
+    }
+}
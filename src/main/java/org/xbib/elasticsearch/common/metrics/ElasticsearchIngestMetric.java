@@ -3,6 +3,7 @@ package org.xbib.elasticsearch.common.metrics;
 import org.xbib.elasticsearch.helper.client.IngestMetric;
 import org.xbib.metrics.Count;
 import org.xbib.metrics.Metered;
+import org.xbib.metrics.SettableGauge;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -21,6 +22,13 @@ public class ElasticsearchIngestMetric implements IngestMetric {
     private final Count submitted = new ElasticsearchCounterMetric();
     private final Count succeeded = new ElasticsearchCounterMetric();
     private final Count failed = new ElasticsearchCounterMetric();
+    private final Count retried = new ElasticsearchCounterMetric();
+    private final Count coalesced = new ElasticsearchCounterMetric();
+    private final Count compressedBytes = new ElasticsearchCounterMetric();
+    private final Count compressionNanos = new ElasticsearchCounterMetric();
+    private final SettableGauge<Double> compressionRatio = new SettableGauge<>();
+    private final SettableGauge<Integer> currentBulkActions = new SettableGauge<>();
+    private final SettableGauge<Long> bufferedBytes = new SettableGauge<>();
     private Long started;
     private Long stopped;
 
@@ -59,6 +67,41 @@ public class ElasticsearchIngestMetric implements IngestMetric {
         return failed;
     }
 
+    @Override
+    public Count getRetried() {
+        return retried;
+    }
+
+    @Override
+    public Count getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public Count getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public Count getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    @Override
+    public SettableGauge<Double> getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    @Override
+    public SettableGauge<Integer> getCurrentBulkActions() {
+        return currentBulkActions;
+    }
+
+    @Override
+    public SettableGauge<Long> getBufferedBytes() {
+        return bufferedBytes;
+    }
+
     @Override
     public ElasticsearchIngestMetric start() {
         this.started = System.nanoTime();
@@ -0,0 +1,137 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * An additive increase / multiplicative decrease (AIMD) controller for the number of actions per bulk request.
+ *
+ * After each bulk execution, the number of actions is increased by a fixed step if the execution took less than
+ * the target latency, and multiplied by a decrease factor if the execution was slow or if the cluster rejected
+ * the request or some of its items. The number of actions is kept between a lower and an upper bound.
+ */
+public class AdaptiveBulkSizer {
+
+    private final int minActions;
+
+    private final int maxActions;
+
+    private final int increment;
+
+    private final double decreaseFactor;
+
+    private final long targetLatencyNanos;
+
+    private volatile int bulkActions;
+
+    /**
+     * Create an adaptive bulk sizer.
+     *
+     * @param initialActions the initial number of actions per bulk request
+     * @param minActions the lower bound of actions per bulk request
+     * @param maxActions the upper bound of actions per bulk request
+     * @param increment the number of actions to add after a fast execution
+     * @param decreaseFactor the factor to multiply the number of actions with after a slow or rejected execution
+     * @param targetLatency the maximum latency of a bulk execution which is considered as fast
+     */
+    public AdaptiveBulkSizer(int initialActions, int minActions, int maxActions, int increment,
+                             double decreaseFactor, TimeValue targetLatency) {
+        if (minActions < 1 || maxActions < minActions) {
+            throw new IllegalArgumentException("invalid bounds [" + minActions + "," + maxActions + "]");
+        }
+        if (decreaseFactor <= 0.0d || decreaseFactor >= 1.0d) {
+            throw new IllegalArgumentException("decrease factor must be between 0 and 1: " + decreaseFactor);
+        }
+        this.minActions = minActions;
+        this.maxActions = maxActions;
+        this.increment = Math.max(1, increment);
+        this.decreaseFactor = decreaseFactor;
+        this.targetLatencyNanos = targetLatency.nanos();
+        this.bulkActions = Math.min(Math.max(initialActions, minActions), maxActions);
+    }
+
+    /**
+     * Create an adaptive bulk sizer from client settings, if adaptive bulk sizing is enabled.
+     *
+     * @param settings the client settings
+     * @param initialActions the initial number of actions per bulk request
+     * @return the adaptive bulk sizer, or null if adaptive bulk sizing is not enabled
+     */
+    @Nullable
+    public static AdaptiveBulkSizer create(Settings settings, int initialActions) {
+        if (!settings.getAsBoolean(ClientParameters.ADAPTIVE_BULK, false)) {
+            return null;
+        }
+        return new AdaptiveBulkSizer(initialActions,
+                settings.getAsInt(ClientParameters.ADAPTIVE_BULK_MIN_ACTIONS,
+                        ClientParameters.DEFAULT_ADAPTIVE_BULK_MIN_ACTIONS),
+                settings.getAsInt(ClientParameters.ADAPTIVE_BULK_MAX_ACTIONS,
+                        ClientParameters.DEFAULT_ADAPTIVE_BULK_MAX_ACTIONS),
+                settings.getAsInt(ClientParameters.ADAPTIVE_BULK_INCREMENT,
+                        ClientParameters.DEFAULT_ADAPTIVE_BULK_INCREMENT),
+                settings.getAsDouble(ClientParameters.ADAPTIVE_BULK_DECREASE_FACTOR,
+                        ClientParameters.DEFAULT_ADAPTIVE_BULK_DECREASE_FACTOR),
+                settings.getAsTime(ClientParameters.ADAPTIVE_BULK_TARGET_LATENCY,
+                        ClientParameters.DEFAULT_ADAPTIVE_BULK_TARGET_LATENCY));
+    }
+
+    /**
+     * The current number of actions per bulk request.
+     *
+     * @return the number of actions
+     */
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    /**
+     * Adjust the number of actions after a bulk execution has returned a response.
+     *
+     * @param latencyNanos the latency of the execution in nanoseconds
+     * @param response the bulk response
+     */
+    public synchronized void onResponse(long latencyNanos, BulkResponse response) {
+        if (latencyNanos > targetLatencyNanos || isRejected(response)) {
+            decrease();
+        } else {
+            increase();
+        }
+    }
+
+    /**
+     * Adjust the number of actions after a bulk execution has failed.
+     *
+     * @param failure the failure
+     */
+    public synchronized void onFailure(Throwable failure) {
+        if (ExceptionsHelper.unwrapCause(failure) instanceof EsRejectedExecutionException) {
+            decrease();
+        }
+    }
+
+    private void increase() {
+        bulkActions = Math.min(bulkActions + increment, maxActions);
+    }
+
+    private void decrease() {
+        bulkActions = Math.max((int) (bulkActions * decreaseFactor), minActions);
+    }
+
+    private static boolean isRejected(BulkResponse response) {
+        if (!response.hasFailures()) {
+            return false;
+        }
+        for (BulkItemResponse itemResponse : response.getItems()) {
+            if (itemResponse.isFailed() && itemResponse.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
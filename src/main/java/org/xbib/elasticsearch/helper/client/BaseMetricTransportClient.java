@@ -24,6 +24,8 @@ import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequestBuild
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.xbib.elasticsearch.common.CompressionPolicy;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,6 +44,14 @@ abstract class BaseMetricTransportClient extends BaseTransportClient implements
         if (metric != null) {
             metric.start();
         }
+        ByteSizeValue compressThreshold = settings.getAsBytesSize(COMPRESS_THRESHOLD, null);
+        if (client != null && compressThreshold != null) {
+            client.compressionPolicy(new CompressionPolicy(compressThreshold,
+                    settings.getAsInt(COMPRESS_SAMPLE_INTERVAL, DEFAULT_COMPRESS_SAMPLE_INTERVAL),
+                    metric != null ? metric.getCompressedBytes() : null,
+                    metric != null ? metric.getCompressionNanos() : null,
+                    metric != null ? metric.getCompressionRatio() : null));
+        }
         return this;
     }
 
@@ -0,0 +1,266 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.xbib.metrics.Count;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Coalesces repeated operations on the same document in a bulk request buffer. The latest operation of each
+ * document is found by an open addressing hash table over the positions of the buffered operations.
+ *
+ * An index or delete operation replaces the latest buffered operation of its document, last write wins.
+ * A partial update with a document is merged field by field into a buffered partial update of its document,
+ * if both updates have the same options. Operations with versions, scripts, upserts, payloads, or create
+ * operations are never coalesced, they are buffered as they are, and later operations of the document are
+ * coalesced with them only if allowed. A buffered create operation is never replaced.
+ *
+ * The size estimate of a bulk request does not shrink when an operation is replaced, so the coalescer counts
+ * the saved bytes, see {@link #savedBytes()}.
+ *
+ * A coalescer is not thread safe, it is guarded by the lock of its buffer.
+ */
+public class BulkCoalescer {
+
+    private final Count saved;
+
+    private int[] table = new int[64];
+
+    private int size;
+
+    private long savedBytes;
+
+    /**
+     * Create a coalescer.
+     *
+     * @param saved a counter for the number of saved operations, or null
+     */
+    public BulkCoalescer(@Nullable Count saved) {
+        this.saved = saved;
+    }
+
+    /**
+     * Add an operation to a bulk request, coalesced with the latest buffered operation of the same document
+     * if possible.
+     *
+     * @param requests the requests of the bulk request
+     * @param payloads the payloads of the bulk request, or null
+     * @param request the operation
+     * @param payload the payload of the operation, or null
+     * @return true if the operation has been coalesced, false if it must be added to the bulk request at the
+     * position returned by {@link #added(ActionRequest, int)}
+     */
+    public boolean coalesce(List<ActionRequest> requests, @Nullable List<Object> payloads,
+                            ActionRequest request, @Nullable Object payload) {
+        String id = id(request);
+        if (id == null) {
+            return false;
+        }
+        int pos = table[slot(requests, request, id)] - 1;
+        if (pos < 0) {
+            return false;
+        }
+        if (payload != null || (payloads != null && payloads.get(pos) != null)) {
+            return false;
+        }
+        ActionRequest merged = merge(requests.get(pos), request);
+        if (merged == null) {
+            return false;
+        }
+        savedBytes += BulkProcessor.sizeOf(requests.get(pos)) - BulkProcessor.sizeOf(merged);
+        requests.set(pos, merged);
+        if (saved != null) {
+            saved.inc();
+        }
+        return true;
+    }
+
+    /**
+     * Register an operation which has been added to a bulk request, as the latest operation of its document.
+     *
+     * @param requests the requests of the bulk request, including the operation
+     * @param request the operation
+     * @param position the position of the operation in the bulk request
+     */
+    public void added(List<ActionRequest> requests, ActionRequest request, int position) {
+        String id = id(request);
+        if (id == null) {
+            return;
+        }
+        int slot = slot(requests, request, id);
+        if (table[slot] == 0) {
+            size++;
+        }
+        table[slot] = position + 1;
+        if (size * 2 > table.length) {
+            resize(requests);
+        }
+    }
+
+    /**
+     * Returns the bytes saved by coalescing, to be subtracted from the size estimate of the bulk request.
+     *
+     * @return the saved bytes, negative if merged updates are larger than the updates they replaced
+     */
+    public long savedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * Forget all operations, after the bulk request has been executed.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(table, 0);
+            size = 0;
+        }
+        savedBytes = 0L;
+    }
+
+    private int slot(List<ActionRequest> requests, ActionRequest request, String id) {
+        int mask = table.length - 1;
+        int slot = hash(request, id) & mask;
+        while (table[slot] != 0 && !sameDocument(requests.get(table[slot] - 1), request)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(List<ActionRequest> requests) {
+        int[] old = table;
+        table = new int[old.length << 1];
+        int mask = table.length - 1;
+        for (int value : old) {
+            if (value != 0) {
+                ActionRequest request = requests.get(value - 1);
+                int slot = hash(request, id(request)) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    private static int hash(ActionRequest request, String id) {
+        DocumentRequest<?> documentRequest = (DocumentRequest<?>) request;
+        int h = id.hashCode();
+        h = 31 * h + documentRequest.index().hashCode();
+        h = 31 * h + Objects.hashCode(documentRequest.type());
+        // spread the bits for the power of two table
+        return h ^ (h >>> 16);
+    }
+
+    private static String id(ActionRequest request) {
+        return request instanceof DocumentRequest ? ((DocumentRequest<?>) request).id() : null;
+    }
+
+    private static boolean sameDocument(ActionRequest a, ActionRequest b) {
+        DocumentRequest<?> da = (DocumentRequest<?>) a;
+        DocumentRequest<?> db = (DocumentRequest<?>) b;
+        return Objects.equals(da.id(), db.id()) && Objects.equals(da.index(), db.index()) &&
+                Objects.equals(da.type(), db.type());
+    }
+
+    private static ActionRequest merge(ActionRequest existing, ActionRequest request) {
+        if (isCreate(existing) || isVersioned(existing) || isVersioned(request) ||
+                !Objects.equals(((DocumentRequest<?>) existing).routing(), ((DocumentRequest<?>) request).routing()) ||
+                !Objects.equals(parent(existing), parent(request))) {
+            return null;
+        }
+        if (request instanceof IndexRequest) {
+            return isCreate(request) ? null : request;
+        }
+        if (request instanceof DeleteRequest) {
+            return request;
+        }
+        if (request instanceof UpdateRequest && existing instanceof UpdateRequest) {
+            return merge((UpdateRequest) existing, (UpdateRequest) request);
+        }
+        return null;
+    }
+
+    private static UpdateRequest merge(UpdateRequest existing, UpdateRequest request) {
+        if (!isPartial(existing) || !isPartial(request) || !sameOptions(existing, request)) {
+            return null;
+        }
+        try {
+            Map<String, Object> doc = XContentHelper.convertToMap(existing.doc().source(), true).v2();
+            XContentHelper.update(doc, XContentHelper.convertToMap(request.doc().source(), true).v2(), false);
+            UpdateRequest merged = new UpdateRequest(existing.index(), existing.type(), existing.id())
+                    .routing(existing.routing())
+                    .parent(existing.parent())
+                    .doc(doc)
+                    .docAsUpsert(existing.docAsUpsert())
+                    .retryOnConflict(Math.max(existing.retryOnConflict(), request.retryOnConflict()))
+                    .consistencyLevel(existing.consistencyLevel())
+                    .refresh(existing.refresh())
+                    .detectNoop(existing.detectNoop())
+                    .versionType(existing.versionType());
+            merged.timeout(existing.timeout());
+            merged.doc().ttl(existing.doc().ttl()).timestamp(existing.doc().timestamp());
+            return merged;
+        } catch (ElasticsearchParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if two partial updates have the same options, so the merged update can have the options
+     * of both.
+     */
+    private static boolean sameOptions(UpdateRequest a, UpdateRequest b) {
+        return a.docAsUpsert() == b.docAsUpsert() &&
+                a.refresh() == b.refresh() &&
+                a.detectNoop() == b.detectNoop() &&
+                a.consistencyLevel() == b.consistencyLevel() &&
+                a.versionType() == b.versionType() &&
+                Objects.equals(a.timeout(), b.timeout()) &&
+                Objects.equals(a.doc().ttl(), b.doc().ttl()) &&
+                Objects.equals(a.doc().timestamp(), b.doc().timestamp());
+    }
+
+    private static boolean isPartial(UpdateRequest request) {
+        return request.doc() != null && request.script() == null && request.upsertRequest() == null &&
+                request.fields() == null && !request.scriptedUpsert();
+    }
+
+    private static boolean isCreate(ActionRequest request) {
+        return request instanceof IndexRequest && ((IndexRequest) request).opType() == IndexRequest.OpType.CREATE;
+    }
+
+    private static boolean isVersioned(ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            return ((IndexRequest) request).version() != Versions.MATCH_ANY;
+        }
+        if (request instanceof DeleteRequest) {
+            return ((DeleteRequest) request).version() != Versions.MATCH_ANY;
+        }
+        if (request instanceof UpdateRequest) {
+            return ((UpdateRequest) request).version() != Versions.MATCH_ANY;
+        }
+        return true;
+    }
+
+    private static String parent(ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            return ((IndexRequest) request).parent();
+        }
+        if (request instanceof UpdateRequest) {
+            return ((UpdateRequest) request).parent();
+        }
+        // the parent of a delete request is its routing
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import java.util.List;
+
+/**
+ * Completes the listeners of single bulk items. The listeners are held in the payloads of a bulk request, which
+ * is a list parallel to the actions of the request, so there is no wrapper object per action. A listener is
+ * completed with the bulk item response at the position of its action.
+ */
+public class BulkItemCompletions {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(BulkItemCompletions.class.getName());
+
+    private BulkItemCompletions() {
+    }
+
+    /**
+     * Complete the item listeners of a bulk request with the items of the bulk response.
+     *
+     * @param request the bulk request
+     * @param response the bulk response
+     */
+    public static void onResponse(BulkRequest request, BulkResponse response) {
+        List<Object> payloads = request.payloads();
+        if (payloads == null) {
+            return;
+        }
+        for (BulkItemResponse itemResponse : response.getItems()) {
+            int position = itemResponse.getItemId();
+            if (position < 0 || position >= payloads.size()) {
+                continue;
+            }
+            ActionListener<BulkItemResponse> listener = listener(payloads.get(position));
+            if (listener != null) {
+                try {
+                    listener.onResponse(itemResponse);
+                } catch (Throwable t) {
+                    logger.warn("bulk item listener failed: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Complete the item listeners of a bulk request with the failure of the whole request.
+     *
+     * @param request the bulk request
+     * @param failure the failure
+     */
+    public static void onFailure(BulkRequest request, Throwable failure) {
+        List<Object> payloads = request.payloads();
+        if (payloads == null) {
+            return;
+        }
+        for (Object payload : payloads) {
+            ActionListener<BulkItemResponse> listener = listener(payload);
+            if (listener != null) {
+                try {
+                    listener.onFailure(failure);
+                } catch (Throwable t) {
+                    logger.warn("bulk item listener failed: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ActionListener<BulkItemResponse> listener(Object payload) {
+        return payload instanceof ActionListener ? (ActionListener<BulkItemResponse>) payload : null;
+    }
+}
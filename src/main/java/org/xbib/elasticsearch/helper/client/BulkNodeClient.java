@@ -18,6 +18,7 @@ package org.xbib.elasticsearch.helper.client;
 import com.google.common.collect.ImmutableSet;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexAction;
@@ -25,7 +26,6 @@ import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingAction;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequestBuilder;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
@@ -42,6 +42,7 @@ import org.elasticsearch.env.Environment;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.plugins.Plugin;
 import org.xbib.elasticsearch.plugin.helper.HelperPlugin;
+import org.xbib.metrics.MetricRegistry;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -63,6 +64,8 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
 
     private TimeValue flushInterval = DEFAULT_FLUSH_INTERVAL;
 
+    private MetricRegistry metricRegistry;
+
     private ElasticsearchClient client;
 
     private BulkProcessor bulkProcessor;
@@ -76,6 +79,17 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
     BulkNodeClient() {
     }
 
+    /**
+     * Sets a metric registry for the metrics of the internals of the bulk processor.
+     *
+     * @param metricRegistry the metric registry
+     * @return this client
+     */
+    public BulkNodeClient metricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        return this;
+    }
+
     @Override
     public BulkNodeClient maxActionsPerRequest(int maxActionsPerRequest) {
         this.maxActionsPerRequest = maxActionsPerRequest;
@@ -128,6 +142,7 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                BulkItemCompletions.onResponse(request, response);
                 long l = -1;
                 if (metric != null) {
                     metric.getCurrentIngest().dec();
@@ -165,6 +180,7 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                BulkItemCompletions.onFailure(request, failure);
                 if (metric != null) {
                     metric.getCurrentIngest().dec();
                 }
@@ -176,7 +192,19 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
         BulkProcessor.Builder builder = BulkProcessor.builder((Client) client, listener)
                 .setBulkActions(maxActionsPerRequest)
                 .setConcurrentRequests(maxConcurrentRequests)
-                .setFlushInterval(flushInterval);
+                .setFlushInterval(flushInterval)
+                .setMaxRetries(((Client) client).settings().getAsInt(MAX_RETRIES, DEFAULT_MAX_RETRIES))
+                .setRetryBackoff(((Client) client).settings().getAsTime(RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF))
+                .setRetryCounter(metric != null ? metric.getRetried() : null)
+                .setByteBudget(ByteBudget.create(((Client) client).settings(), metric != null ? metric.getBufferedBytes() : null))
+                .setShardPartitioner(ShardPartitioner.create((Client) client, ((Client) client).settings()))
+                .setMaxAge(((Client) client).settings().getAsTime(FLUSH_MAX_AGE, null))
+                .setDoubleBuffered(((Client) client).settings().getAsBoolean(DOUBLE_BUFFERED, false))
+                .setHighPriorityBulkActions(((Client) client).settings().getAsInt(HIGH_PRIORITY_MAX_ACTIONS_PER_REQUEST, 0))
+                .setHighPriorityMaxAge(((Client) client).settings().getAsTime(HIGH_PRIORITY_FLUSH_MAX_AGE, null))
+                .setMetricRegistry(metricRegistry)
+                .setCoalescing(((Client) client).settings().getAsBoolean(COALESCING, false))
+                .setCoalescedCounter(metric != null ? metric.getCoalesced() : null);
         if (maxVolume != null) {
             builder.setBulkSize(maxVolume);
         }
@@ -256,6 +284,20 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
 
     @Override
     public BulkNodeClient bulkIndex(IndexRequest indexRequest) {
+        return bulkIndex(indexRequest, null, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkNodeClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener) {
+        return bulkIndex(indexRequest, listener, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkNodeClient bulkIndex(IndexRequest indexRequest, BulkPriority priority) {
+        return bulkIndex(indexRequest, null, priority);
+    }
+
+    private BulkNodeClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener, BulkPriority priority) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
@@ -263,11 +305,14 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
             if (metric != null) {
                 metric.getCurrentIngest().inc(indexRequest.index(), indexRequest.type(), indexRequest.id());
             }
-            bulkProcessor.add(indexRequest);
+            bulkProcessor.add(indexRequest, listener, priority);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of index request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -292,6 +337,20 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
 
     @Override
     public BulkNodeClient bulkDelete(DeleteRequest deleteRequest) {
+        return bulkDelete(deleteRequest, null, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkNodeClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener) {
+        return bulkDelete(deleteRequest, listener, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkNodeClient bulkDelete(DeleteRequest deleteRequest, BulkPriority priority) {
+        return bulkDelete(deleteRequest, null, priority);
+    }
+
+    private BulkNodeClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener, BulkPriority priority) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
@@ -299,11 +358,14 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
             if (metric != null) {
                 metric.getCurrentIngest().inc(deleteRequest.index(), deleteRequest.type(), deleteRequest.id());
             }
-            bulkProcessor.add(deleteRequest);
+            bulkProcessor.add(deleteRequest, listener, priority);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of delete failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -328,6 +390,11 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
 
     @Override
     public BulkNodeClient bulkUpdate(UpdateRequest updateRequest) {
+        return bulkUpdate(updateRequest, null);
+    }
+
+    @Override
+    public BulkNodeClient bulkUpdate(UpdateRequest updateRequest, ActionListener<BulkItemResponse> listener) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
@@ -335,11 +402,14 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
             if (metric != null) {
                 metric.getCurrentIngest().inc(updateRequest.index(), updateRequest.type(), updateRequest.id());
             }
-            bulkProcessor.add(updateRequest);
+            bulkProcessor.add(updateRequest, listener);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of update request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -365,6 +435,22 @@ public class BulkNodeClient extends BaseClient implements ClientAPI {
         return this;
     }
 
+    /**
+     * Close the bulk processor within a deadline and return the actions which have not been acknowledged,
+     * see {@link BulkProcessor#drain(long, TimeUnit)}.
+     *
+     * @param maxWaitTime maximum time to wait for responses
+     * @return the unacknowledged actions
+     * @throws InterruptedException if wait is interrupted
+     */
+    public BulkRequest drain(TimeValue maxWaitTime) throws InterruptedException {
+        if (closed) {
+            throw new ElasticsearchException("client is closed");
+        }
+        logger.debug("draining bulk processor");
+        return bulkProcessor.drain(maxWaitTime.nanos(), TimeUnit.NANOSECONDS);
+    }
+
     @Override
     public BulkNodeClient startBulk(String index, long startRefreshIntervalMillis, long stopRefreshItervalMillis) throws IOException {
         if (metric == null) {
@@ -0,0 +1,12 @@
+package org.xbib.elasticsearch.helper.client;
+
+/**
+ * The priority of a bulked action. Actions of high priority, like deletes and corrections of live data,
+ * are buffered in a lane of their own, so they do not wait behind large amounts of backfill.
+ */
+public enum BulkPriority {
+
+    NORMAL,
+
+    HIGH
+}
@@ -1,5 +1,6 @@
 package org.xbib.elasticsearch.helper.client;
 
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.bulk.BulkAction;
@@ -7,6 +8,7 @@ import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.bytes.BytesReference;
@@ -15,13 +17,25 @@ import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.util.concurrent.FutureUtils;
+import org.xbib.metrics.Count;
+import org.xbib.metrics.Gauge;
+import org.xbib.metrics.MetricRegistry;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -29,6 +43,38 @@ import java.util.concurrent.atomic.AtomicLong;
  * (either based on number of actions, based on the size, or time), and to easily control the number of concurrent bulk
  * requests allowed to be executed in parallel.
  * In order to create a new bulk processor, use the {@link Builder}.
+ *
+ * By default, all producers share a single bulk request buffer. With {@link Builder#setStripes(int)}, the buffer is
+ * split into independently locked stripes, and each producer thread is assigned a stripe round-robin on its first
+ * action, so concurrent producers do not contend on one monitor. The flush thresholds apply to the actions of all
+ * stripes together: once they are reached, the stripes are flushed into a single bulk request.
+ *
+ * With {@link Builder#setMaxRetries(int)}, bulk items which failed because of a rejected execution or an
+ * unavailable shard are resubmitted after a backoff, see {@link BulkRetryHandler}.
+ *
+ * With {@link Builder#setByteBudget(ByteBudget)}, the bytes of buffered and in-flight actions are limited. If the
+ * budget is exhausted, the buffered actions are flushed and adding actions waits until responses release bytes.
+ *
+ * With {@link Builder#setShardPartitioner(ShardPartitioner)}, there is one buffer for each node holding primary
+ * shards, and each action is added to the buffer of the node of its primary shard, so a bulk request touches the
+ * primaries of a single node only. The flush thresholds apply to each buffer. The stripes setting is ignored.
+ *
+ * With {@link Builder#setDoubleBuffered(boolean)} and no concurrent requests, a single bulk request is in flight
+ * while producers fill the next one, and bulk requests are sent in the order they were flushed. Producers only
+ * wait if the next bulk request is full before the response of the previous one has been received.
+ *
+ * With {@link Builder#setHighPriorityBulkActions(int)}, actions added with {@link BulkPriority#HIGH} are buffered
+ * in a lane of their own, with its own thresholds. With concurrent requests, normal bulk requests may hold all
+ * but one of the permits, so a high priority bulk request waits for at most one normal bulk request in flight.
+ *
+ * With {@link Builder#setCoalescing(boolean)}, repeated operations on the same document in a buffer are
+ * coalesced, see {@link BulkCoalescer}.
+ *
+ * With {@link Builder#setMetricRegistry(MetricRegistry)}, waiting times, bulk request sizes and flush reasons
+ * are recorded, see {@link BulkProcessorMetrics}.
+ *
+ * With {@link #drain(long, TimeUnit)}, the processor is closed within a deadline, and the actions which have
+ * not been acknowledged are returned, so they can be persisted and resubmitted.
  */
 public class BulkProcessor implements Closeable {
 
@@ -76,6 +122,20 @@ public class BulkProcessor implements Closeable {
         private int bulkActions = 1000;
         private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
         private TimeValue flushInterval = null;
+        private int stripes = 1;
+        private AdaptiveBulkSizer adaptiveBulkSizer = null;
+        private int maxRetries = 0;
+        private TimeValue retryBackoff = TimeValue.timeValueMillis(100);
+        private Count retryCounter = null;
+        private ByteBudget byteBudget = null;
+        private ShardPartitioner shardPartitioner = null;
+        private TimeValue maxAge = null;
+        private boolean doubleBuffered = false;
+        private int highPriorityBulkActions = 0;
+        private TimeValue highPriorityMaxAge = null;
+        private boolean coalescing = false;
+        private Count coalescedCounter = null;
+        private MetricRegistry metricRegistry = null;
 
         /**
          * Creates a builder of bulk processor with the client to use and the listener that will be used
@@ -144,12 +204,170 @@ public class BulkProcessor implements Closeable {
             return this;
         }
 
+        /**
+         * Sets the number of stripes for accumulating bulk actions. Each stripe holds its own bulk request
+         * under its own lock, producer threads are spread over the stripes. The number of actions and the size
+         * which trigger the execution of a bulk request are counted over all stripes. A value of <tt>1</tt> means
+         * all producers share a single bulk request. Defaults to <tt>1</tt>.
+         * @param stripes the number of stripes
+         * @return this builder
+         */
+        public Builder setStripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Sets an adaptive bulk sizer which controls the number of actions per bulk request from the latency
+         * of the executions, instead of the fixed number of {@link #setBulkActions(int)}.
+         * The bulk size set by {@link #setBulkSize(ByteSizeValue)} remains an upper limit. Defaults to not set.
+         * @param adaptiveBulkSizer the adaptive bulk sizer
+         * @return this builder
+         */
+        public Builder setAdaptiveBulkSizer(AdaptiveBulkSizer adaptiveBulkSizer) {
+            this.adaptiveBulkSizer = adaptiveBulkSizer;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of times a bulk item is resubmitted if it failed because of a rejected
+         * execution or an unavailable shard. The retries wait for an exponential backoff with jitter and are
+         * executed within the concurrent request of the original bulk request. Defaults to <tt>0</tt> (no retries).
+         * @param maxRetries the maximum number of retries
+         * @return this builder
+         */
+        public Builder setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Sets the backoff before the first retry of failed bulk items. The backoff is doubled with each further
+         * retry. Defaults to <tt>100ms</tt>.
+         * @param retryBackoff the initial retry backoff
+         * @return this builder
+         */
+        public Builder setRetryBackoff(TimeValue retryBackoff) {
+            this.retryBackoff = retryBackoff;
+            return this;
+        }
+
+        /**
+         * Sets a counter for the number of retried bulk items. Defaults to not set.
+         * @param retryCounter the retry counter
+         * @return this builder
+         */
+        public Builder setRetryCounter(Count retryCounter) {
+            this.retryCounter = retryCounter;
+            return this;
+        }
+
+        /**
+         * Sets a byte budget which limits the estimated size of buffered and in-flight actions. Defaults to not set.
+         * @param byteBudget the byte budget
+         * @return this builder
+         */
+        public Builder setByteBudget(ByteBudget byteBudget) {
+            this.byteBudget = byteBudget;
+            return this;
+        }
+
+        /**
+         * Sets a shard partitioner for buffering actions by the node of their primary shard. Defaults to not set.
+         * @param shardPartitioner the shard partitioner
+         * @return this builder
+         */
+        public Builder setShardPartitioner(ShardPartitioner shardPartitioner) {
+            this.shardPartitioner = shardPartitioner;
+            return this;
+        }
+
+        /**
+         * Sets a maximum age of buffered actions. Once the oldest buffered action of a bulk request reaches
+         * this age, the bulk request is flushed, regardless of its size. Unlike the flush interval, the timer
+         * runs only while actions are buffered. Defaults to not set.
+         * @param maxAge the maximum age of a buffered action
+         * @return this builder
+         */
+        public Builder setMaxAge(TimeValue maxAge) {
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        /**
+         * Sets double buffering for a bulk processor without concurrent requests. The next bulk request is filled
+         * while the previous one is in flight, with strict ordering of bulk requests and at most one request
+         * in flight. Has no effect if concurrent requests are enabled. Defaults to <tt>false</tt>.
+         * @param doubleBuffered true for double buffering
+         * @return this builder
+         */
+        public Builder setDoubleBuffered(boolean doubleBuffered) {
+            this.doubleBuffered = doubleBuffered;
+            return this;
+        }
+
+        /**
+         * Sets the number of actions in the lane for high priority actions which trigger the execution of a
+         * bulk request. A value of 0 disables the lane, and high priority actions are buffered like all other
+         * actions. Defaults to <tt>0</tt>.
+         * @param highPriorityBulkActions the number of high priority actions per bulk request
+         * @return this builder
+         */
+        public Builder setHighPriorityBulkActions(int highPriorityBulkActions) {
+            this.highPriorityBulkActions = highPriorityBulkActions;
+            return this;
+        }
+
+        /**
+         * Sets a maximum age of actions buffered in the lane for high priority actions. Defaults to not set.
+         * @param highPriorityMaxAge the maximum age of a buffered high priority action
+         * @return this builder
+         */
+        public Builder setHighPriorityMaxAge(TimeValue highPriorityMaxAge) {
+            this.highPriorityMaxAge = highPriorityMaxAge;
+            return this;
+        }
+
+        /**
+         * Sets coalescing of repeated operations on the same document while they are buffered.
+         * Defaults to <tt>false</tt>.
+         * @param coalescing true for coalescing
+         * @return this builder
+         */
+        public Builder setCoalescing(boolean coalescing) {
+            this.coalescing = coalescing;
+            return this;
+        }
+
+        /**
+         * Sets a counter for the number of operations saved by coalescing.
+         * @param coalescedCounter the counter
+         * @return this builder
+         */
+        public Builder setCoalescedCounter(Count coalescedCounter) {
+            this.coalescedCounter = coalescedCounter;
+            return this;
+        }
+
+        /**
+         * Sets a metric registry for the metrics of the internals of this bulk processor. Defaults to not set.
+         * @param metricRegistry the metric registry
+         * @return this builder
+         */
+        public Builder setMetricRegistry(MetricRegistry metricRegistry) {
+            this.metricRegistry = metricRegistry;
+            return this;
+        }
+
         /**
          * Builds a new bulk processor.
          * @return a bulk processor
          */
         public BulkProcessor build() {
-            return new BulkProcessor(client, listener, name, concurrentRequests, bulkActions, bulkSize, flushInterval);
+            return new BulkProcessor(client, listener, name, concurrentRequests, bulkActions, bulkSize, flushInterval,
+                    stripes, adaptiveBulkSizer, maxRetries, retryBackoff, retryCounter, byteBudget,
+                    shardPartitioner, maxAge, doubleBuffered, highPriorityBulkActions, highPriorityMaxAge,
+                    coalescing, coalescedCounter, metricRegistry);
         }
     }
 
@@ -160,6 +378,11 @@ public class BulkProcessor implements Closeable {
         return new Builder(client, listener);
     }
 
+    /**
+     * The fixed overhead of an index or delete action in the size estimate of {@link BulkRequest}.
+     */
+    private static final int REQUEST_OVERHEAD = 50;
+
     private final int bulkActions;
     private final long bulkSize;
 
@@ -168,29 +391,92 @@ public class BulkProcessor implements Closeable {
 
     private final AtomicLong executionIdGen = new AtomicLong();
 
-    private BulkRequest bulkRequest;
+    private final Stripe[] stripes;
+    private final ThreadLocal<Integer> stripeIndex;
+    private final AtomicInteger bufferedActions = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Stripe highPriorityLane;
+    private final boolean coalescing;
+    private final Count coalescedCounter;
+    private final BulkProcessorMetrics metrics;
+    private final int highPriorityBulkActions;
+    private final ShardPartitioner shardPartitioner;
+    private final ConcurrentMap<String, Stripe> partitions;
+    private final AdaptiveBulkSizer adaptiveBulkSizer;
+    private final BulkRetryHandler retryHandler;
+    private final ByteBudget byteBudget;
+    private final MaxAgeFlusher maxAgeFlusher;
+    private final MaxAgeFlusher highPriorityMaxAgeFlusher;
     private final BulkRequestHandler bulkRequestHandler;
 
+    private final ConcurrentSkipListMap<Long, BulkRequest> unacknowledged = new ConcurrentSkipListMap<>();
+
     private volatile boolean closed = false;
 
-    BulkProcessor(Client client, Listener listener, @Nullable String name, int concurrentRequests, int bulkActions, ByteSizeValue bulkSize, @Nullable TimeValue flushInterval) {
+    private volatile boolean draining = false;
+
+    private volatile long drainDeadline;
+
+    BulkProcessor(Client client, Listener listener, @Nullable String name, int concurrentRequests, int bulkActions, ByteSizeValue bulkSize, @Nullable TimeValue flushInterval,
+                  int stripes, @Nullable AdaptiveBulkSizer adaptiveBulkSizer,
+                  int maxRetries, TimeValue retryBackoff, @Nullable Count retryCounter,
+                  @Nullable ByteBudget byteBudget, @Nullable ShardPartitioner shardPartitioner,
+                  @Nullable TimeValue maxAge, boolean doubleBuffered,
+                  int highPriorityBulkActions, @Nullable TimeValue highPriorityMaxAge,
+                  boolean coalescing, @Nullable Count coalescedCounter,
+                  @Nullable MetricRegistry metricRegistry) {
         this.bulkActions = bulkActions;
+        this.byteBudget = byteBudget;
+        this.coalescing = coalescing;
+        this.coalescedCounter = coalescedCounter;
+        this.metrics = metricRegistry != null ?
+                new BulkProcessorMetrics(metricRegistry, name, new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return numberOfBufferedActions();
+                    }
+                }) : null;
+        if (metrics != null) {
+            listener = metrics.wrap(listener);
+        }
+        listener = new Acknowledger(listener);
         this.bulkSize = bulkSize.bytes();
+        this.adaptiveBulkSizer = adaptiveBulkSizer;
 
-        this.bulkRequest = new BulkRequest();
-        this.bulkRequestHandler = concurrentRequests == 0 ?
-                new SyncBulkRequestHandler(client, listener) :
-                new AsyncBulkRequestHandler(client, listener, concurrentRequests);
-
-        if (flushInterval != null) {
+        this.stripes = new Stripe[shardPartitioner != null ? 0 : Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe(false);
+        }
+        this.stripeIndex = this.stripes.length > 1 ? new StripeIndex(this.stripes.length) : null;
+        this.highPriorityBulkActions = highPriorityBulkActions;
+        this.highPriorityLane = highPriorityBulkActions > 0 ? new Stripe(true) : null;
+        this.shardPartitioner = shardPartitioner;
+        this.partitions = shardPartitioner != null ? new ConcurrentHashMap<String, Stripe>() : null;
+        if (flushInterval != null || maxAge != null || (highPriorityLane != null && highPriorityMaxAge != null)) {
             this.scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory(client.settings(), (name != null ? "[" + name + "]" : "") + "bulk_processor"));
             this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
             this.scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
-            this.scheduledFuture = this.scheduler.scheduleWithFixedDelay(new Flush(), flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
         } else {
             this.scheduler = null;
+        }
+        if (flushInterval != null) {
+            this.scheduledFuture = this.scheduler.scheduleWithFixedDelay(new Flush(flushInterval), flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+        } else {
             this.scheduledFuture = null;
         }
+        this.maxAgeFlusher = maxAge != null ? new MaxAgeFlusher(scheduler, maxAge, new AgedStripes()) : null;
+        this.highPriorityMaxAgeFlusher = highPriorityLane != null && highPriorityMaxAge != null ?
+                new MaxAgeFlusher(scheduler, highPriorityMaxAge, highPriorityLane) : null;
+        this.retryHandler = maxRetries > 0 ?
+                new BulkRetryHandler(client, name, maxRetries, retryBackoff, retryCounter) : null;
+        if (concurrentRequests == 0) {
+            this.bulkRequestHandler = doubleBuffered ?
+                    new DoubleBufferedBulkRequestHandler(client, listener) :
+                    new SyncBulkRequestHandler(client, listener);
+        } else {
+            this.bulkRequestHandler = new AsyncBulkRequestHandler(client, listener, concurrentRequests,
+                    highPriorityLane != null);
+        }
     }
 
     /**
@@ -208,7 +494,8 @@ public class BulkProcessor implements Closeable {
     /**
      * Closes the processor. If flushing by time is enabled, then it's shutdown. Any remaining bulk actions are flushed.
      *
-     * If concurrent requests are not enabled, returns {@code true} immediately.
+     * If concurrent requests are not enabled, returns {@code true} immediately, unless double buffering is enabled,
+     * which waits for the bulk request in flight.
      * If concurrent requests are enabled, waits for up to the specified timeout for all bulk requests to complete then returns {@code true},
      * If the specified waiting time elapses before all bulk requests complete, {@code false} is returned.
      *
@@ -221,15 +508,85 @@ public class BulkProcessor implements Closeable {
         if (closed) {
             return true;
         }
+        closeAndFlush();
+        try {
+            return this.bulkRequestHandler.awaitClose(timeout, unit);
+        } finally {
+            if (this.retryHandler != null) {
+                this.retryHandler.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the processor within a deadline, and returns the actions which have not been acknowledged.
+     * The remaining bulk actions are flushed, and the responses of the bulk requests in flight are awaited
+     * until the deadline. Bulk requests which can not be sent before the deadline are not sent at all, they
+     * are passed to the listener with an {@link ElasticsearchTimeoutException}.
+     *
+     * The returned bulk request holds the actions and payloads of all bulk requests without a response,
+     * or with a failure while draining, in the order of their execution. It can be serialized and
+     * resubmitted later. A response arriving after the deadline is still passed to the listener, so
+     * resubmitted actions may have been executed already: the delivery is at least once.
+     *
+     * @param timeout The maximum time to wait for the bulk requests to complete
+     * @param unit The time unit of the {@code timeout} argument
+     * @return the unacknowledged actions, an empty bulk request if all actions have been acknowledged
+     * @throws InterruptedException If the current thread is interrupted
+     */
+    public synchronized BulkRequest drain(long timeout, TimeUnit unit) throws InterruptedException {
+        BulkRequest bulkRequest = new BulkRequest();
+        if (closed) {
+            return bulkRequest;
+        }
+        this.drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+        this.draining = true;
+        closeAndFlush();
+        try {
+            this.bulkRequestHandler.awaitClose(remainingNanos(), TimeUnit.NANOSECONDS);
+        } finally {
+            if (this.retryHandler != null) {
+                this.retryHandler.close();
+            }
+        }
+        for (BulkRequest request : unacknowledged.values()) {
+            List<Object> payloads = request.payloads();
+            for (int i = 0; i < request.requests().size(); i++) {
+                bulkRequest.add(request.requests().get(i), payloads != null ? payloads.get(i) : null);
+            }
+        }
+        return bulkRequest;
+    }
+
+    private void closeAndFlush() {
         closed = true;
         if (this.scheduledFuture != null) {
             FutureUtils.cancel(this.scheduledFuture);
+        }
+        if (this.maxAgeFlusher != null) {
+            this.maxAgeFlusher.cancel();
+        }
+        if (this.highPriorityMaxAgeFlusher != null) {
+            this.highPriorityMaxAgeFlusher.cancel();
+        }
+        if (this.scheduler != null) {
             this.scheduler.shutdown();
         }
-        if (bulkRequest.numberOfActions() > 0) {
-            execute();
+        for (Stripe stripe : stripes()) {
+            stripe.flush(BulkProcessorMetrics.FlushReason.CLOSE);
         }
-        return this.bulkRequestHandler.awaitClose(timeout, unit);
+        if (this.metrics != null) {
+            this.metrics.close();
+        }
+    }
+
+    /**
+     * Returns the time left until the drain deadline.
+     *
+     * @return the remaining nanoseconds, or {@code Long.MAX_VALUE} if the processor is not draining
+     */
+    private long remainingNanos() {
+        return draining ? Math.max(0L, drainDeadline - System.nanoTime()) : Long.MAX_VALUE;
     }
 
     /**
@@ -267,7 +624,20 @@ public class BulkProcessor implements Closeable {
      * @return his bulk processor
      */
     public BulkProcessor add(ActionRequest request, @Nullable Object payload) {
-        internalAdd(request, payload);
+        internalAdd(request, payload, BulkPriority.NORMAL);
+        return this;
+    }
+
+    /**
+     * Adds either a delete or an index request with a payload and a priority. If there is no lane for high
+     * priority actions, the priority is ignored.
+     * @param request request
+     * @param payload payload
+     * @param priority the priority
+     * @return his bulk processor
+     */
+    public BulkProcessor add(ActionRequest request, @Nullable Object payload, BulkPriority priority) {
+        internalAdd(request, payload, priority);
         return this;
     }
 
@@ -277,74 +647,488 @@ public class BulkProcessor implements Closeable {
         }
     }
 
-    private synchronized void internalAdd(ActionRequest request, @Nullable Object payload) {
-        ensureOpen();
-        bulkRequest.add(request, payload);
-        executeIfNeeded();
+    private void internalAdd(ActionRequest request, @Nullable Object payload, BulkPriority priority) {
+        Stripe stripe = priority == BulkPriority.HIGH && highPriorityLane != null ? highPriorityLane : stripe(request);
+        if (byteBudget == null) {
+            stripe.add(request, payload, 0L);
+            executeStripesIfNeeded();
+            return;
+        }
+        long bytes = sizeOf(request);
+        acquire(bytes);
+        try {
+            stripe.add(request, payload, bytes);
+        } catch (RuntimeException e) {
+            byteBudget.release(bytes);
+            throw e;
+        }
+        executeStripesIfNeeded();
     }
 
     public BulkProcessor add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType) throws Exception {
         return add(data, defaultIndex, defaultType, null);
     }
 
-    public synchronized BulkProcessor add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType, @Nullable Object payload) throws Exception {
-        bulkRequest.add(data, defaultIndex, defaultType, null, null, payload, true);
-        executeIfNeeded();
+    public BulkProcessor add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType, @Nullable Object payload) throws Exception {
+        if (shardPartitioner != null || coalescing) {
+            // the actions must be routed or coalesced one by one
+            BulkRequest parsed = new BulkRequest().add(data, defaultIndex, defaultType, null, null, payload, true);
+            List<Object> payloads = parsed.payloads();
+            for (int i = 0; i < parsed.requests().size(); i++) {
+                internalAdd(parsed.requests().get(i), payloads != null ? payloads.get(i) : null, BulkPriority.NORMAL);
+            }
+            return this;
+        }
+        if (byteBudget == null) {
+            stripe().add(data, defaultIndex, defaultType, payload, 0L);
+            executeStripesIfNeeded();
+            return this;
+        }
+        BulkRequest parsed = new BulkRequest().add(data, defaultIndex, defaultType, null, null, payload, true);
+        long bytes = 0L;
+        for (ActionRequest request : parsed.requests()) {
+            bytes += sizeOf(request);
+        }
+        acquire(bytes);
+        try {
+            stripe().add(parsed, bytes);
+        } catch (RuntimeException e) {
+            byteBudget.release(bytes);
+            throw e;
+        }
+        executeStripesIfNeeded();
         return this;
     }
 
-    private void executeIfNeeded() {
+    /**
+     * The estimated size of an action, as estimated by {@link BulkRequest}, without adding the action to a
+     * bulk request.
+     * @param request the action
+     * @return the estimated size in bytes
+     */
+    static long sizeOf(ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            return (indexRequest.source() != null ? indexRequest.source().length() : 0) + REQUEST_OVERHEAD;
+        }
+        if (request instanceof UpdateRequest) {
+            UpdateRequest updateRequest = (UpdateRequest) request;
+            long size = 0L;
+            if (updateRequest.doc() != null && updateRequest.doc().source() != null) {
+                size += updateRequest.doc().source().length();
+            }
+            if (updateRequest.upsertRequest() != null && updateRequest.upsertRequest().source() != null) {
+                size += updateRequest.upsertRequest().source().length();
+            }
+            if (updateRequest.script() != null) {
+                size += updateRequest.script().getScript().length() * 2;
+            }
+            return size;
+        }
+        return REQUEST_OVERHEAD;
+    }
+
+    /**
+     * Acquire bytes from the byte budget. If the budget is exhausted, the buffered actions are flushed first,
+     * so they do not hold the budget while producers wait.
+     * @param bytes the number of bytes
+     */
+    private void acquire(long bytes) {
         ensureOpen();
-        if (!isOverTheLimit()) {
+        if (byteBudget.tryAcquire(bytes)) {
             return;
         }
-        execute();
+        for (Stripe stripe : stripes()) {
+            stripe.flush(BulkProcessorMetrics.FlushReason.BYTE_BUDGET);
+        }
+        try {
+            byteBudget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for byte budget", e);
+        }
     }
 
-    private void execute() {
-        final BulkRequest bulkRequest = this.bulkRequest;
-        final long executionId = executionIdGen.incrementAndGet();
+    private void release(long bytes) {
+        if (byteBudget != null) {
+            byteBudget.release(bytes);
+        }
+    }
 
-        this.bulkRequest = new BulkRequest();
-        this.bulkRequestHandler.execute(bulkRequest, executionId);
+    /**
+     * Flush pending delete or index requests.
+     */
+    public void flush() {
+        ensureOpen();
+        for (Stripe stripe : stripes()) {
+            stripe.flush(BulkProcessorMetrics.FlushReason.MANUAL);
+        }
     }
 
-    private boolean isOverTheLimit() {
-        return bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions || bulkSize != -1 && bulkRequest.estimatedSizeInBytes() >= bulkSize;
+    /**
+     * Returns the number of actions which are buffered but not yet executed.
+     * @return the number of buffered actions
+     */
+    public int numberOfBufferedActions() {
+        int n = 0;
+        for (Stripe stripe : stripes()) {
+            n += stripe.numberOfActions();
+        }
+        return n;
     }
 
     /**
-     * Flush pending delete or index requests.
+     * Returns the number of actions which trigger the execution of a bulk request. If an adaptive bulk sizer
+     * is set, this is the number of actions currently chosen by the sizer.
+     * @return the number of actions per bulk request
      */
-    public synchronized void flush() {
-        ensureOpen();
+    public int getBulkActions() {
+        return adaptiveBulkSizer != null ? adaptiveBulkSizer.getBulkActions() : bulkActions;
+    }
+
+    private Stripe stripe(ActionRequest request) {
+        if (shardPartitioner != null) {
+            String partition = shardPartitioner.partition(request);
+            Stripe stripe = partitions.get(partition);
+            if (stripe == null) {
+                Stripe newStripe = new Stripe(false);
+                stripe = partitions.putIfAbsent(partition, newStripe);
+                if (stripe == null) {
+                    stripe = newStripe;
+                }
+            }
+            return stripe;
+        }
+        return stripe();
+    }
+
+    private Stripe stripe() {
+        if (stripes.length == 1) {
+            return stripes[0];
+        }
+        return stripes[stripeIndex.get()];
+    }
+
+    private Iterable<Stripe> stripes() {
+        Collection<Stripe> c = partitions != null ? partitions.values() : Arrays.asList(stripes);
+        if (highPriorityLane == null) {
+            return c;
+        }
+        List<Stripe> list = new ArrayList<>(c.size() + 1);
+        list.addAll(c);
+        list.add(highPriorityLane);
+        return list;
+    }
+
+    private boolean isOverTheLimit(BulkRequest bulkRequest, long savedBytes) {
+        return isOverTheLimit(bulkRequest.numberOfActions(), bulkRequest.estimatedSizeInBytes() - savedBytes);
+    }
+
+    private boolean isOverTheLimit(int numberOfActions, long sizeInBytes) {
+        int bulkActions = getBulkActions();
+        return bulkActions != -1 && numberOfActions >= bulkActions ||
+                bulkSize != -1 && sizeInBytes >= bulkSize;
+    }
+
+    /**
+     * With more than one stripe, check the flush thresholds against the actions of all stripes, and flush the
+     * stripes into a single bulk request if they are reached. Must not be called while holding a stripe lock.
+     */
+    private void executeStripesIfNeeded() {
+        if (stripeIndex == null || !isOverTheLimit(bufferedActions.get(), bufferedBytes.get())) {
+            return;
+        }
+        BulkRequest bulkRequest;
+        long bytes = 0L;
+        BulkProcessorMetrics.FlushReason reason;
+        synchronized (stripes) {
+            // another producer may have flushed the stripes in the meantime
+            if (!isOverTheLimit(bufferedActions.get(), bufferedBytes.get())) {
+                return;
+            }
+            int bulkActions = getBulkActions();
+            reason = bulkActions != -1 && bufferedActions.get() >= bulkActions ?
+                    BulkProcessorMetrics.FlushReason.ACTIONS : BulkProcessorMetrics.FlushReason.SIZE;
+            bulkRequest = new BulkRequest();
+            for (Stripe stripe : stripes) {
+                bytes += stripe.moveTo(bulkRequest);
+            }
+        }
         if (bulkRequest.numberOfActions() > 0) {
-            execute();
+            execute(bulkRequest, bytes, false, reason);
+        }
+    }
+
+    private void execute(BulkRequest bulkRequest, long bytes, boolean highPriority, BulkProcessorMetrics.FlushReason reason) {
+        final long executionId = executionIdGen.incrementAndGet();
+        if (metrics != null) {
+            metrics.flushed(reason, bulkRequest);
+        }
+        unacknowledged.put(executionId, bulkRequest);
+        bulkRequestHandler.execute(bulkRequest, executionId, bytes, highPriority);
+    }
+
+    /**
+     * Assigns the stripes round-robin to the producer threads, on their first action.
+     */
+    private static class StripeIndex extends ThreadLocal<Integer> {
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final int stripes;
+
+        StripeIndex(int stripes) {
+            this.stripes = stripes;
+        }
+
+        @Override
+        protected Integer initialValue() {
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % stripes;
+        }
+    }
+
+    /**
+     * A stripe is a bulk request buffer guarded by its own lock.
+     */
+    class Stripe implements MaxAgeFlusher.Buffer {
+
+        private final boolean highPriority;
+
+        private final BulkCoalescer coalescer;
+
+        private BulkRequest bulkRequest = new BulkRequest();
+
+        private long budgetBytes;
+
+        private long firstNanos = MaxAgeFlusher.EMPTY;
+
+        private int countedActions;
+
+        private long countedBytes;
+
+        Stripe(boolean highPriority) {
+            this.highPriority = highPriority;
+            this.coalescer = coalescing ? new BulkCoalescer(coalescedCounter) : null;
+        }
+
+        synchronized void add(ActionRequest request, @Nullable Object payload, long bytes) {
+            ensureOpen();
+            if (coalescer == null) {
+                bulkRequest.add(request, payload);
+            } else if (!coalescer.coalesce(bulkRequest.requests(), bulkRequest.payloads(), request, payload)) {
+                bulkRequest.add(request, payload);
+                coalescer.added(bulkRequest.requests(), request, bulkRequest.numberOfActions() - 1);
+            }
+            budgetBytes += bytes;
+            added();
+        }
+
+        synchronized void add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType, @Nullable Object payload, long bytes) throws Exception {
+            ensureOpen();
+            bulkRequest.add(data, defaultIndex, defaultType, null, null, payload, true);
+            budgetBytes += bytes;
+            added();
+        }
+
+        synchronized void add(BulkRequest parsed, long bytes) {
+            ensureOpen();
+            List<Object> payloads = parsed.payloads();
+            for (int i = 0; i < parsed.requests().size(); i++) {
+                bulkRequest.add(parsed.requests().get(i), payloads != null ? payloads.get(i) : null);
+            }
+            budgetBytes += bytes;
+            added();
+        }
+
+        synchronized void flush(BulkProcessorMetrics.FlushReason reason) {
+            if (bulkRequest.numberOfActions() > 0) {
+                execute(reason);
+            }
+        }
+
+        synchronized int numberOfActions() {
+            return bulkRequest.numberOfActions();
+        }
+
+        @Override
+        public synchronized long flushArrivedBefore(long nanos) {
+            if (firstNanos == MaxAgeFlusher.EMPTY) {
+                return MaxAgeFlusher.EMPTY;
+            }
+            if (firstNanos - nanos <= 0L) {
+                execute(BulkProcessorMetrics.FlushReason.MAX_AGE);
+                return MaxAgeFlusher.EMPTY;
+            }
+            return firstNanos;
+        }
+
+        /**
+         * Move the buffered actions into a bulk request of all stripes.
+         *
+         * @param target the bulk request of all stripes
+         * @return the budget bytes of the moved actions
+         */
+        synchronized long moveTo(BulkRequest target) {
+            long bytes = budgetBytes;
+            List<Object> payloads = bulkRequest.payloads();
+            for (int i = 0; i < bulkRequest.requests().size(); i++) {
+                target.add(bulkRequest.requests().get(i), payloads != null ? payloads.get(i) : null);
+            }
+            reset();
+            return bytes;
+        }
+
+        private void added() {
+            if (firstNanos == MaxAgeFlusher.EMPTY && bulkRequest.numberOfActions() > 0) {
+                firstNanos = System.nanoTime();
+                MaxAgeFlusher flusher = highPriority ? highPriorityMaxAgeFlusher : maxAgeFlusher;
+                if (flusher != null) {
+                    flusher.arm(firstNanos);
+                }
+            }
+            if (stripeIndex != null && !highPriority) {
+                // the thresholds apply to all stripes, checked by executeStripesIfNeeded() outside of this lock
+                int actions = bulkRequest.numberOfActions();
+                long bytes = bulkRequest.estimatedSizeInBytes() - (coalescer != null ? coalescer.savedBytes() : 0L);
+                bufferedActions.addAndGet(actions - countedActions);
+                bufferedBytes.addAndGet(bytes - countedBytes);
+                countedActions = actions;
+                countedBytes = bytes;
+                return;
+            }
+            executeIfNeeded();
+        }
+
+        private void reset() {
+            this.bulkRequest = new BulkRequest();
+            this.budgetBytes = 0L;
+            if (coalescer != null) {
+                coalescer.clear();
+            }
+            this.firstNanos = MaxAgeFlusher.EMPTY;
+            if (countedActions > 0) {
+                bufferedActions.addAndGet(-countedActions);
+                bufferedBytes.addAndGet(-countedBytes);
+                countedActions = 0;
+                countedBytes = 0L;
+            }
+        }
+
+        private void executeIfNeeded() {
+            if (highPriority ? bulkRequest.numberOfActions() < highPriorityBulkActions : !isOverTheLimit(bulkRequest, coalescer != null ? coalescer.savedBytes() : 0L)) {
+                return;
+            }
+            int bulkActions = highPriority ? highPriorityBulkActions : getBulkActions();
+            execute(bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions ?
+                    BulkProcessorMetrics.FlushReason.ACTIONS : BulkProcessorMetrics.FlushReason.SIZE);
+        }
+
+        private void execute(BulkProcessorMetrics.FlushReason reason) {
+            final BulkRequest bulkRequest = this.bulkRequest;
+            final long bytes = this.budgetBytes;
+            reset();
+            BulkProcessor.this.execute(bulkRequest, bytes, highPriority, reason);
         }
     }
 
     class Flush implements Runnable {
 
+        private final long intervalNanos;
+
+        private long expectedNanos;
+
+        Flush(TimeValue interval) {
+            this.intervalNanos = interval.nanos();
+            this.expectedNanos = System.nanoTime() + intervalNanos;
+        }
+
         @Override
         public void run() {
-            synchronized (BulkProcessor.this) {
-                if (closed) {
-                    return;
+            if (closed) {
+                return;
+            }
+            if (metrics != null) {
+                metrics.flushLag(System.nanoTime() - expectedNanos);
+            }
+            if (shardPartitioner != null) {
+                // follow shard relocations and new indices
+                shardPartitioner.refresh();
+            }
+            for (Stripe stripe : stripes()) {
+                stripe.flush(BulkProcessorMetrics.FlushReason.INTERVAL);
+            }
+            // the next run is scheduled with a fixed delay after this one
+            expectedNanos = System.nanoTime() + intervalNanos;
+        }
+    }
+
+    class AgedStripes implements MaxAgeFlusher.Buffer {
+
+        @Override
+        public long flushArrivedBefore(long nanos) {
+            if (closed) {
+                return MaxAgeFlusher.EMPTY;
+            }
+            long oldest = MaxAgeFlusher.EMPTY;
+            for (Stripe stripe : stripes()) {
+                if (stripe.highPriority) {
+                    continue;
                 }
-                if (bulkRequest.numberOfActions() == 0) {
-                    return;
+                long first = stripe.flushArrivedBefore(nanos);
+                if (first != MaxAgeFlusher.EMPTY && (oldest == MaxAgeFlusher.EMPTY || first - oldest < 0L)) {
+                    oldest = first;
                 }
-                execute();
             }
+            return oldest;
         }
     }
 
+    /**
+     * Forgets bulk requests which have been acknowledged. Failed bulk requests are forgotten too, since their
+     * failure has been passed to the listener, unless the processor is draining.
+     */
+    class Acknowledger implements Listener {
+
+        private final Listener listener;
+
+        Acknowledger(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            listener.beforeBulk(executionId, request);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            unacknowledged.remove(executionId);
+            listener.afterBulk(executionId, request, response);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            if (!draining) {
+                unacknowledged.remove(executionId);
+            }
+            listener.afterBulk(executionId, request, failure);
+        }
+    }
+
+    /**
+     * The failure of a bulk request which could not be sent before the drain deadline. The bulk request
+     * remains unacknowledged, since the processor is draining.
+     */
+    private static ElasticsearchTimeoutException drainTimeout() {
+        return new ElasticsearchTimeoutException("drain deadline passed before the bulk request was sent");
+    }
+
     /**
      * Abstracts the low-level details of bulk request handling
      */
     abstract class BulkRequestHandler {
 
-        public abstract void execute(BulkRequest bulkRequest, long executionId);
+        public abstract void execute(BulkRequest bulkRequest, long executionId, long bytes, boolean highPriority);
 
         public abstract boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException;
 
@@ -359,17 +1143,90 @@ public class BulkProcessor implements Closeable {
             this.listener = listener;
         }
 
-        public void execute(BulkRequest bulkRequest, long executionId) {
+        public synchronized void execute(BulkRequest bulkRequest, long executionId, long bytes, boolean highPriority) {
+            if (draining) {
+                executeDraining(bulkRequest, executionId, bytes);
+                return;
+            }
             boolean afterCalled = false;
             try {
                 listener.beforeBulk(executionId, bulkRequest);
-                BulkResponse bulkResponse = client.execute(BulkAction.INSTANCE, bulkRequest).actionGet();
+                long t0 = System.nanoTime();
+                BulkResponse bulkResponse = retryHandler != null ?
+                        retryHandler.executeAndWait(bulkRequest) :
+                        client.execute(BulkAction.INSTANCE, bulkRequest).actionGet();
+                if (adaptiveBulkSizer != null) {
+                    adaptiveBulkSizer.onResponse(System.nanoTime() - t0, bulkResponse);
+                }
                 afterCalled = true;
                 listener.afterBulk(executionId, bulkRequest, bulkResponse);
             } catch (Throwable t) {
                 if (!afterCalled) {
+                    if (adaptiveBulkSizer != null) {
+                        adaptiveBulkSizer.onFailure(t);
+                    }
                     listener.afterBulk(executionId, bulkRequest, t);
                 }
+            } finally {
+                release(bytes);
+            }
+        }
+
+        /**
+         * Execute a bulk request while draining. The caller waits for the response only until the deadline.
+         * The response is passed to the listener by the responding thread, also when it arrives after the
+         * deadline, and the bulk request remains unacknowledged until then.
+         */
+        private void executeDraining(final BulkRequest bulkRequest, final long executionId, final long bytes) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final long t0 = System.nanoTime();
+            ActionListener<BulkResponse> actionListener = new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    try {
+                        if (adaptiveBulkSizer != null) {
+                            adaptiveBulkSizer.onResponse(System.nanoTime() - t0, response);
+                        }
+                        listener.afterBulk(executionId, bulkRequest, response);
+                    } finally {
+                        release(bytes);
+                        latch.countDown();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    try {
+                        if (adaptiveBulkSizer != null) {
+                            adaptiveBulkSizer.onFailure(e);
+                        }
+                        listener.afterBulk(executionId, bulkRequest, e);
+                    } finally {
+                        release(bytes);
+                        latch.countDown();
+                    }
+                }
+            };
+            boolean sent = false;
+            try {
+                listener.beforeBulk(executionId, bulkRequest);
+                if (retryHandler != null) {
+                    retryHandler.execute(bulkRequest, actionListener);
+                } else {
+                    client.execute(BulkAction.INSTANCE, bulkRequest, actionListener);
+                }
+                sent = true;
+                latch.await(remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                if (!sent) {
+                    try {
+                        listener.afterBulk(executionId, bulkRequest, t);
+                    } finally {
+                        release(bytes);
+                    }
+                }
             }
         }
 
@@ -378,46 +1235,224 @@ public class BulkProcessor implements Closeable {
         }
     }
 
+    /**
+     * Executes one bulk request at a time, without blocking the producers for the round trip. The producer
+     * handing over a bulk request waits only while the previous bulk request is still in flight, so the
+     * bulk requests are executed in the order they were handed over.
+     */
+    class DoubleBufferedBulkRequestHandler extends BulkRequestHandler {
+        private final Client client;
+        private final BulkProcessor.Listener listener;
+        private boolean inFlight;
+
+        private DoubleBufferedBulkRequestHandler(Client client, BulkProcessor.Listener listener) {
+            this.client = client;
+            this.listener = listener;
+        }
+
+        @Override
+        public void execute(final BulkRequest bulkRequest, final long executionId, final long bytes, boolean highPriority) {
+            boolean bulkRequestSetupSuccessful = false;
+            boolean acquired = false;
+            try {
+                listener.beforeBulk(executionId, bulkRequest);
+                synchronized (this) {
+                    if (inFlight) {
+                        long t0 = System.nanoTime();
+                        while (inFlight) {
+                            if (!draining) {
+                                wait();
+                            } else {
+                                long nanos = remainingNanos();
+                                if (nanos <= 0L) {
+                                    break;
+                                }
+                                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                            }
+                        }
+                        if (metrics != null) {
+                            metrics.permitWait(System.nanoTime() - t0);
+                        }
+                    }
+                    if (!inFlight) {
+                        inFlight = true;
+                        acquired = true;
+                    }
+                }
+                if (!acquired) {
+                    // the deadline has passed, the bulk request remains unacknowledged
+                    listener.afterBulk(executionId, bulkRequest, drainTimeout());
+                    return;
+                }
+                final long t0 = System.nanoTime();
+                ActionListener<BulkResponse> actionListener = new ActionListener<BulkResponse>() {
+                    @Override
+                    public void onResponse(BulkResponse response) {
+                        try {
+                            if (adaptiveBulkSizer != null) {
+                                adaptiveBulkSizer.onResponse(System.nanoTime() - t0, response);
+                            }
+                            listener.afterBulk(executionId, bulkRequest, response);
+                        } finally {
+                            release(bytes);
+                            completed();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        try {
+                            if (adaptiveBulkSizer != null) {
+                                adaptiveBulkSizer.onFailure(e);
+                            }
+                            listener.afterBulk(executionId, bulkRequest, e);
+                        } finally {
+                            release(bytes);
+                            completed();
+                        }
+                    }
+                };
+                if (retryHandler != null) {
+                    retryHandler.execute(bulkRequest, actionListener);
+                } else {
+                    client.execute(BulkAction.INSTANCE, bulkRequest, actionListener);
+                }
+                bulkRequestSetupSuccessful = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                listener.afterBulk(executionId, bulkRequest, e);
+            } catch (Throwable t) {
+                listener.afterBulk(executionId, bulkRequest, t);
+            } finally {
+                if (!bulkRequestSetupSuccessful) {
+                    release(bytes);
+                }
+                if (!bulkRequestSetupSuccessful && acquired) {
+                    completed();
+                }
+            }
+        }
+
+        private synchronized void completed() {
+            inFlight = false;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+            while (inFlight) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                nanos = deadline - System.nanoTime();
+            }
+            return true;
+        }
+    }
+
     class AsyncBulkRequestHandler extends BulkRequestHandler {
         private final Client client;
         private final BulkProcessor.Listener listener;
         private final Semaphore semaphore;
+        private final Semaphore normalPriority;
         private final int concurrentRequests;
 
-        private AsyncBulkRequestHandler(Client client, BulkProcessor.Listener listener, int concurrentRequests) {
+        private AsyncBulkRequestHandler(Client client, BulkProcessor.Listener listener, int concurrentRequests,
+                                        boolean priorityLanes) {
             this.client = client;
             this.listener = listener;
             this.concurrentRequests = concurrentRequests;
-            this.semaphore = new Semaphore(concurrentRequests);
+            // with lanes, a fair semaphore lets a waiting high priority bulk request go before the next normal one
+            this.semaphore = new Semaphore(concurrentRequests, priorityLanes);
+            this.normalPriority = priorityLanes ? new Semaphore(Math.max(1, concurrentRequests - 1)) : null;
+        }
+
+        private boolean acquire(Semaphore semaphore) throws InterruptedException {
+            if (metrics == null && !draining) {
+                semaphore.acquire();
+                return true;
+            }
+            // a timed try honors the fairness of the semaphore
+            if (!semaphore.tryAcquire(0L, TimeUnit.NANOSECONDS)) {
+                long t0 = System.nanoTime();
+                if (draining) {
+                    if (!semaphore.tryAcquire(remainingNanos(), TimeUnit.NANOSECONDS)) {
+                        return false;
+                    }
+                } else {
+                    semaphore.acquire();
+                }
+                if (metrics != null) {
+                    metrics.permitWait(System.nanoTime() - t0);
+                }
+            }
+            return true;
+        }
+
+        private void release(boolean normalLane) {
+            semaphore.release();
+            if (normalLane) {
+                normalPriority.release();
+            }
         }
 
         @Override
-        public void execute(final BulkRequest bulkRequest, final long executionId) {
+        public void execute(final BulkRequest bulkRequest, final long executionId, final long bytes, boolean highPriority) {
             boolean bulkRequestSetupSuccessful = false;
             boolean acquired = false;
+            final boolean normalLane = !highPriority && normalPriority != null;
+            boolean normalHeld = false;
             try {
                 listener.beforeBulk(executionId, bulkRequest);
-                semaphore.acquire();
+                // if the drain deadline passes, the bulk request remains unacknowledged
+                if (normalLane) {
+                    if (!acquire(normalPriority)) {
+                        listener.afterBulk(executionId, bulkRequest, drainTimeout());
+                        return;
+                    }
+                    normalHeld = true;
+                }
+                if (!acquire(semaphore)) {
+                    listener.afterBulk(executionId, bulkRequest, drainTimeout());
+                    return;
+                }
                 acquired = true;
-                client.execute(BulkAction.INSTANCE, bulkRequest, new ActionListener<BulkResponse>() {
+                final long t0 = System.nanoTime();
+                ActionListener<BulkResponse> actionListener = new ActionListener<BulkResponse>() {
                     @Override
                     public void onResponse(BulkResponse response) {
                         try {
+                            if (adaptiveBulkSizer != null) {
+                                adaptiveBulkSizer.onResponse(System.nanoTime() - t0, response);
+                            }
                             listener.afterBulk(executionId, bulkRequest, response);
                         } finally {
-                            semaphore.release();
+                            BulkProcessor.this.release(bytes);
+                            release(normalLane);
                         }
                     }
 
                     @Override
                     public void onFailure(Throwable e) {
                         try {
+                            if (adaptiveBulkSizer != null) {
+                                adaptiveBulkSizer.onFailure(e);
+                            }
                             listener.afterBulk(executionId, bulkRequest, e);
                         } finally {
-                            semaphore.release();
+                            BulkProcessor.this.release(bytes);
+                            release(normalLane);
                         }
                     }
-                });
+                };
+                if (retryHandler != null) {
+                    retryHandler.execute(bulkRequest, actionListener);
+                } else {
+                    client.execute(BulkAction.INSTANCE, bulkRequest, actionListener);
+                }
                 bulkRequestSetupSuccessful = true;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -425,8 +1460,13 @@ public class BulkProcessor implements Closeable {
             } catch (Throwable t) {
                 listener.afterBulk(executionId, bulkRequest, t);
             } finally {
+                if (!bulkRequestSetupSuccessful) {
+                    BulkProcessor.this.release(bytes);
+                }
                 if (!bulkRequestSetupSuccessful && acquired) {  // if we fail on client.bulk() release the semaphore
-                    semaphore.release();
+                    release(normalLane);
+                } else if (!bulkRequestSetupSuccessful && normalHeld) {
+                    normalPriority.release();
                 }
             }
         }
@@ -0,0 +1,115 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.Nullable;
+import org.xbib.metrics.CountMetric;
+import org.xbib.metrics.Gauge;
+import org.xbib.metrics.Histogram;
+import org.xbib.metrics.MetricName;
+import org.xbib.metrics.MetricRegistry;
+import org.xbib.metrics.Sampler;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the internals of a bulk processor, registered in a metric registry under the name of the processor:
+ * <ul>
+ * <li>{@code permit_wait} - a sampler of the time producers are blocked waiting for a bulk request permit</li>
+ * <li>{@code before_bulk} - a sampler of the time spent in the before bulk listener</li>
+ * <li>{@code flush_lag} - a sampler of the delay of the flush interval timer</li>
+ * <li>{@code batch.actions}, {@code batch.bytes} - histograms of the size of executed bulk requests</li>
+ * <li>{@code flush.[reason]} - counters of executed bulk requests by the reason of the flush</li>
+ * <li>{@code buffered_actions} - a gauge of the buffered actions</li>
+ * </ul>
+ * Everything is recorded once per bulk request, and waiting times only if a producer is actually blocked,
+ * so the metrics can stay enabled.
+ */
+class BulkProcessorMetrics {
+
+    /**
+     * The reasons for executing a bulk request.
+     */
+    enum FlushReason {
+        ACTIONS, SIZE, INTERVAL, MAX_AGE, BYTE_BUDGET, MANUAL, CLOSE
+    }
+
+    private final MetricRegistry registry;
+
+    private final Sampler permitWait;
+
+    private final Sampler beforeBulk;
+
+    private final Sampler flushLag;
+
+    private final Histogram batchActions;
+
+    private final Histogram batchBytes;
+
+    private final CountMetric[] flushes;
+
+    private final MetricName bufferedActionsName;
+
+    BulkProcessorMetrics(MetricRegistry registry, @Nullable String name, Gauge<Integer> bufferedActions) {
+        String prefix = MetricRegistry.name(BulkProcessor.class, name != null ? name : "default").getKey();
+        this.registry = registry;
+        this.permitWait = registry.timer(MetricRegistry.name(prefix, "permit_wait"));
+        this.beforeBulk = registry.timer(MetricRegistry.name(prefix, "before_bulk"));
+        this.flushLag = registry.timer(MetricRegistry.name(prefix, "flush_lag"));
+        this.batchActions = registry.histogram(MetricRegistry.name(prefix, "batch", "actions"));
+        this.batchBytes = registry.histogram(MetricRegistry.name(prefix, "batch", "bytes"));
+        FlushReason[] reasons = FlushReason.values();
+        this.flushes = new CountMetric[reasons.length];
+        for (FlushReason reason : reasons) {
+            flushes[reason.ordinal()] =
+                    registry.counter(MetricRegistry.name(prefix, "flush", reason.name().toLowerCase(Locale.ROOT)));
+        }
+        this.bufferedActionsName = MetricRegistry.name(prefix, "buffered_actions");
+        // a new processor with the same name replaces the gauge of the old one
+        registry.remove(bufferedActionsName);
+        registry.register(bufferedActionsName, bufferedActions);
+    }
+
+    void permitWait(long nanos) {
+        permitWait.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void flushLag(long nanos) {
+        flushLag.update(Math.max(0L, nanos), TimeUnit.NANOSECONDS);
+    }
+
+    void flushed(FlushReason reason, BulkRequest bulkRequest) {
+        flushes[reason.ordinal()].inc();
+        batchActions.inc(bulkRequest.numberOfActions());
+        batchBytes.inc(bulkRequest.estimatedSizeInBytes());
+    }
+
+    BulkProcessor.Listener wrap(final BulkProcessor.Listener listener) {
+        return new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+                long t0 = System.nanoTime();
+                try {
+                    listener.beforeBulk(executionId, request);
+                } finally {
+                    beforeBulk.update(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                listener.afterBulk(executionId, request, response);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                listener.afterBulk(executionId, request, failure);
+            }
+        };
+    }
+
+    void close() {
+        registry.remove(bufferedActionsName);
+    }
+}
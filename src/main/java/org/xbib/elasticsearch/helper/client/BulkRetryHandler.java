@@ -0,0 +1,328 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionWriteResponse;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.bulk.SerializedBulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.metrics.Count;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes bulk requests and resubmits the items which failed with a retryable status, i.e. which were rejected
+ * because of a full bulk queue or which hit an unavailable shard. The resubmitted items are built from the original
+ * action requests, or copied from the bulk content of a {@link SerializedBulkRequest}, and are sent after a jittered
+ * exponential backoff. The response passed to the listener contains
+ * the final outcome of each item at its original position, so each bulk request is reported exactly once.
+ */
+public class BulkRetryHandler implements Closeable {
+
+    private final static Random random = new Random();
+
+    private final Client client;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private final int maxRetries;
+
+    private final long initialBackoffMillis;
+
+    private final Count retried;
+
+    /**
+     * Create a bulk retry handler.
+     *
+     * @param client the client
+     * @param name an optional name for the retry thread
+     * @param maxRetries the maximum number of retries per item
+     * @param initialBackoff the backoff before the first retry, doubled with each further retry
+     * @param retried a counter for the number of retried items, or null
+     */
+    public BulkRetryHandler(Client client, @Nullable String name, int maxRetries,
+                            TimeValue initialBackoff, @Nullable Count retried) {
+        this.client = client;
+        // a scheduler of its own, a blocked flush must not delay the retries which release the concurrent requests
+        this.scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory(client.settings(), (name != null ? "[" + name + "]" : "") + "bulk_retry"));
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(true);
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoff.millis();
+        this.retried = retried;
+    }
+
+    /**
+     * Execute a bulk request asynchronously, with retries of failed items.
+     *
+     * @param bulkRequest the bulk request
+     * @param listener the listener for the final response
+     */
+    public void execute(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+        new Execution(bulkRequest, listener).run();
+    }
+
+    /**
+     * Execute a bulk request, with retries of failed items, and wait for the final response.
+     *
+     * @param bulkRequest the bulk request
+     * @return the final bulk response
+     * @throws InterruptedException if the wait for a backoff was interrupted
+     */
+    public BulkResponse executeAndWait(BulkRequest bulkRequest) throws InterruptedException {
+        Execution execution = new Execution(bulkRequest, null);
+        BulkRequest request = bulkRequest;
+        while (true) {
+            BulkResponse response;
+            try {
+                response = client.execute(BulkAction.INSTANCE, request).actionGet();
+            } catch (Throwable t) {
+                if (execution.items == null) {
+                    // the original request failed as a whole, nothing to merge
+                    throw t;
+                }
+                if (!execution.retryOnFailure(t)) {
+                    // keep the items of earlier attempts, only the items of this attempt failed
+                    return execution.response();
+                }
+                Thread.sleep(execution.backoff());
+                request = execution.nextRequest();
+                continue;
+            }
+            if (!execution.merge(response)) {
+                return execution.response();
+            }
+            Thread.sleep(execution.backoff());
+            request = execution.nextRequest();
+        }
+    }
+
+    /**
+     * Closes the retry handler. Retries which are already scheduled are still executed, but no further retries
+     * are accepted.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Check if a bulk item failure is worth retrying.
+     *
+     * @param itemResponse the bulk item response
+     * @return true if the item can be retried
+     */
+    public static boolean isRetryable(BulkItemResponse itemResponse) {
+        return itemResponse.isFailed() && isRetryable(itemResponse.getFailure().getStatus());
+    }
+
+    private static boolean isRetryable(Throwable t) {
+        Throwable cause = ExceptionsHelper.unwrapCause(t);
+        return cause instanceof EsRejectedExecutionException || isRetryable(ExceptionsHelper.status(cause));
+    }
+
+    private static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private class Execution implements Runnable, ActionListener<BulkResponse> {
+
+        private final BulkRequest bulkRequest;
+
+        private final ActionListener<BulkResponse> listener;
+
+        private final long startTime;
+
+        private BulkItemResponse[] items;
+
+        private BulkRequest currentRequest;
+
+        private int[] positions;
+
+        private int retries;
+
+        Execution(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+            this.bulkRequest = bulkRequest;
+            this.listener = listener;
+            this.startTime = System.currentTimeMillis();
+            this.currentRequest = bulkRequest;
+        }
+
+        @Override
+        public void run() {
+            try {
+                client.execute(BulkAction.INSTANCE, currentRequest, this);
+            } catch (Throwable t) {
+                onFailure(t);
+            }
+        }
+
+        @Override
+        public void onResponse(BulkResponse response) {
+            if (merge(response)) {
+                schedule();
+            } else {
+                listener.onResponse(response());
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            if (items == null) {
+                // the original request failed as a whole, nothing to merge
+                listener.onFailure(e);
+            } else if (retryOnFailure(e)) {
+                schedule();
+            } else {
+                listener.onResponse(response());
+            }
+        }
+
+        /**
+         * Merge a response into the item responses of the original request and prepare the request of
+         * the next retry.
+         *
+         * @param response the response of the current attempt
+         * @return true if there are items to retry
+         */
+        boolean merge(BulkResponse response) {
+            BulkItemResponse[] responseItems = response.getItems();
+            if (items == null) {
+                items = responseItems;
+            } else {
+                for (int i = 0; i < responseItems.length; i++) {
+                    items[positions[i]] = relocate(responseItems[i], positions[i]);
+                }
+            }
+            if (!response.hasFailures() || retries >= maxRetries) {
+                return false;
+            }
+            int n = 0;
+            int[] retryPositions = new int[responseItems.length];
+            for (int i = 0; i < responseItems.length; i++) {
+                if (isRetryable(responseItems[i])) {
+                    retryPositions[n++] = positions == null ? i : positions[i];
+                }
+            }
+            if (n == 0) {
+                return false;
+            }
+            prepare(retryPositions, n);
+            return true;
+        }
+
+        /**
+         * On a failure of a retry request, keep the items of the retry for the next attempt, or turn them
+         * into item failures if the failure is not retryable.
+         *
+         * @param failure the failure
+         * @return true if the retry request should be resubmitted
+         */
+        boolean retryOnFailure(Throwable failure) {
+            if (isRetryable(failure) && retries < maxRetries) {
+                prepare(positions, positions.length);
+                return true;
+            }
+            if (bulkRequest instanceof SerializedBulkRequest) {
+                SerializedBulkRequest serializedBulkRequest = (SerializedBulkRequest) bulkRequest;
+                for (int position : positions) {
+                    items[position] = new BulkItemResponse(position, serializedBulkRequest.opType(position),
+                            new BulkItemResponse.Failure(serializedBulkRequest.index(position),
+                                    serializedBulkRequest.type(position), serializedBulkRequest.id(position), failure));
+                }
+                return false;
+            }
+            List<ActionRequest> requests = bulkRequest.requests();
+            for (int position : positions) {
+                ActionRequest<?> request = requests.get(position);
+                DocumentRequest<?> documentRequest = (DocumentRequest<?>) request;
+                items[position] = new BulkItemResponse(position, opType(request),
+                        new BulkItemResponse.Failure(documentRequest.index(), documentRequest.type(),
+                                documentRequest.id(), failure));
+            }
+            return false;
+        }
+
+        BulkRequest nextRequest() {
+            return currentRequest;
+        }
+
+        BulkResponse response() {
+            return new BulkResponse(items, System.currentTimeMillis() - startTime);
+        }
+
+        long backoff() {
+            // exponential backoff with "equal jitter", between half and the full delay
+            long delay = initialBackoffMillis << Math.min(retries - 1, 30);
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+        }
+
+        private void prepare(int[] retryPositions, int n) {
+            int[] newPositions = Arrays.copyOf(retryPositions, n);
+            if (bulkRequest instanceof SerializedBulkRequest) {
+                // the actions are only kept as bulk content, copy the content of the retried actions
+                currentRequest = ((SerializedBulkRequest) bulkRequest).subset(newPositions, n);
+            } else {
+                List<ActionRequest> requests = bulkRequest.requests();
+                List<Object> payloads = bulkRequest.payloads();
+                BulkRequest request = new BulkRequest()
+                        .consistencyLevel(bulkRequest.consistencyLevel())
+                        .refresh(bulkRequest.refresh())
+                        .timeout(bulkRequest.timeout());
+                for (int position : newPositions) {
+                    request.add(requests.get(position), payloads != null ? payloads.get(position) : null);
+                }
+                currentRequest = request;
+            }
+            positions = newPositions;
+            retries++;
+            if (retried != null) {
+                retried.inc(n);
+            }
+        }
+
+        private void schedule() {
+            try {
+                scheduler.schedule(this, backoff(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // scheduler is shut down, report the items as they are
+                listener.onResponse(response());
+            }
+        }
+
+        private BulkItemResponse relocate(BulkItemResponse itemResponse, int position) {
+            if (itemResponse.isFailed()) {
+                return new BulkItemResponse(position, itemResponse.getOpType(), itemResponse.getFailure());
+            }
+            ActionWriteResponse writeResponse = itemResponse.getResponse();
+            return new BulkItemResponse(position, itemResponse.getOpType(), writeResponse);
+        }
+
+        private String opType(ActionRequest<?> request) {
+            if (request instanceof DeleteRequest) {
+                return "delete";
+            } else if (request instanceof UpdateRequest) {
+                return "update";
+            }
+            return "index";
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.xbib.elasticsearch.helper.client;
 
 import com.google.common.collect.ImmutableSet;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -31,6 +32,7 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.xbib.metrics.MetricRegistry;
 
 import java.io.IOException;
 import java.util.Collection;
@@ -53,6 +55,8 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
 
     private TimeValue flushInterval = DEFAULT_FLUSH_INTERVAL;
 
+    private MetricRegistry metricRegistry;
+
     private BulkProcessor bulkProcessor;
 
     private Throwable throwable;
@@ -62,6 +66,17 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
     BulkTransportClient() {
     }
 
+    /**
+     * Sets a metric registry for the metrics of the internals of the bulk processor.
+     *
+     * @param metricRegistry the metric registry
+     * @return this client
+     */
+    public BulkTransportClient metricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        return this;
+    }
+
     @Override
     public BulkTransportClient maxActionsPerRequest(int maxActionsPerRequest) {
         this.maxActionsPerRequest = maxActionsPerRequest;
@@ -113,7 +128,9 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                BulkItemCompletions.onResponse(request, response);
                 metric.getCurrentIngest().dec();
+                metric.getCurrentBulkActions().setValue(bulkProcessor.getBulkActions());
                 long l = metric.getCurrentIngest().getCount();
                 metric.getSucceeded().inc(response.getItems().length);
                 int n = 0;
@@ -141,7 +158,9 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
 
             @Override
             public void afterBulk(long executionId, BulkRequest requst, Throwable failure) {
+                BulkItemCompletions.onFailure(requst, failure);
                 metric.getCurrentIngest().dec();
+                metric.getCurrentBulkActions().setValue(bulkProcessor.getBulkActions());
                 throwable = failure;
                 if (!ignoreBulkErrors) {
                     closed = true;
@@ -152,11 +171,26 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
         BulkProcessor.Builder builder = BulkProcessor.builder(client, listener)
                 .setBulkActions(maxActionsPerRequest)
                 .setConcurrentRequests(maxConcurrentRequests)
-                .setFlushInterval(flushInterval);
+                .setFlushInterval(flushInterval)
+                .setStripes(settings.getAsInt(STRIPES, DEFAULT_STRIPES))
+                .setAdaptiveBulkSizer(AdaptiveBulkSizer.create(settings, maxActionsPerRequest))
+                .setMaxRetries(settings.getAsInt(MAX_RETRIES, DEFAULT_MAX_RETRIES))
+                .setRetryBackoff(settings.getAsTime(RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF))
+                .setRetryCounter(metric.getRetried())
+                .setByteBudget(ByteBudget.create(settings, metric.getBufferedBytes()))
+                .setShardPartitioner(ShardPartitioner.create(client, settings))
+                .setMaxAge(settings.getAsTime(FLUSH_MAX_AGE, null))
+                .setDoubleBuffered(settings.getAsBoolean(DOUBLE_BUFFERED, false))
+                .setHighPriorityBulkActions(settings.getAsInt(HIGH_PRIORITY_MAX_ACTIONS_PER_REQUEST, 0))
+                .setHighPriorityMaxAge(settings.getAsTime(HIGH_PRIORITY_FLUSH_MAX_AGE, null))
+                .setMetricRegistry(metricRegistry)
+                .setCoalescing(settings.getAsBoolean(COALESCING, false))
+                .setCoalescedCounter(metric.getCoalesced());
         if (maxVolumePerRequest != null) {
             builder.setBulkSize(maxVolumePerRequest);
         }
         this.bulkProcessor = builder.build();
+        metric.getCurrentBulkActions().setValue(bulkProcessor.getBulkActions());
         try {
             Collection<InetSocketTransportAddress> addrs = findAddresses(settings);
             if (!connect(addrs, settings.getAsBoolean("autodiscover", false))) {
@@ -237,16 +271,33 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
 
     @Override
     public BulkTransportClient bulkIndex(IndexRequest indexRequest) {
+        return bulkIndex(indexRequest, null, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkTransportClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener) {
+        return bulkIndex(indexRequest, listener, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkTransportClient bulkIndex(IndexRequest indexRequest, BulkPriority priority) {
+        return bulkIndex(indexRequest, null, priority);
+    }
+
+    private BulkTransportClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener, BulkPriority priority) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
         try {
             metric.getCurrentIngest().inc(indexRequest.index(), indexRequest.type(), indexRequest.id());
-            bulkProcessor.add(indexRequest);
+            bulkProcessor.add(indexRequest, listener, priority);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of index request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -269,16 +320,33 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
 
     @Override
     public BulkTransportClient bulkDelete(DeleteRequest deleteRequest) {
+        return bulkDelete(deleteRequest, null, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkTransportClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener) {
+        return bulkDelete(deleteRequest, listener, BulkPriority.NORMAL);
+    }
+
+    @Override
+    public BulkTransportClient bulkDelete(DeleteRequest deleteRequest, BulkPriority priority) {
+        return bulkDelete(deleteRequest, null, priority);
+    }
+
+    private BulkTransportClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener, BulkPriority priority) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
         try {
             metric.getCurrentIngest().inc(deleteRequest.index(), deleteRequest.type(), deleteRequest.id());
-            bulkProcessor.add(deleteRequest);
+            bulkProcessor.add(deleteRequest, listener, priority);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of delete request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -301,16 +369,24 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
 
     @Override
     public BulkTransportClient bulkUpdate(UpdateRequest updateRequest) {
+        return bulkUpdate(updateRequest, null);
+    }
+
+    @Override
+    public BulkTransportClient bulkUpdate(UpdateRequest updateRequest, ActionListener<BulkItemResponse> listener) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
         try {
             metric.getCurrentIngest().inc(updateRequest.index(), updateRequest.type(), updateRequest.id());
-            bulkProcessor.add(updateRequest);
+            bulkProcessor.add(updateRequest, listener);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of update request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -342,6 +418,26 @@ public class BulkTransportClient extends BaseMetricTransportClient implements Cl
         return this;
     }
 
+    /**
+     * Close the bulk processor within a deadline and return the actions which have not been acknowledged,
+     * see {@link BulkProcessor#drain(long, TimeUnit)}.
+     *
+     * @param maxWaitTime maximum time to wait for responses
+     * @return the unacknowledged actions
+     * @throws InterruptedException if wait is interrupted
+     */
+    public synchronized BulkRequest drain(TimeValue maxWaitTime) throws InterruptedException {
+        if (closed) {
+            throw new ElasticsearchException("client is closed");
+        }
+        if (client == null) {
+            logger.warn("no client");
+            return new BulkRequest();
+        }
+        logger.debug("draining bulk processor");
+        return bulkProcessor.drain(maxWaitTime.nanos(), TimeUnit.NANOSECONDS);
+    }
+
     @Override
     public synchronized void shutdown() {
         if (closed) {
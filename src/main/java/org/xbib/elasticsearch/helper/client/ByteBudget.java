@@ -0,0 +1,135 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.xbib.metrics.SettableGauge;
+
+/**
+ * A byte budget limits the memory held by buffered and in-flight bulk data. Producers acquire the estimated size
+ * of an action before it is buffered, the bytes are released when the response of the bulk request containing the
+ * action has been processed. If the budget is exhausted, producers wait for up to a maximum time, or fail fast
+ * if no waiting time is given.
+ *
+ * A single action which is larger than the whole budget is admitted if nothing else is held, so it can not block
+ * forever.
+ */
+public class ByteBudget {
+
+    private final long maxBytes;
+
+    private final long maxWaitMillis;
+
+    private final SettableGauge<Long> usage;
+
+    private long usedBytes;
+
+    /**
+     * Create a byte budget.
+     *
+     * @param maxBytes the maximum number of bytes buffered and in flight
+     * @param maxWait the maximum time to wait for free budget, or zero for failing fast
+     * @param usage a gauge for the number of bytes currently held, or null
+     */
+    public ByteBudget(ByteSizeValue maxBytes, TimeValue maxWait, @Nullable SettableGauge<Long> usage) {
+        this.maxBytes = maxBytes.bytes();
+        this.maxWaitMillis = maxWait.millis();
+        this.usage = usage;
+        if (usage != null) {
+            usage.setValue(0L);
+        }
+    }
+
+    /**
+     * Create a byte budget from settings.
+     *
+     * @param settings the settings
+     * @param usage a gauge for the number of bytes currently held, or null
+     * @return the byte budget, or null if no budget is configured
+     */
+    public static ByteBudget create(Settings settings, @Nullable SettableGauge<Long> usage) {
+        ByteSizeValue maxBytes = settings.getAsBytesSize(ClientParameters.MAX_BUFFERED_VOLUME, null);
+        if (maxBytes == null || maxBytes.bytes() <= 0L) {
+            return null;
+        }
+        return new ByteBudget(maxBytes,
+                settings.getAsTime(ClientParameters.MAX_BUFFERED_VOLUME_WAIT, ClientParameters.DEFAULT_MAX_BUFFERED_VOLUME_WAIT),
+                usage);
+    }
+
+    /**
+     * Acquire bytes from the budget, waiting if the budget is exhausted.
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedException if the wait was interrupted
+     * @throws EsRejectedExecutionException if the bytes could not be acquired within the maximum waiting time
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (usedBytes > 0L && usedBytes + bytes > maxBytes) {
+            long millis = deadline - System.currentTimeMillis();
+            if (millis <= 0L) {
+                throw new EsRejectedExecutionException("byte budget of " + new ByteSizeValue(maxBytes)
+                        + " exhausted, " + new ByteSizeValue(usedBytes) + " held, waited " + TimeValue.timeValueMillis(maxWaitMillis));
+            }
+            wait(millis);
+        }
+        usedBytes += bytes;
+        update();
+    }
+
+    /**
+     * Try to acquire bytes from the budget without waiting.
+     *
+     * @param bytes the number of bytes
+     * @return true if the bytes were acquired
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (usedBytes > 0L && usedBytes + bytes > maxBytes) {
+            return false;
+        }
+        usedBytes += bytes;
+        update();
+        return true;
+    }
+
+    /**
+     * Release bytes to the budget.
+     *
+     * @param bytes the number of bytes
+     */
+    public synchronized void release(long bytes) {
+        if (bytes <= 0L) {
+            return;
+        }
+        usedBytes = Math.max(0L, usedBytes - bytes);
+        update();
+        notifyAll();
+    }
+
+    /**
+     * Returns the maximum number of bytes.
+     *
+     * @return the maximum number of bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return the number of bytes held
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private void update() {
+        if (usage != null) {
+            usage.setValue(usedBytes);
+        }
+    }
+}
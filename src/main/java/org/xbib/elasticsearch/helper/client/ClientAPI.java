@@ -15,6 +15,8 @@
  */
 package org.xbib.elasticsearch.helper.client;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.update.UpdateRequest;
@@ -227,6 +229,27 @@ public interface ClientAPI extends ClientParameters {
      */
     ClientAPI bulkIndex(IndexRequest indexRequest);
 
+    /**
+     * Bulked index request with a listener for the response of this request. The listener is
+     * completed with the bulk item response of the request, or with the failure of the bulk request.
+     * A {@link org.elasticsearch.action.support.PlainActionFuture} can be used as a future for the item.
+     *
+     * @param indexRequest the index request to add
+     * @param listener the listener for the bulk item response, or null
+     * @return this ingest
+     */
+    ClientAPI bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener);
+
+    /**
+     * Bulked index request with a priority hint. Clients with a lane for high priority actions
+     * buffer high priority requests separately, so they do not wait behind other requests.
+     *
+     * @param indexRequest the index request to add
+     * @param priority the priority
+     * @return this ingest
+     */
+    ClientAPI bulkIndex(IndexRequest indexRequest, BulkPriority priority);
+
     /**
      * Bulked delete request. Each request will be added to a queue for bulking requests.
      * Submitting request will be done when bulk limits are exceeded.
@@ -236,6 +259,26 @@ public interface ClientAPI extends ClientParameters {
      */
     ClientAPI bulkDelete(DeleteRequest deleteRequest);
 
+    /**
+     * Bulked delete request with a listener for the response of this request. The listener is
+     * completed with the bulk item response of the request, or with the failure of the bulk request.
+     *
+     * @param deleteRequest the delete request to add
+     * @param listener the listener for the bulk item response, or null
+     * @return this ingest
+     */
+    ClientAPI bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener);
+
+    /**
+     * Bulked delete request with a priority hint. Clients with a lane for high priority actions
+     * buffer high priority requests separately, so they do not wait behind other requests.
+     *
+     * @param deleteRequest the delete request to add
+     * @param priority the priority
+     * @return this ingest
+     */
+    ClientAPI bulkDelete(DeleteRequest deleteRequest, BulkPriority priority);
+
     /**
      * Bulked update request. Each request will be added to a queue for bulking requests.
      * Submitting request will be done when bulk limits are exceeded.
@@ -246,6 +289,16 @@ public interface ClientAPI extends ClientParameters {
      */
     ClientAPI bulkUpdate(UpdateRequest updateRequest);
 
+    /**
+     * Bulked update request with a listener for the response of this request. The listener is
+     * completed with the bulk item response of the request, or with the failure of the bulk request.
+     *
+     * @param updateRequest the update request to add
+     * @param listener the listener for the bulk item response, or null
+     * @return this ingest
+     */
+    ClientAPI bulkUpdate(UpdateRequest updateRequest, ActionListener<BulkItemResponse> listener);
+
     /**
      * Flush ingest, move all pending documents to the cluster.
      *
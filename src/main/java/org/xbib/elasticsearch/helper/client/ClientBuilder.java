@@ -22,6 +22,7 @@ import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.xbib.elasticsearch.helper.client.http.HttpInvoker;
+import org.xbib.metrics.MetricRegistry;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
@@ -33,6 +34,8 @@ public final class ClientBuilder implements ClientParameters {
 
     private IngestMetric metric;
 
+    private MetricRegistry metricRegistry;
+
     public ClientBuilder() {
         settingsBuilder = Settings.builder();
     }
@@ -81,6 +84,11 @@ public final class ClientBuilder implements ClientParameters {
         return this;
     }
 
+    public ClientBuilder setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        return this;
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T build(URL url, Class<T> interfaceClass) {
         Settings settings = settingsBuilder.build();
@@ -100,6 +108,7 @@ public final class ClientBuilder implements ClientParameters {
                 .maxConcurrentRequests(settings.getAsInt(MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS))
                 .maxVolumePerRequest(settings.getAsBytesSize(MAX_VOLUME_PER_REQUEST, DEFAULT_MAX_VOLUME_PER_REQUEST))
                 .flushIngestInterval(settings.getAsTime(FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL))
+                .metricRegistry(metricRegistry)
                 .init(client, metric);
     }
 
@@ -110,6 +119,7 @@ public final class ClientBuilder implements ClientParameters {
                 .maxConcurrentRequests(settings.getAsInt(MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS))
                 .maxVolumePerRequest(settings.getAsBytesSize(MAX_VOLUME_PER_REQUEST, DEFAULT_MAX_VOLUME_PER_REQUEST))
                 .flushIngestInterval(settings.getAsTime(FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL))
+                .metricRegistry(metricRegistry)
                 .init(settings, metric);
     }
 
@@ -14,6 +14,28 @@ public interface ClientParameters {
 
     TimeValue DEFAULT_FLUSH_INTERVAL = TimeValue.timeValueSeconds(30);
 
+    int DEFAULT_STRIPES = 1;
+
+    int DEFAULT_MAX_RETRIES = 0;
+
+    TimeValue DEFAULT_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+
+    TimeValue DEFAULT_MAX_BUFFERED_VOLUME_WAIT = TimeValue.timeValueSeconds(60);
+
+    TimeValue DEFAULT_SHARD_PARTITIONING_REFRESH_INTERVAL = TimeValue.timeValueSeconds(1);
+
+    int DEFAULT_COMPRESS_SAMPLE_INTERVAL = 100;
+
+    int DEFAULT_ADAPTIVE_BULK_MIN_ACTIONS = 100;
+
+    int DEFAULT_ADAPTIVE_BULK_MAX_ACTIONS = 10000;
+
+    int DEFAULT_ADAPTIVE_BULK_INCREMENT = 100;
+
+    double DEFAULT_ADAPTIVE_BULK_DECREASE_FACTOR = 0.5d;
+
+    TimeValue DEFAULT_ADAPTIVE_BULK_TARGET_LATENCY = TimeValue.timeValueSeconds(1);
+
     String MAX_ACTIONS_PER_REQUEST = "max_actions_per_request";
 
     String MAX_CONCURRENT_REQUESTS = "max_concurrent_requests";
@@ -22,4 +44,48 @@ public interface ClientParameters {
 
     String FLUSH_INTERVAL = "flush_interval";
 
+    String STRIPES = "stripes";
+
+    String MAX_RETRIES = "max_retries";
+
+    String RETRY_BACKOFF = "retry_backoff";
+
+    String MAX_BUFFERED_VOLUME = "max_buffered_volume";
+
+    String MAX_BUFFERED_VOLUME_WAIT = "max_buffered_volume_wait";
+
+    String SHARD_PARTITIONING = "shard_partitioning";
+
+    String SHARD_PARTITIONING_REFRESH_INTERVAL = "shard_partitioning_refresh_interval";
+
+    String PRE_SERIALIZED = "pre_serialized";
+
+    String FLUSH_MAX_AGE = "flush_max_age";
+
+    String OVERSIZED_VOLUME_PER_REQUEST = "oversized_volume_per_request";
+
+    String DOUBLE_BUFFERED = "double_buffered";
+
+    String HIGH_PRIORITY_MAX_ACTIONS_PER_REQUEST = "high_priority_max_actions_per_request";
+
+    String HIGH_PRIORITY_FLUSH_MAX_AGE = "high_priority_flush_max_age";
+
+    String COALESCING = "coalescing";
+
+    String COMPRESS_THRESHOLD = "compress_threshold";
+
+    String COMPRESS_SAMPLE_INTERVAL = "compress_sample_interval";
+
+    String ADAPTIVE_BULK = "adaptive_bulk";
+
+    String ADAPTIVE_BULK_MIN_ACTIONS = "adaptive_bulk_min_actions";
+
+    String ADAPTIVE_BULK_MAX_ACTIONS = "adaptive_bulk_max_actions";
+
+    String ADAPTIVE_BULK_INCREMENT = "adaptive_bulk_increment";
+
+    String ADAPTIVE_BULK_DECREASE_FACTOR = "adaptive_bulk_decrease_factor";
+
+    String ADAPTIVE_BULK_TARGET_LATENCY = "adaptive_bulk_target_latency";
+
 }
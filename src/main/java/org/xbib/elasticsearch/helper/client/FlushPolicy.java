@@ -0,0 +1,35 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * A flush policy shapes the ingest requests of an {@link IngestProcessor}. It decides how many buffered actions
+ * are sent, whether a single action is too large to be buffered with others, and how long actions may wait.
+ */
+public interface FlushPolicy {
+
+    /**
+     * Returns the number of actions to take from the head of the buffer and to send now.
+     * The processor asks again after each ingest request, until zero is returned.
+     *
+     * @param numberOfActions the number of buffered actions
+     * @param sizeInBytes     the estimated size of the buffered actions
+     * @return the number of actions to send, or zero for waiting for more actions
+     */
+    int actionsToFlush(int numberOfActions, long sizeInBytes);
+
+    /**
+     * Returns true if an action is oversized. An oversized action is sent alone, after the buffered actions.
+     *
+     * @param sizeInBytes the estimated size of the action
+     * @return true if the action is sent alone
+     */
+    boolean isOversized(long sizeInBytes);
+
+    /**
+     * Returns the maximum age of the oldest buffered action.
+     *
+     * @return the maximum age, or null for no maximum age
+     */
+    TimeValue maxAge();
+}
@@ -17,6 +17,7 @@ package org.xbib.elasticsearch.helper.client;
 
 import com.google.common.collect.ImmutableSet;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexAction;
@@ -122,9 +123,11 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                BulkItemCompletions.onResponse(request, response);
                 long l = -1;
                 if (metric != null) {
                     metric.getCurrentIngest().dec();
+                    metric.getCurrentBulkActions().setValue(bulkProcessor.getBulkActions());
                     l = metric.getCurrentIngest().getCount();
                     metric.getSucceeded().inc(response.getItems().length);
                 }
@@ -159,8 +162,10 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                BulkItemCompletions.onFailure(request, failure);
                 if (metric != null) {
                     metric.getCurrentIngest().dec();
+                    metric.getCurrentBulkActions().setValue(bulkProcessor.getBulkActions());
                 }
                 throwable = failure;
                 closed = true;
@@ -170,11 +175,19 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
         HttpBulkProcessor.Builder builder = HttpBulkProcessor.builder((Client) client, listener)
                 .setBulkActions(maxActionsPerRequest)
                 .setConcurrentRequests(maxConcurrentRequests)
-                .setFlushInterval(flushInterval);
+                .setFlushInterval(flushInterval)
+                .setAdaptiveBulkSizer(AdaptiveBulkSizer.create(((Client) client).settings(), maxActionsPerRequest))
+                .setMaxRetries(((Client) client).settings().getAsInt(MAX_RETRIES, DEFAULT_MAX_RETRIES))
+                .setRetryBackoff(((Client) client).settings().getAsTime(RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF))
+                .setRetryCounter(metric != null ? metric.getRetried() : null)
+                .setPreSerialized(((Client) client).settings().getAsBoolean(PRE_SERIALIZED, false));
         if (maxVolume != null) {
             builder.setBulkSize(maxVolume);
         }
         this.bulkProcessor = builder.build();
+        if (metric != null) {
+            metric.getCurrentBulkActions().setValue(bulkProcessor.getBulkActions());
+        }
         this.closed = false;
         return this;
     }
@@ -238,6 +251,17 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
 
     @Override
     public HttpBulkNodeClient bulkIndex(IndexRequest indexRequest) {
+        return bulkIndex(indexRequest, (ActionListener<BulkItemResponse>) null);
+    }
+
+    @Override
+    public HttpBulkNodeClient bulkIndex(IndexRequest indexRequest, BulkPriority priority) {
+        // the HTTP bulk processor has a single lane
+        return bulkIndex(indexRequest);
+    }
+
+    @Override
+    public HttpBulkNodeClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
@@ -245,11 +269,14 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
             if (metric != null) {
                 metric.getCurrentIngest().inc(indexRequest.index(), indexRequest.type(), indexRequest.id());
             }
-            bulkProcessor.add(indexRequest);
+            bulkProcessor.add(indexRequest, listener);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of index request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -274,6 +301,17 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
 
     @Override
     public HttpBulkNodeClient bulkDelete(DeleteRequest deleteRequest) {
+        return bulkDelete(deleteRequest, (ActionListener<BulkItemResponse>) null);
+    }
+
+    @Override
+    public HttpBulkNodeClient bulkDelete(DeleteRequest deleteRequest, BulkPriority priority) {
+        // the HTTP bulk processor has a single lane
+        return bulkDelete(deleteRequest);
+    }
+
+    @Override
+    public HttpBulkNodeClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
@@ -281,11 +319,14 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
             if (metric != null) {
                 metric.getCurrentIngest().inc(deleteRequest.index(), deleteRequest.type(), deleteRequest.id());
             }
-            bulkProcessor.add(deleteRequest);
+            bulkProcessor.add(deleteRequest, listener);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of delete failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -310,6 +351,11 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
 
     @Override
     public HttpBulkNodeClient bulkUpdate(UpdateRequest updateRequest) {
+        return bulkUpdate(updateRequest, null);
+    }
+
+    @Override
+    public HttpBulkNodeClient bulkUpdate(UpdateRequest updateRequest, ActionListener<BulkItemResponse> listener) {
         if (closed) {
             throw new ElasticsearchException("client is closed");
         }
@@ -317,11 +363,14 @@ public class HttpBulkNodeClient extends BaseClient implements ClientAPI {
             if (metric != null) {
                 metric.getCurrentIngest().inc(updateRequest.index(), updateRequest.type(), updateRequest.id());
             }
-            bulkProcessor.add(updateRequest);
+            bulkProcessor.add(updateRequest, listener);
         } catch (Exception e) {
             throwable = e;
             closed = true;
             logger.error("bulk add of update request failed: " + e.getMessage(), e);
+            if (listener != null) {
+                listener.onFailure(e);
+            }
         }
         return this;
     }
@@ -17,6 +17,7 @@ package org.xbib.elasticsearch.helper.client;
 
 import org.xbib.metrics.Count;
 import org.xbib.metrics.Metered;
+import org.xbib.metrics.SettableGauge;
 
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +38,20 @@ public interface IngestMetric {
 
     Count getFailed();
 
+    Count getRetried();
+
+    Count getCoalesced();
+
+    Count getCompressedBytes();
+
+    Count getCompressionNanos();
+
+    SettableGauge<Double> getCompressionRatio();
+
+    SettableGauge<Integer> getCurrentBulkActions();
+
+    SettableGauge<Long> getBufferedBytes();
+
     IngestMetric start();
 
     IngestMetric stop();
@@ -1,28 +1,53 @@
 package org.xbib.elasticsearch.helper.client;
 
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.xbib.elasticsearch.action.ingest.IngestAction;
+import org.xbib.elasticsearch.action.ingest.IngestActionFailure;
 import org.xbib.elasticsearch.action.ingest.IngestRequest;
 import org.xbib.elasticsearch.action.ingest.IngestResponse;
-
+import org.xbib.elasticsearch.action.ingest.IngestStreamReader;
+import org.xbib.metrics.Meter;
+import org.xbib.metrics.Metered;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class IngestProcessor {
 
+    private final static ESLogger logger = ESLoggerFactory.getLogger(IngestProcessor.class.getName());
+
+    private static final int REQUEST_OVERHEAD = 50;
+
     private final Client client;
 
     private int actions = ClientAPI.DEFAULT_MAX_ACTIONS_PER_REQUEST;
@@ -31,6 +56,10 @@ public class IngestProcessor {
 
     private ByteSizeValue maxVolume = ClientAPI.DEFAULT_MAX_VOLUME_PER_REQUEST;
 
+    private FlushPolicy thresholds = new ThresholdFlushPolicy(actions, maxVolume, null, null);
+
+    private FlushPolicy flushPolicy;
+
     private Semaphore semaphore = new Semaphore(maxConcurrency);
 
     private AtomicLong ingestId = new AtomicLong(0L);
@@ -39,12 +68,46 @@ public class IngestProcessor {
 
     private IngestListener ingestListener;
 
+    private ByteBudget byteBudget;
+
+    private ShardPartitioner shardPartitioner;
+
+    private ForkJoinPool parsingPool;
+
+    private long parsingChunkSize;
+
+    private int segmentSize;
+
     private ScheduledThreadPoolExecutor scheduler;
 
     private ScheduledFuture<?> scheduledFuture;
 
+    private MaxAgeFlusher maxAgeFlusher;
+
+    private final AtomicLong firstNanos = new AtomicLong(MaxAgeFlusher.EMPTY);
+
+    private final ConcurrentSkipListMap<Long, IngestRequest> unacknowledged = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentLinkedQueue<QueuedRequest> queued = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    private boolean blocking = true;
+
+    private TimeValue admissionTimeout;
+
+    private int maxQueuedRequests = -1;
+
+    private final Meter responses = new Meter();
+
+    private final Meter rejections = new Meter();
+
     private volatile boolean closed = false;
 
+    private volatile boolean draining = false;
+
+    private volatile long drainDeadline;
+
     public IngestProcessor(Client client) {
         this.client = client;
     }
@@ -61,31 +124,127 @@ public class IngestProcessor {
 
     public IngestProcessor maxActions(int actions) {
         this.actions = Math.min(actions, 32768);
+        this.thresholds = new ThresholdFlushPolicy(this.actions, maxVolume, null, null);
         return this;
     }
 
     public IngestProcessor maxVolumePerRequest(ByteSizeValue maxVolume) {
         this.maxVolume = new ByteSizeValue(Math.max(maxVolume.bytes(), 1024), ByteSizeUnit.BYTES);
+        this.thresholds = new ThresholdFlushPolicy(actions, this.maxVolume, null, null);
+        return this;
+    }
+
+    /**
+     * Shape the ingest requests by a flush policy. Without a flush policy, the buffered actions are sent once
+     * they reach the maximum number of actions or the maximum volume per request. If the policy has a maximum
+     * age, it replaces the maximum age of the processor.
+     *
+     * @param flushPolicy the flush policy, or null for the maximum actions and volume per request
+     * @return this processor
+     */
+    public IngestProcessor flushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        if (flushPolicy != null && flushPolicy.maxAge() != null) {
+            maxAge(flushPolicy.maxAge());
+        }
         return this;
     }
 
 
     public IngestProcessor flushInterval(TimeValue flushInterval) {
         if (flushInterval != null && flushInterval.getMillis() > 0L) {
-            if (scheduler != null) {
-                scheduler.shutdown();
-            }
-            scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory((client).settings(), "ingest_processor"));
-            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
-            scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
             if (scheduledFuture != null) {
                 scheduledFuture.cancel(false);
             }
-            scheduledFuture = scheduler.scheduleWithFixedDelay(new FlushHelper(), flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+            scheduledFuture = scheduler().scheduleWithFixedDelay(new FlushHelper(), flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Flush the buffered actions once the oldest of them reaches a maximum age, regardless of their number
+     * and volume. The timer runs only while actions are buffered.
+     *
+     * @param maxAge the maximum age of a buffered action, or null for no maximum age
+     * @return this processor
+     */
+    public IngestProcessor maxAge(TimeValue maxAge) {
+        if (maxAgeFlusher != null) {
+            maxAgeFlusher.cancel();
         }
+        this.maxAgeFlusher = maxAge != null && maxAge.getMillis() > 0L ?
+                new MaxAgeFlusher(scheduler(), maxAge, new AgedFlush()) : null;
+        return this;
+    }
+
+    /**
+     * Set whether adding actions blocks while the maximum number of concurrent requests is in flight.
+     * A non-blocking processor queues the ingest requests instead, and sends them in order as soon as
+     * responses arrive. The listener is notified by {@link IngestListener#onRequest(int, IngestRequest)}
+     * when a request is queued, so the ingest identifier is known to the thread adding the actions.
+     * The queue is bounded only by the admission control of {@link #admissionTimeout(TimeValue)} and
+     * {@link #maxQueuedRequests(int)}, use a byte budget for limiting the volume of queued actions.
+     *
+     * @param blocking true for blocking, which is the default, false for queueing
+     * @return this processor
+     */
+    public IngestProcessor blocking(boolean blocking) {
+        this.blocking = blocking;
+        return this;
+    }
+
+    /**
+     * Admit data added by {@link #add(BytesReference, String, String, IngestListener)} only if fewer than
+     * {@link #maxQueuedRequests(int)} ingest requests are queued, and a slot for an ingest request is free
+     * within a short timeout. Otherwise, the data is rejected before any of it is accepted, by an
+     * {@link EsRejectedExecutionException}, and the caller may retry after {@link #retryAfter()}.
+     *
+     * @param admissionTimeout the maximum time to wait for a free slot, or null for admitting all data (the default)
+     * @return this processor
+     */
+    public IngestProcessor admissionTimeout(TimeValue admissionTimeout) {
+        this.admissionTimeout = admissionTimeout;
+        return this;
+    }
+
+    /**
+     * The maximum number of queued ingest requests for admitting data, see {@link #admissionTimeout(TimeValue)}.
+     * The bound is checked on admission, so data admitted at the same time may queue a few requests beyond it.
+     *
+     * @param maxQueuedRequests the maximum number of queued requests, or -1 for the maximum number of
+     *                          concurrent requests (the default)
+     * @return this processor
+     */
+    public IngestProcessor maxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
         return this;
     }
 
+    /**
+     * Returns the rejections of data, by admission control or by the byte budget.
+     *
+     * @return the rejection meter
+     */
+    public Metered rejections() {
+        return rejections;
+    }
+
+    /**
+     * Estimate the time until a slot is free, by the ingest requests in flight and queued, and the rate of
+     * responses over the last minute.
+     *
+     * @return the estimated time, between one second and one minute
+     */
+    public TimeValue retryAfter() {
+        double rate = responses.getOneMinuteRate();
+        if (rate <= 0.0d) {
+            rate = responses.getMeanRate();
+        }
+        long pending = getConcurrency() + queuedCount.get();
+        long seconds = rate > 0.0d ? (long) Math.ceil(pending / rate) : 1L;
+        return TimeValue.timeValueSeconds(Math.max(1L, Math.min(seconds, 60L)));
+    }
+
     public IngestProcessor ingestId(long ingestId) {
         this.ingestId = new AtomicLong(ingestId);
         return this;
@@ -96,20 +255,114 @@ public class IngestProcessor {
         return this;
     }
 
+    /**
+     * Limit the estimated size of buffered and in-flight actions by a byte budget.
+     *
+     * @param byteBudget the byte budget, or null for no limit
+     * @return this processor
+     */
+    public IngestProcessor byteBudget(ByteBudget byteBudget) {
+        this.byteBudget = byteBudget;
+        return this;
+    }
+
+    /**
+     * Send the actions directly to the nodes holding their primary shards. Each ingest request is split into
+     * one request per node, which is executed on that node, so the leader shard operations run locally there.
+     * Works with the transport client of this package only, other clients send the requests as usual.
+     *
+     * @param shardPartitioner the shard partitioner, or null for sending requests to any node
+     * @return this processor
+     */
+    public IngestProcessor shardPartitioner(ShardPartitioner shardPartitioner) {
+        this.shardPartitioner = shardPartitioner;
+        return this;
+    }
+
+    /**
+     * Parse large data added by {@link #add(BytesReference, String, String, IngestListener)} in parallel chunks,
+     * see {@link IngestRequest#add(BytesReference, String, String, ForkJoinPool, long)}.
+     *
+     * @param pool      the pool for parsing, or null for parsing by the calling thread only
+     * @param chunkSize the minimum size of a chunk
+     * @return this processor
+     */
+    public IngestProcessor parallelParsing(ForkJoinPool pool, ByteSizeValue chunkSize) {
+        this.parsingPool = pool;
+        this.parsingChunkSize = chunkSize.bytes();
+        return this;
+    }
+
+    /**
+     * Parse and send data added by {@link #add(BytesReference, String, String, IngestListener)} in segments of
+     * complete actions, see {@link IngestStreamReader}. The actions of a segment are sent before the next segment
+     * is parsed, so the parsed actions of large data do not exist all at once. This is also the segment size of
+     * {@link #add(InputStream, String, String, IngestListener)}.
+     *
+     * A failure in a later segment does not undo the segments before, so data may be accepted partially.
+     *
+     * @param segmentSize the minimum size of a segment, or null for parsing the data at once (the default)
+     * @return this processor
+     */
+    public IngestProcessor segmentSize(ByteSizeValue segmentSize) {
+        this.segmentSize = segmentSize != null ? (int) Math.min(segmentSize.bytes(), Integer.MAX_VALUE / 2) : 0;
+        return this;
+    }
+
     public IngestProcessor add(IndexRequest request) {
-        ingestRequest.add(request);
+        return add(request, null);
+    }
+
+    public IngestProcessor add(DeleteRequest request) {
+        return add(request, null);
+    }
+
+    /**
+     * Add an index action with a listener for the action. The listener is completed when the response of the
+     * ingest request carrying the action arrives, with a failure if the action failed, and otherwise with
+     * an item response. Ingest responses do not report versions, the item response has the version of the
+     * action.
+     *
+     * @param request  the index action
+     * @param listener the listener
+     * @return this processor
+     */
+    public IngestProcessor add(IndexRequest request, ActionListener<BulkItemResponse> listener) {
+        long bytes = request.source() != null ? request.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
+        if (byteBudget != null) {
+            acquire(bytes);
+        }
+        if (flushPolicy().isOversized(bytes)) {
+            addParsed(new IngestRequest().add(request, listener), ingestListener);
+            return this;
+        }
+        ingestRequest.add(request, listener);
+        arrived(System.nanoTime());
         flushIfNeeded(ingestListener);
         return this;
     }
 
-    public IngestProcessor add(DeleteRequest request) {
-        ingestRequest.add(request);
+    /**
+     * Add a delete action with a listener for the action, see {@link #add(IndexRequest, ActionListener)}.
+     *
+     * @param request  the delete action
+     * @param listener the listener
+     * @return this processor
+     */
+    public IngestProcessor add(DeleteRequest request, ActionListener<BulkItemResponse> listener) {
+        if (byteBudget != null) {
+            acquire(REQUEST_OVERHEAD);
+        }
+        ingestRequest.add(request, listener);
+        arrived(System.nanoTime());
         flushIfNeeded(ingestListener);
         return this;
     }
 
     /**
-     * For REST API
+     * For REST API. With a segment size, large data is parsed and sent in segments. If a segment fails, the
+     * actions of the segments before are accepted, they are sent at once and reported to the listener by
+     * {@link IngestListener#onRequest(int, IngestRequest)} before the failure is thrown.
      *
      * @param data           the REST body data
      * @param defaultIndex   default index
@@ -121,14 +374,69 @@ public class IngestProcessor {
     public IngestProcessor add(BytesReference data,
                                @Nullable String defaultIndex, @Nullable String defaultType,
                                IngestListener ingestListener) throws Exception {
-        ingestRequest.add(data, defaultIndex, defaultType);
+        admit();
+        if (segmentSize > 0 && data.length() > segmentSize) {
+            IngestStreamReader reader = new IngestStreamReader(data, segmentSize);
+            BytesReference segment;
+            boolean accepted = false;
+            try {
+                while ((segment = reader.nextSegment()) != null) {
+                    addSegment(segment, defaultIndex, defaultType, ingestListener);
+                    accepted = true;
+                }
+            } catch (Exception e) {
+                if (accepted && !closed) {
+                    flush(ingestListener);
+                }
+                throw e;
+            }
+            return this;
+        }
+        return addSegment(data, defaultIndex, defaultType, ingestListener);
+    }
+
+    /**
+     * Read data in bulk format from a stream. The data is read in segments of complete actions, and the actions
+     * of a segment are sent before the next segment is read, so the stream is never held in memory at once.
+     * With a byte budget, reading waits for the budget, which bounds the heap used by the actions in flight.
+     *
+     * @param in             the stream
+     * @param defaultIndex   default index
+     * @param defaultType    default type
+     * @param ingestListener the listener
+     * @return this processor
+     * @throws Exception if data can not be read or added
+     */
+    public IngestProcessor add(InputStream in,
+                               @Nullable String defaultIndex, @Nullable String defaultType,
+                               IngestListener ingestListener) throws Exception {
+        IngestStreamReader reader = new IngestStreamReader(in, segmentSize > 0 ? segmentSize : (int) maxVolume.bytes());
+        BytesReference segment;
+        while ((segment = reader.nextSegment()) != null) {
+            addSegment(segment, defaultIndex, defaultType, ingestListener);
+        }
+        return this;
+    }
+
+    private IngestProcessor addSegment(BytesReference data,
+                                       @Nullable String defaultIndex, @Nullable String defaultType,
+                                       IngestListener ingestListener) throws Exception {
+        IngestRequest parsed = parsingPool != null ?
+                new IngestRequest().add(data, defaultIndex, defaultType, parsingPool, parsingChunkSize) :
+                new IngestRequest().add(data, defaultIndex, defaultType);
+        if (byteBudget != null) {
+            acquire(parsed.estimatedSizeInBytes());
+        }
+        addParsed(parsed, ingestListener);
+        arrived(System.nanoTime());
         flushIfNeeded(ingestListener);
         return this;
     }
 
     /**
      * Closes the processor. If flushing by time is enabled, then it is shut down.
-     * Any remaining ingest actions are flushed.
+     * Any remaining ingest actions are flushed, but responses are not awaited, see
+     * {@link #waitForResponses(TimeValue)} and {@link #drain(TimeValue)}.
      *
      * @throws InterruptedException if method was interrupted
      */
@@ -140,18 +448,62 @@ public class IngestProcessor {
         if (scheduledFuture != null) {
             scheduledFuture.cancel(false);
         }
+        if (maxAgeFlusher != null) {
+            maxAgeFlusher.cancel();
+        }
         // do not automatically flush
-        scheduler.shutdown();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
         // flush manually but do not wait for responses
         flush();
     }
 
+    /**
+     * Closes the processor within a deadline, and returns the actions which have not been acknowledged.
+     * The remaining ingest actions are flushed, and the responses of the ingest requests in flight are
+     * awaited until the deadline. Ingest requests which can not be sent before the deadline are not sent.
+     *
+     * The returned ingest request holds the actions of all ingest requests without a response, or with a
+     * failure while draining, in the order of their execution. It can be serialized and resubmitted later.
+     * A response arriving after the deadline is still passed to the listener, so the delivery of resubmitted
+     * actions is at least once.
+     *
+     * @param maxWait maximum time to wait
+     * @return the unacknowledged actions, an empty ingest request if all actions have been acknowledged
+     * @throws InterruptedException if wait is interrupted
+     */
+    public synchronized IngestRequest drain(TimeValue maxWait) throws InterruptedException {
+        this.drainDeadline = System.nanoTime() + maxWait.nanos();
+        this.draining = true;
+        close();
+        waitForResponses(TimeValue.timeValueNanos(remainingNanos()));
+        IngestRequest request = new IngestRequest();
+        for (IngestRequest unacknowledgedRequest : unacknowledged.values()) {
+            request.add(unacknowledgedRequest);
+        }
+        return request;
+    }
+
+    /**
+     * Returns true if the processor has been closed or drained.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
     /**
      * Flush this processor, write all requests
      */
-    public synchronized void flush() {
+    public void flush() {
+        flush(ingestListener);
+    }
+
+    private synchronized void flush(IngestListener ingestListener) {
         if (ingestRequest.numberOfActions() > 0) {
-            process(ingestRequest.takeAll(), ingestListener);
+            process(take(-1), ingestListener);
         }
     }
 
@@ -163,11 +515,135 @@ public class IngestProcessor {
      * @throws InterruptedException if wait is interrupted
      */
     public boolean waitForResponses(TimeValue maxWait) throws InterruptedException {
-        if (maxConcurrency - semaphore.availablePermits() > 0) {
-            semaphore.tryAcquire(maxConcurrency, maxWait.getMillis(), TimeUnit.MILLISECONDS);
-            return semaphore.availablePermits() == maxConcurrency;
-        } else {
-            return true;
+        long deadline = System.nanoTime() + maxWait.nanos();
+        while (maxConcurrency - semaphore.availablePermits() > 0) {
+            if (!semaphore.tryAcquire(maxConcurrency, Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            if (queued.isEmpty()) {
+                return semaphore.availablePermits() == maxConcurrency;
+            }
+            // the slots were freed before queued requests could take them, send them and wait again
+            semaphore.release(maxConcurrency);
+            sendQueued();
+        }
+        return semaphore.availablePermits() == maxConcurrency;
+    }
+
+    /**
+     * Acquire bytes from the byte budget. If the budget is exhausted, the buffered actions are flushed first,
+     * so they do not hold the budget while waiting.
+     *
+     * @param bytes the number of bytes
+     */
+    private void acquire(long bytes) {
+        if (closed) {
+            throw new IllegalStateException("processor already closed");
+        }
+        if (byteBudget.tryAcquire(bytes)) {
+            return;
+        }
+        flush();
+        try {
+            byteBudget.acquire(bytes);
+        } catch (EsRejectedExecutionException e) {
+            rejections.mark();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for byte budget", e);
+        }
+    }
+
+    /**
+     * Admit data if the queue is below its bound and a slot is free within the admission timeout. The slot
+     * is not held, the bound of the queue limits the requests waiting for slots.
+     */
+    private void admit() {
+        if (admissionTimeout == null) {
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("processor already closed");
+        }
+        int maxQueued = maxQueuedRequests >= 0 ? maxQueuedRequests : maxConcurrency;
+        if (queuedCount.get() >= maxQueued) {
+            rejections.mark();
+            throw new EsRejectedExecutionException("ingest queue full, " + getConcurrency() +
+                    " requests in flight, " + queuedCount.get() + " queued, limit " + maxQueued);
+        }
+        try {
+            if (semaphore.tryAcquire(admissionTimeout.nanos(), TimeUnit.NANOSECONDS)) {
+                semaphore.release();
+                sendQueued();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejections.mark();
+        throw new EsRejectedExecutionException("no ingest slot free within " + admissionTimeout +
+                ", " + getConcurrency() + " requests in flight, " + queuedCount.get() + " queued");
+    }
+
+    private ScheduledThreadPoolExecutor scheduler() {
+        if (scheduler == null) {
+            scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory((client).settings(), "ingest_processor"));
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Take actions from the buffer. If actions remain buffered, they keep the arrival time of the oldest
+     * action taken, which is not later than their own.
+     *
+     * @param numRequests the number of actions, or -1 for all actions
+     * @return the ingest request with the actions taken
+     */
+    private IngestRequest take(int numRequests) {
+        long first = firstNanos.getAndSet(MaxAgeFlusher.EMPTY);
+        IngestRequest request = numRequests > 0 ? ingestRequest.take(numRequests) : ingestRequest.takeAll();
+        if (first != MaxAgeFlusher.EMPTY && ingestRequest.numberOfActions() > 0) {
+            arrived(first);
+        }
+        return request;
+    }
+
+    /**
+     * Record the arrival of buffered actions, and arm the max age timer if they are the oldest actions.
+     *
+     * @param nanos the arrival time
+     */
+    private void arrived(long nanos) {
+        if (maxAgeFlusher == null) {
+            return;
+        }
+        while (true) {
+            long first = firstNanos.get();
+            if (first != MaxAgeFlusher.EMPTY && first - nanos <= 0L) {
+                return;
+            }
+            if (firstNanos.compareAndSet(first, nanos)) {
+                maxAgeFlusher.arm(nanos);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the time left until the drain deadline.
+     *
+     * @return the remaining nanoseconds, or {@code Long.MAX_VALUE} if the processor is not draining
+     */
+    private long remainingNanos() {
+        return draining ? Math.max(0L, drainDeadline - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    private void release(IngestRequest request) {
+        if (byteBudget != null) {
+            byteBudget.release(request.estimatedSizeInBytes());
         }
     }
 
@@ -181,71 +657,280 @@ public class IngestProcessor {
         if (closed) {
             throw new IllegalStateException("processor already closed");
         }
-        if (actions > 0) {
-            while (ingestRequest.numberOfActions() >= actions) {
-                process(ingestRequest.take(actions), ingestListener);
+        FlushPolicy flushPolicy = flushPolicy();
+        int n;
+        while ((n = flushPolicy.actionsToFlush(ingestRequest.numberOfActions(), ingestRequest.estimatedSizeInBytes())) > 0) {
+            process(take(n), ingestListener);
+        }
+    }
+
+    private FlushPolicy flushPolicy() {
+        return flushPolicy != null ? flushPolicy : thresholds;
+    }
+
+    /**
+     * Add parsed actions to the buffer. Oversized actions are sent alone, after the actions buffered before them.
+     *
+     * @param parsed         the parsed actions
+     * @param ingestListener listener
+     */
+    private synchronized void addParsed(IngestRequest parsed, IngestListener ingestListener) {
+        if (closed) {
+            throw new IllegalStateException("processor already closed");
+        }
+        FlushPolicy flushPolicy = flushPolicy();
+        int pending = 0;
+        for (IndicesRequest indicesRequest : parsed.subRequests()) {
+            if (!flushPolicy.isOversized(IngestRequest.estimatedSizeInBytes((ActionRequest<?>) indicesRequest))) {
+                pending++;
+                continue;
             }
-        } else {
-            while (ingestRequest.numberOfActions() > 0
-                    && maxVolume.bytesAsInt() > 0
-                    && ingestRequest.estimatedSizeInBytes() > maxVolume.bytesAsInt()) {
-                process(ingestRequest.takeAll(), ingestListener);
+            ingestRequest.add(parsed.take(pending));
+            pending = 0;
+            if (ingestRequest.numberOfActions() > 0) {
+                process(take(-1), ingestListener);
             }
+            process(parsed.take(1), ingestListener);
         }
+        ingestRequest.add(parsed);
     }
 
     /**
-     * Process an ingest request and send responses via the listener.
+     * Process an ingest request and send responses via the listener. With a shard partitioner, the request
+     * is split by the nodes holding the primary shards of the actions.
      *
      * @param request        the ingest request
      * @param ingestListener the listener
      */
     private void process(final IngestRequest request, final IngestListener ingestListener) {
         if (ingestListener == null) {
+            release(request);
+            failItems(request, new IllegalStateException("no ingest listener, ingest request not executed"));
             return;
         }
+        if (shardPartitioner == null) {
+            execute(request, ShardPartitioner.UNROUTED, ingestListener);
+            return;
+        }
+        final ShardPartitioner partitioner = shardPartitioner;
+        Map<String, IngestRequest> requestsByNode = request.partition(new IngestRequest.Partitioner() {
+            @Override
+            public String partition(ActionRequest<?> actionRequest) {
+                return partitioner.partition(actionRequest);
+            }
+        });
+        for (Map.Entry<String, IngestRequest> entry : requestsByNode.entrySet()) {
+            execute(entry.getValue(), entry.getKey(), ingestListener);
+        }
+    }
+
+    /**
+     * Execute an ingest request and send responses via the listener. A blocking processor waits for a free
+     * slot, a non-blocking processor queues the request if no slot is free.
+     *
+     * @param request        the ingest request
+     * @param nodeId         the preferred node, or the empty string for any node
+     * @param ingestListener the listener
+     */
+    private void execute(final IngestRequest request, String nodeId, final IngestListener ingestListener) {
         request.ingestId(ingestId.incrementAndGet());
+        unacknowledged.put(request.ingestId(), request);
+        if (!blocking && !draining) {
+            ingestListener.onRequest(maxConcurrency - semaphore.availablePermits(), request);
+            queuedCount.incrementAndGet();
+            queued.offer(new QueuedRequest(request, nodeId, ingestListener));
+            sendQueued();
+            return;
+        }
+        try {
+            if (!draining) {
+                semaphore.acquire();
+            } else if (!semaphore.tryAcquire(remainingNanos(), TimeUnit.NANOSECONDS)) {
+                // the deadline has passed, the request remains unacknowledged
+                release(request);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!draining) {
+                unacknowledged.remove(request.ingestId());
+            }
+            release(request);
+            ingestListener.onFailure(maxConcurrency - semaphore.availablePermits(), request.ingestId(), e);
+            return;
+        }
+        send(request, nodeId, ingestListener, true);
+    }
+
+    /**
+     * Send queued ingest requests while slots are free. Queueing threads call this after offering a request,
+     * and responding threads after releasing a slot, so a queued request is not left behind.
+     */
+    private void sendQueued() {
+        while (!queued.isEmpty() && semaphore.tryAcquire()) {
+            QueuedRequest queuedRequest = queued.poll();
+            if (queuedRequest == null) {
+                // another thread took the request, check again for requests queued meanwhile
+                semaphore.release();
+                continue;
+            }
+            queuedCount.decrementAndGet();
+            if (draining && remainingNanos() == 0L) {
+                // the deadline has passed, the request remains unacknowledged
+                release(queuedRequest.request);
+                semaphore.release();
+                continue;
+            }
+            send(queuedRequest.request, queuedRequest.nodeId, queuedRequest.ingestListener, false);
+        }
+    }
+
+    /**
+     * Send an ingest request holding a slot. The slot is released with the response.
+     *
+     * @param request        the ingest request
+     * @param nodeId         the preferred node, or the empty string for any node
+     * @param ingestListener the listener
+     * @param notify         true if the listener is notified of the request, false if it has been notified on queueing
+     */
+    private void send(final IngestRequest request, String nodeId, final IngestListener ingestListener, boolean notify) {
         boolean done = false;
         try {
-            semaphore.acquire();
-            ingestListener.onRequest(maxConcurrency - semaphore.availablePermits(), request);
-            client.execute(IngestAction.INSTANCE, request, new ActionListener<IngestResponse>() {
+            if (notify) {
+                ingestListener.onRequest(maxConcurrency - semaphore.availablePermits(), request);
+            }
+            ActionListener<IngestResponse> listener = new ActionListener<IngestResponse>() {
                 @Override
                 public void onResponse(IngestResponse response) {
                     try {
+                        if (shardPartitioner != null && !response.getFailures().isEmpty()) {
+                            shardPartitioner.invalidate();
+                        }
+                        unacknowledged.remove(request.ingestId());
+                        responses.mark();
                         ingestListener.onResponse(maxConcurrency - semaphore.availablePermits(), response);
                     } finally {
+                        completeItems(request, response);
+                        release(request);
                         semaphore.release();
+                        sendQueued();
                     }
                 }
 
                 @Override
                 public void onFailure(Throwable e) {
                     try {
+                        if (shardPartitioner != null) {
+                            shardPartitioner.invalidate();
+                        }
+                        if (!draining) {
+                            unacknowledged.remove(request.ingestId());
+                        }
+                        responses.mark();
                         ingestListener.onFailure(maxConcurrency - semaphore.availablePermits(), request.ingestId(), e);
                     } finally {
+                        failItems(request, e);
+                        release(request);
                         semaphore.release();
+                        sendQueued();
                     }
                 }
-            });
+            };
+            if (!ShardPartitioner.UNROUTED.equals(nodeId) && client instanceof TransportClient) {
+                ((TransportClient) client).execute(nodeId, IngestAction.INSTANCE, request, listener);
+            } else {
+                client.execute(IngestAction.INSTANCE, request, listener);
+            }
             done = true;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            ingestListener.onFailure(maxConcurrency - semaphore.availablePermits(), request.ingestId(), e);
+        } catch (RuntimeException e) {
+            failItems(request, e);
+            throw e;
         } finally {
             if (!done) {
+                if (!draining) {
+                    unacknowledged.remove(request.ingestId());
+                }
+                release(request);
                 semaphore.release();
             }
         }
     }
 
+    /**
+     * Complete the listeners of the actions of an ingest request. An action failed if the response has a
+     * failure at the position of the action. Failures of shards without a position, for example of replicas,
+     * do not fail the actions.
+     *
+     * @param request  the ingest request
+     * @param response the ingest response
+     */
+    private void completeItems(IngestRequest request, IngestResponse response) {
+        List<ActionListener<BulkItemResponse>> listeners = request.itemListeners();
+        if (listeners == null) {
+            return;
+        }
+        Map<Integer, String> failures = new HashMap<>();
+        for (IngestActionFailure failure : response.getFailures()) {
+            if (failure.position() >= 0) {
+                failures.put(failure.position(), failure.message());
+            }
+        }
+        List<? extends IndicesRequest> items = request.subRequests();
+        for (int i = 0; i < items.size(); i++) {
+            ActionRequest<?> item = (ActionRequest<?>) items.get(i);
+            ActionListener<BulkItemResponse> listener = listeners.get(i);
+            if (listener == null) {
+                continue;
+            }
+            try {
+                String message = failures.get(i);
+                if (message != null) {
+                    listener.onFailure(new ElasticsearchException(message));
+                } else if (item instanceof DeleteRequest) {
+                    DeleteRequest deleteRequest = (DeleteRequest) item;
+                    listener.onResponse(new BulkItemResponse(i, "delete", new DeleteResponse(deleteRequest.index(),
+                            deleteRequest.type(), deleteRequest.id(), deleteRequest.version(), true)));
+                } else {
+                    IndexRequest indexRequest = (IndexRequest) item;
+                    listener.onResponse(new BulkItemResponse(i, indexRequest.opType().lowercase(),
+                            new IndexResponse(indexRequest.index(), indexRequest.type(), indexRequest.id(),
+                                    indexRequest.version(), true)));
+                }
+            } catch (Throwable t) {
+                logger.warn("ingest item listener failed: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Complete the listeners of the actions of an ingest request with the failure of the request.
+     *
+     * @param request the ingest request
+     * @param failure the failure
+     */
+    private void failItems(IngestRequest request, Throwable failure) {
+        List<ActionListener<BulkItemResponse>> listeners = request.itemListeners();
+        if (listeners == null) {
+            return;
+        }
+        for (ActionListener<BulkItemResponse> listener : listeners) {
+            if (listener != null) {
+                try {
+                    listener.onFailure(failure);
+                } catch (Throwable t) {
+                    logger.warn("ingest item listener failed: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+
     /**
      * A listener for ingest executions
      */
     public interface IngestListener {
 
         /**
-         * Called before the ingest request is executed.
+         * Called before the ingest request is executed, or queued by a non-blocking processor.
          *
          * @param concurrency concurrency
          * @param request     request
@@ -270,10 +955,45 @@ public class IngestProcessor {
         void onFailure(int concurrency, long ingestId, Throwable failure);
     }
 
+    private static class QueuedRequest {
+
+        private final IngestRequest request;
+
+        private final String nodeId;
+
+        private final IngestListener ingestListener;
+
+        QueuedRequest(IngestRequest request, String nodeId, IngestListener ingestListener) {
+            this.request = request;
+            this.nodeId = nodeId;
+            this.ingestListener = ingestListener;
+        }
+    }
+
+    class AgedFlush implements MaxAgeFlusher.Buffer {
+
+        @Override
+        public long flushArrivedBefore(long nanos) {
+            synchronized (IngestProcessor.this) {
+                if (closed) {
+                    return MaxAgeFlusher.EMPTY;
+                }
+                long first = firstNanos.get();
+                if (first != MaxAgeFlusher.EMPTY && first - nanos <= 0L) {
+                    flush();
+                }
+                return firstNanos.get();
+            }
+        }
+    }
+
     class FlushHelper implements Runnable {
 
         @Override
         public void run() {
+            if (shardPartitioner != null) {
+                shardPartitioner.refresh();
+            }
             flushIfNeeded(ingestListener);
         }
     }
@@ -17,6 +17,8 @@ package org.xbib.elasticsearch.helper.client;
 
 import com.google.common.collect.ImmutableSet;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.update.UpdateRequest;
@@ -145,7 +147,15 @@ public class IngestTransportClient extends BaseMetricTransportClient implements
                 .maxActions(maxActionsPerRequest)
                 .maxVolumePerRequest(maxVolumePerRequest)
                 .flushInterval(flushInterval)
+                .maxAge(settings.getAsTime(FLUSH_MAX_AGE, null))
+                .byteBudget(ByteBudget.create(settings, metric.getBufferedBytes()))
+                .shardPartitioner(ShardPartitioner.create(client, settings))
                 .listener(ingestListener);
+        ByteSizeValue oversizedVolume = settings.getAsBytesSize(OVERSIZED_VOLUME_PER_REQUEST, null);
+        if (oversizedVolume != null) {
+            ingestProcessor.flushPolicy(new ThresholdFlushPolicy(maxActionsPerRequest, maxVolumePerRequest,
+                    null, oversizedVolume));
+        }
         try {
             Collection<InetSocketTransportAddress> addrs = findAddresses(settings);
             if (!connect(addrs, settings.getAsBoolean("autodiscover", false))) {
@@ -228,7 +238,7 @@ public class IngestTransportClient extends BaseMetricTransportClient implements
     }
 
     @Override
-    public IngestTransportClient bulkIndex(org.elasticsearch.action.index.IndexRequest indexRequest) {
+    public IngestTransportClient bulkIndex(IndexRequest indexRequest) {
         if (closed) {
             if (throwable != null) {
                 throw new ElasticsearchException("client is closed, possible reason: ", throwable);
@@ -268,7 +278,7 @@ public class IngestTransportClient extends BaseMetricTransportClient implements
     }
 
     @Override
-    public IngestTransportClient bulkDelete(org.elasticsearch.action.delete.DeleteRequest deleteRequest) {
+    public IngestTransportClient bulkDelete(DeleteRequest deleteRequest) {
         if (closed) {
             if (throwable != null) {
                 throw new ElasticsearchException("client is closed, possible reason: ", throwable);
@@ -299,6 +309,70 @@ public class IngestTransportClient extends BaseMetricTransportClient implements
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public IngestTransportClient bulkIndex(IndexRequest indexRequest, BulkPriority priority) {
+        // the ingest processor has a single lane
+        return bulkIndex(indexRequest);
+    }
+
+    @Override
+    public IngestTransportClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener) {
+        if (listener == null) {
+            return bulkIndex(indexRequest);
+        }
+        if (closed) {
+            if (throwable != null) {
+                throw new ElasticsearchException("client is closed, possible reason: ", throwable);
+            } else {
+                throw new ElasticsearchException("client is closed");
+            }
+        }
+        try {
+            metric.getCurrentIngest().inc(indexRequest.index(), indexRequest.type(), indexRequest.id());
+            ingestProcessor.add(new IndexRequest(indexRequest), listener);
+        } catch (Exception e) {
+            logger.error("add of index request failed: " + e.getMessage(), e);
+            throwable = e;
+            closed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public IngestTransportClient bulkDelete(DeleteRequest deleteRequest, BulkPriority priority) {
+        // the ingest processor has a single lane
+        return bulkDelete(deleteRequest);
+    }
+
+    @Override
+    public IngestTransportClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener) {
+        if (listener == null) {
+            return bulkDelete(deleteRequest);
+        }
+        if (closed) {
+            if (throwable != null) {
+                throw new ElasticsearchException("client is closed, possible reason: ", throwable);
+            } else {
+                throw new ElasticsearchException("client is closed");
+            }
+        }
+        try {
+            metric.getCurrentIngest().inc(deleteRequest.index(), deleteRequest.type(), deleteRequest.id());
+            ingestProcessor.add(new DeleteRequest(deleteRequest), listener);
+        } catch (Exception e) {
+            logger.error("add of delete request failed: " + e.getMessage(), e);
+            throwable = e;
+            closed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public ClientAPI bulkUpdate(UpdateRequest updateRequest, ActionListener<BulkItemResponse> listener) {
+        // we will never implement this!
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public IngestTransportClient flushIngest() {
         if (closed) {
@@ -337,6 +411,29 @@ public class IngestTransportClient extends BaseMetricTransportClient implements
         return this;
     }
 
+    /**
+     * Close the ingest processor within a deadline and return the actions which have not been acknowledged,
+     * see {@link IngestProcessor#drain(TimeValue)}.
+     *
+     * @param maxWaitTime maximum time to wait for responses
+     * @return the unacknowledged actions
+     * @throws InterruptedException if wait is interrupted
+     */
+    public IngestRequest drain(TimeValue maxWaitTime) throws InterruptedException {
+        if (closed) {
+            if (throwable != null) {
+                throw new ElasticsearchException("client is closed, possible reason: ", throwable);
+            } else {
+                throw new ElasticsearchException("client is closed");
+            }
+        }
+        if (client == null || ingestProcessor == null) {
+            logger.warn("no client");
+            return new IngestRequest();
+        }
+        return ingestProcessor.drain(maxWaitTime);
+    }
+
     @Override
     public synchronized void shutdown() {
         if (closed) {
@@ -352,7 +449,7 @@ public class IngestTransportClient extends BaseMetricTransportClient implements
             return;
         }
         try {
-            if (ingestProcessor != null) {
+            if (ingestProcessor != null && !ingestProcessor.isClosed()) {
                 logger.debug("closing ingest");
                 ingestProcessor.close();
             }
@@ -19,6 +19,7 @@ import org.xbib.metrics.Count;
 import org.xbib.metrics.CountMetric;
 import org.xbib.metrics.Meter;
 import org.xbib.metrics.Metered;
+import org.xbib.metrics.SettableGauge;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,6 +48,20 @@ public class LongAdderIngestMetric implements IngestMetric {
 
     private final Count failed = new CountMetric();
 
+    private final Count retried = new CountMetric();
+
+    private final Count coalesced = new CountMetric();
+
+    private final Count compressedBytes = new CountMetric();
+
+    private final Count compressionNanos = new CountMetric();
+
+    private final SettableGauge<Double> compressionRatio = new SettableGauge<>();
+
+    private final SettableGauge<Integer> currentBulkActions = new SettableGauge<>();
+
+    private final SettableGauge<Long> bufferedBytes = new SettableGauge<>();
+
     private Long started;
 
     private Long stopped;
@@ -86,6 +101,41 @@ public class LongAdderIngestMetric implements IngestMetric {
         return failed;
     }
 
+    @Override
+    public Count getRetried() {
+        return retried;
+    }
+
+    @Override
+    public Count getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public Count getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public Count getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    @Override
+    public SettableGauge<Double> getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    @Override
+    public SettableGauge<Integer> getCurrentBulkActions() {
+        return currentBulkActions;
+    }
+
+    @Override
+    public SettableGauge<Long> getBufferedBytes() {
+        return bufferedBytes;
+    }
+
     @Override
     public LongAdderIngestMetric start() {
         this.started = System.nanoTime();
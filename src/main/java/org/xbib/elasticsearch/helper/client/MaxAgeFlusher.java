@@ -0,0 +1,117 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes buffered actions once the oldest of them exceeds a maximum age. There is a single timer, armed for the
+ * earliest deadline when a buffer receives its first action, and re-armed for the oldest remaining action after
+ * it fired. While nothing is buffered, the timer is idle.
+ */
+public class MaxAgeFlusher implements Runnable {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(MaxAgeFlusher.class.getName());
+
+    /**
+     * The arrival time reported by an empty buffer.
+     */
+    public final static long EMPTY = Long.MIN_VALUE;
+
+    private final static long IDLE = Long.MAX_VALUE;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long maxAgeNanos;
+
+    private final Buffer buffer;
+
+    private ScheduledFuture<?> future;
+
+    private long deadline = IDLE;
+
+    /**
+     * Create a flusher for a maximum age.
+     *
+     * @param scheduler the scheduler for the timer
+     * @param maxAge the maximum age of a buffered action
+     * @param buffer the buffer to flush
+     */
+    public MaxAgeFlusher(ScheduledExecutorService scheduler, TimeValue maxAge, Buffer buffer) {
+        this.scheduler = scheduler;
+        this.maxAgeNanos = maxAge.nanos();
+        this.buffer = buffer;
+    }
+
+    /**
+     * Arm the timer for an action which was added to an empty buffer. The timer is only moved if the
+     * deadline of the action is earlier than the deadline the timer is armed for.
+     *
+     * @param arrivalNanos the arrival time of the action, from {@link System#nanoTime()}
+     */
+    public synchronized void arm(long arrivalNanos) {
+        long d = arrivalNanos + maxAgeNanos;
+        if (deadline != IDLE && deadline - d <= 0L) {
+            return;
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+        try {
+            future = scheduler.schedule(this, Math.max(0L, d - System.nanoTime()), TimeUnit.NANOSECONDS);
+            deadline = d;
+        } catch (RejectedExecutionException e) {
+            // scheduler is shut down, remaining actions are flushed on close
+            future = null;
+            deadline = IDLE;
+        }
+    }
+
+    /**
+     * Cancel the timer.
+     */
+    public synchronized void cancel() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        deadline = IDLE;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            future = null;
+            deadline = IDLE;
+        }
+        long oldest;
+        try {
+            oldest = buffer.flushArrivedBefore(System.nanoTime() - maxAgeNanos);
+        } catch (Exception e) {
+            logger.error("flush of buffered actions by age failed: " + e.getMessage(), e);
+            return;
+        }
+        if (oldest != EMPTY) {
+            arm(oldest);
+        }
+    }
+
+    /**
+     * A buffer of actions which can be flushed by age.
+     */
+    public interface Buffer {
+
+        /**
+         * Flush the buffered actions if the oldest of them arrived before the given time.
+         *
+         * @param nanos the time, from {@link System#nanoTime()}
+         * @return the arrival time of the oldest action still buffered, or {@link MaxAgeFlusher#EMPTY} if nothing is buffered
+         */
+        long flushArrivedBefore(long nanos);
+    }
+}
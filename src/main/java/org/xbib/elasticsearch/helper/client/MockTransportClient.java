@@ -15,9 +15,14 @@
  */
 package org.xbib.elasticsearch.helper.client;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.ElasticsearchClient;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeValue;
@@ -100,6 +105,43 @@ public class MockTransportClient extends BulkTransportClient {
         return this;
     }
 
+    @Override
+    public MockTransportClient bulkIndex(IndexRequest indexRequest, BulkPriority priority) {
+        return this;
+    }
+
+    @Override
+    public MockTransportClient bulkIndex(IndexRequest indexRequest, ActionListener<BulkItemResponse> listener) {
+        if (listener != null) {
+            listener.onResponse(new BulkItemResponse(0, indexRequest.opType().lowercase(), new IndexResponse(indexRequest.index(), indexRequest.type(), indexRequest.id(),
+                    indexRequest.version(), true)));
+        }
+        return this;
+    }
+
+    @Override
+    public MockTransportClient bulkDelete(DeleteRequest deleteRequest, BulkPriority priority) {
+        return this;
+    }
+
+    @Override
+    public MockTransportClient bulkDelete(DeleteRequest deleteRequest, ActionListener<BulkItemResponse> listener) {
+        if (listener != null) {
+            listener.onResponse(new BulkItemResponse(0, "delete", new DeleteResponse(deleteRequest.index(), deleteRequest.type(), deleteRequest.id(),
+                    deleteRequest.version(), true)));
+        }
+        return this;
+    }
+
+    @Override
+    public MockTransportClient bulkUpdate(UpdateRequest updateRequest, ActionListener<BulkItemResponse> listener) {
+        if (listener != null) {
+            listener.onResponse(new BulkItemResponse(0, "update", new UpdateResponse(updateRequest.index(), updateRequest.type(), updateRequest.id(),
+                    updateRequest.version(), true)));
+        }
+        return this;
+    }
+
     @Override
     public MockTransportClient flushIngest() {
         return this;
@@ -0,0 +1,171 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasOrIndex;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.OperationRouting;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the node holding the primary shard of a document on the client side, with the same hash routing
+ * as Elasticsearch. The partition key of a document is the ID of this node, so bulk requests can be built for
+ * one node each.
+ *
+ * The cluster state is fetched from the cluster and cached. It is refreshed on {@link #refresh()}, and on demand
+ * for an unknown index or after {@link #invalidate()}, at most once per refresh interval. Documents which can not be routed, e.g. for indices
+ * which do not exist yet, get the empty partition key.
+ */
+public class ShardPartitioner {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(ShardPartitioner.class.getName());
+
+    /**
+     * The partition key for documents which can not be routed.
+     */
+    public final static String UNROUTED = "";
+
+    private final Client client;
+
+    private final OperationRouting operationRouting;
+
+    private final long minRefreshIntervalMillis;
+
+    private final AtomicInteger unroutedCounter = new AtomicInteger();
+
+    private volatile ClusterState clusterState;
+
+    private volatile long lastRefresh;
+
+    private volatile boolean stale;
+
+    public ShardPartitioner(Client client, TimeValue minRefreshInterval) {
+        this.client = client;
+        this.operationRouting = new OperationRouting(client.settings(), null);
+        this.minRefreshIntervalMillis = minRefreshInterval.millis();
+    }
+
+    /**
+     * Create a shard partitioner from settings.
+     *
+     * @param client the client
+     * @param settings the settings
+     * @return the shard partitioner, or null if shard partitioning is not enabled
+     */
+    public static ShardPartitioner create(Client client, Settings settings) {
+        if (!settings.getAsBoolean(ClientParameters.SHARD_PARTITIONING, false)) {
+            return null;
+        }
+        return new ShardPartitioner(client,
+                settings.getAsTime(ClientParameters.SHARD_PARTITIONING_REFRESH_INTERVAL,
+                        ClientParameters.DEFAULT_SHARD_PARTITIONING_REFRESH_INTERVAL));
+    }
+
+    /**
+     * Fetch the current metadata and routing table from the cluster.
+     */
+    public synchronized void refresh() {
+        try {
+            ClusterState state = client.admin().cluster().prepareState()
+                    .clear()
+                    .setMetaData(true)
+                    .setRoutingTable(true)
+                    .execute().actionGet().getState();
+            if (clusterState != null && clusterState.version() != state.version()) {
+                logger.debug("cluster state changed from version {} to {}", clusterState.version(), state.version());
+            }
+            this.clusterState = state;
+            this.stale = false;
+        } catch (Exception e) {
+            logger.warn("unable to fetch cluster state for shard partitioning: {}", e.getMessage());
+        }
+        this.lastRefresh = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark the cached cluster state as stale, e.g. after a failure which may be caused by a shard that has moved.
+     * The cluster state is fetched again on the next partitioning, at most once per refresh interval.
+     */
+    public void invalidate() {
+        this.stale = true;
+    }
+
+    /**
+     * Returns the partition key of a document request. Index requests without ID and routing are left
+     * untouched, so the server generates the ID and skips the version lookup. Their shard is chosen by that ID,
+     * so they are assigned to the nodes holding primary shards of the index in turn.
+     *
+     * @param request the request
+     * @return the partition key
+     */
+    public String partition(ActionRequest<?> request) {
+        if (!(request instanceof DocumentRequest)) {
+            return UNROUTED;
+        }
+        DocumentRequest<?> documentRequest = (DocumentRequest<?>) request;
+        ClusterState state = clusterState;
+        if (state == null || stale || !state.metaData().getAliasAndIndexLookup().containsKey(documentRequest.index())) {
+            if (System.currentTimeMillis() - lastRefresh >= minRefreshIntervalMillis) {
+                refresh();
+                state = clusterState;
+            }
+            if (state == null || !state.metaData().getAliasAndIndexLookup().containsKey(documentRequest.index())) {
+                return UNROUTED;
+            }
+        }
+        return partition(state, documentRequest);
+    }
+
+    private String partition(ClusterState state, DocumentRequest<?> request) {
+        MetaData metaData = state.metaData();
+        AliasOrIndex aliasOrIndex = metaData.getAliasAndIndexLookup().get(request.index());
+        if (aliasOrIndex == null || aliasOrIndex.getIndices().size() != 1) {
+            return UNROUTED;
+        }
+        String index = aliasOrIndex.getIndices().get(0).getIndex();
+        try {
+            String routing = metaData.resolveIndexRouting(request.routing(), request.index());
+            if (request.id() == null && routing == null) {
+                return anyPrimaryNode(state, index);
+            }
+            ShardId shardId = operationRouting.shardId(state, index, request.type(), request.id(), routing);
+            IndexShardRoutingTable shardRoutingTable = state.routingTable().shardRoutingTable(shardId.getIndex(), shardId.id());
+            ShardRouting primary = shardRoutingTable.primaryShard();
+            return primary != null && primary.assignedToNode() ? primary.currentNodeId() : UNROUTED;
+        } catch (Exception e) {
+            // e.g. an alias with more than one routing value
+            return UNROUTED;
+        }
+    }
+
+    private String anyPrimaryNode(ClusterState state, String index) {
+        IndexRoutingTable indexRoutingTable = state.routingTable().index(index);
+        if (indexRoutingTable == null) {
+            return UNROUTED;
+        }
+        List<String> nodeIds = new ArrayList<>();
+        for (IndexShardRoutingTable shardRoutingTable : indexRoutingTable) {
+            ShardRouting primary = shardRoutingTable.primaryShard();
+            if (primary != null && primary.assignedToNode()) {
+                nodeIds.add(primary.currentNodeId());
+            }
+        }
+        if (nodeIds.isEmpty()) {
+            return UNROUTED;
+        }
+        return nodeIds.get((unroutedCounter.getAndIncrement() & Integer.MAX_VALUE) % nodeIds.size());
+    }
+}
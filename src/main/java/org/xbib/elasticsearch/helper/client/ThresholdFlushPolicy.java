@@ -0,0 +1,62 @@
+package org.xbib.elasticsearch.helper.client;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * A flush policy combining thresholds. Buffered actions are sent once their number reaches the maximum number
+ * of actions, or once their size reaches the maximum volume, whichever comes first. If the volume is exceeded
+ * by many actions at once, they are sent in requests of about the maximum volume, by their average size.
+ * Actions of at least the oversized volume are sent alone, so a single large document does not inflate a request.
+ */
+public class ThresholdFlushPolicy implements FlushPolicy {
+
+    private final int maxActions;
+
+    private final long maxBytes;
+
+    private final TimeValue maxAge;
+
+    private final long oversizedBytes;
+
+    /**
+     * Create a threshold flush policy.
+     *
+     * @param maxActions the maximum number of actions per request, or zero for no maximum
+     * @param maxVolume  the maximum volume per request, or null for no maximum
+     * @param maxAge     the maximum age of the oldest buffered action, or null for no maximum
+     * @param oversized  the volume from which an action is sent alone, or null for never
+     */
+    public ThresholdFlushPolicy(int maxActions, @Nullable ByteSizeValue maxVolume, @Nullable TimeValue maxAge,
+                                @Nullable ByteSizeValue oversized) {
+        this.maxActions = maxActions;
+        this.maxBytes = maxVolume != null ? maxVolume.bytes() : 0L;
+        this.maxAge = maxAge;
+        this.oversizedBytes = oversized != null ? oversized.bytes() : 0L;
+    }
+
+    @Override
+    public int actionsToFlush(int numberOfActions, long sizeInBytes) {
+        if (numberOfActions <= 0) {
+            return 0;
+        }
+        if (maxActions > 0 && numberOfActions >= maxActions) {
+            return maxActions;
+        }
+        if (maxBytes > 0L && sizeInBytes >= maxBytes) {
+            return (int) Math.max(1L, Math.min(numberOfActions, numberOfActions * maxBytes / sizeInBytes));
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isOversized(long sizeInBytes) {
+        return oversizedBytes > 0L && sizeInBytes >= oversizedBytes;
+    }
+
+    @Override
+    public TimeValue maxAge() {
+        return maxAge;
+    }
+}
@@ -5,15 +5,19 @@ import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.Version;
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionListenerResponseHandler;
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.action.GenericAction;
 import org.elasticsearch.action.TransportActionNodeProxy;
 import org.elasticsearch.action.admin.cluster.node.liveness.LivenessRequest;
 import org.elasticsearch.action.admin.cluster.node.liveness.LivenessResponse;
 import org.elasticsearch.action.admin.cluster.node.liveness.TransportLivenessAction;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.support.ThreadedActionListener;
 import org.elasticsearch.cache.recycler.PageCacheRecycler;
 import org.elasticsearch.client.support.AbstractClient;
 import org.elasticsearch.client.support.Headers;
@@ -51,6 +55,8 @@ import org.elasticsearch.transport.FutureTransportResponseHandler;
 import org.elasticsearch.transport.TransportModule;
 import org.elasticsearch.transport.TransportRequestOptions;
 import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.action.ingest.IngestRequest;
+import org.xbib.elasticsearch.common.CompressionPolicy;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -164,6 +170,8 @@ public class TransportClient extends AbstractClient {
 
     private final Headers headers;
 
+    private final ThreadedActionListener.Wrapper threadedWrapper;
+
     private final AtomicInteger tempNodeId = new AtomicInteger();
 
     private final AtomicInteger nodeCounter = new AtomicInteger();
@@ -178,6 +186,8 @@ public class TransportClient extends AbstractClient {
 
     private volatile boolean closed;
 
+    private volatile CompressionPolicy compressionPolicy;
+
     private TransportClient(Injector injector) {
         super(injector.getInstance(Settings.class), injector.getInstance(ThreadPool.class),
                 injector.getInstance(Headers.class));
@@ -188,6 +198,7 @@ public class TransportClient extends AbstractClient {
         this.headers = injector.getInstance(Headers.class);
         this.pingTimeout = this.settings.getAsTime("client.transport.ping_timeout", timeValueSeconds(5)).millis();
         this.proxyActionMap = injector.getInstance(ProxyActionMap.class);
+        this.threadedWrapper = new ThreadedActionListener.Wrapper(logger, settings, threadPool());
     }
 
     /**
@@ -247,6 +258,17 @@ public class TransportClient extends AbstractClient {
         return this;
     }
 
+    /**
+     * Sets a compression policy for bulk and ingest requests. Requests are compressed by their size,
+     * instead of the compression setting of the transport.
+     * @param compressionPolicy the compression policy, or null
+     * @return this transport client
+     */
+    public TransportClient compressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+
     public TransportClient addTransportAddresses(Collection<InetSocketTransportAddress> transportAddresses) {
         synchronized (mutex) {
             if (closed) {
@@ -397,21 +419,10 @@ public class TransportClient extends AbstractClient {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     protected <Request extends ActionRequest, Response extends ActionResponse,
             RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
     void doExecute(Action<Request, Response, RequestBuilder> action, final Request request,
                    ActionListener<Response> listener) {
-        final TransportActionNodeProxy<Request, Response> proxyAction = proxyActionMap.getProxies().get(action);
-        if (proxyAction == null) {
-            throw new IllegalStateException("undefined action " + action);
-        }
-        NodeListenerCallback<Response> callback = new NodeListenerCallback<Response>() {
-            @Override
-            public void doWithNode(DiscoveryNode node, ActionListener<Response> listener) {
-                proxyAction.execute(node, request, listener);
-            }
-        };
         List<DiscoveryNode> nodes = this.nodes;
         if (nodes.isEmpty()) {
             throw new NoNodeAvailableException("none of the configured nodes are available: " + this.listedNodes);
@@ -421,6 +432,62 @@ public class TransportClient extends AbstractClient {
             index = 0;
             nodeCounter.set(0);
         }
+        execute(action, request, listener, nodes, index);
+    }
+
+    /**
+     * Executes an action on a preferred node, for example the node holding the primary shards of the documents
+     * in the request. If the preferred node is not connected, the action is executed like any other action.
+     * If the preferred node is not reachable, the other connected nodes are tried in turn.
+     *
+     * @param nodeId the ID of the preferred node
+     * @param action the action
+     * @param request the request
+     * @param listener the listener
+     * @param <Request> the request type
+     * @param <Response> the response type
+     * @param <RequestBuilder> the request builder type
+     */
+    public <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
+    void execute(String nodeId, Action<Request, Response, RequestBuilder> action, Request request,
+                 ActionListener<Response> listener) {
+        List<DiscoveryNode> nodes = this.nodes;
+        int index = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).id().equals(nodeId)) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            execute(action, request, listener);
+            return;
+        }
+        headers.applyTo(request);
+        execute(action, request, threadedWrapper.wrap(listener), nodes, index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
+    void execute(final Action<Request, Response, RequestBuilder> action, final Request request,
+                 ActionListener<Response> listener, List<DiscoveryNode> nodes, int index) {
+        final TransportActionNodeProxy<Request, Response> proxyAction = proxyActionMap.getProxies().get(action);
+        if (proxyAction == null) {
+            throw new IllegalStateException("undefined action " + action);
+        }
+        final TransportRequestOptions options = transportOptions(action, request);
+        NodeListenerCallback<Response> callback = new NodeListenerCallback<Response>() {
+            @Override
+            public void doWithNode(DiscoveryNode node, ActionListener<Response> listener) {
+                if (options == null) {
+                    proxyAction.execute(node, request, listener);
+                } else {
+                    send(node, action, request, options, listener);
+                }
+            }
+        };
         RetryListener<Response> retryListener = new RetryListener<>(callback, listener, nodes, index);
         DiscoveryNode node = nodes.get((index) % nodes.size());
         try {
@@ -430,6 +497,44 @@ public class TransportClient extends AbstractClient {
         }
     }
 
+    /**
+     * Returns the transport options chosen by the compression policy for a bulk or ingest request,
+     * or null for the transport options of the action.
+     */
+    private TransportRequestOptions transportOptions(GenericAction<?, ?> action, ActionRequest<?> request) {
+        CompressionPolicy compressionPolicy = this.compressionPolicy;
+        if (compressionPolicy == null) {
+            return null;
+        }
+        long bytes;
+        if (request instanceof BulkRequest) {
+            bytes = ((BulkRequest) request).estimatedSizeInBytes();
+        } else if (request instanceof IngestRequest) {
+            bytes = ((IngestRequest) request).estimatedSizeInBytes();
+        } else {
+            return null;
+        }
+        return compressionPolicy.options(action.transportOptions(settings()), request, bytes);
+    }
+
+    private <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
+    void send(DiscoveryNode node, final Action<Request, Response, RequestBuilder> action, Request request,
+              TransportRequestOptions options, ActionListener<Response> listener) {
+        ActionRequestValidationException validationException = request.validate();
+        if (validationException != null) {
+            listener.onFailure(validationException);
+            return;
+        }
+        transportService.sendRequest(node, action.name(), request, options,
+                new ActionListenerResponseHandler<Response>(listener) {
+                    @Override
+                    public Response newInstance() {
+                        return action.newResponse();
+                    }
+                });
+    }
+
     interface NodeListenerCallback<Response> {
 
         void doWithNode(DiscoveryNode node, ActionListener<Response> listener);
@@ -5,16 +5,22 @@ import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.bulk.BulkAction;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.bulk.SerializedBulkRequest;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.cache.recycler.PageCacheRecycler;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.util.concurrent.FutureUtils;
+import org.xbib.elasticsearch.helper.client.AdaptiveBulkSizer;
+import org.xbib.elasticsearch.helper.client.BulkRetryHandler;
+import org.xbib.metrics.Count;
 
 import java.io.Closeable;
 import java.util.concurrent.Executors;
@@ -71,6 +77,11 @@ public class HttpBulkProcessor implements Closeable {
         private int bulkActions = 1000;
         private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
         private TimeValue flushInterval = null;
+        private AdaptiveBulkSizer adaptiveBulkSizer = null;
+        private int maxRetries = 0;
+        private TimeValue retryBackoff = TimeValue.timeValueMillis(100);
+        private Count retryCounter = null;
+        private boolean preSerialized = false;
 
         /**
          * Creates a builder of bulk processor with the client to use and the listener that will be used
@@ -139,12 +150,68 @@ public class HttpBulkProcessor implements Closeable {
             return this;
         }
 
+        /**
+         * Sets an adaptive bulk sizer which controls the number of actions per bulk request from the latency
+         * of the executions, instead of the fixed number of {@link #setBulkActions(int)}.
+         * The bulk size set by {@link #setBulkSize(ByteSizeValue)} remains an upper limit. Defaults to not set.
+         * @param adaptiveBulkSizer the adaptive bulk sizer
+         * @return this builder
+         */
+        public Builder setAdaptiveBulkSizer(AdaptiveBulkSizer adaptiveBulkSizer) {
+            this.adaptiveBulkSizer = adaptiveBulkSizer;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of times a bulk item is resubmitted if it failed because of a rejected
+         * execution or an unavailable shard. Defaults to <tt>0</tt> (no retries).
+         * @param maxRetries the maximum number of retries
+         * @return this builder
+         */
+        public Builder setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Sets the backoff before the first retry of failed bulk items. The backoff is doubled with each further
+         * retry. Defaults to <tt>100ms</tt>.
+         * @param retryBackoff the initial retry backoff
+         * @return this builder
+         */
+        public Builder setRetryBackoff(TimeValue retryBackoff) {
+            this.retryBackoff = retryBackoff;
+            return this;
+        }
+
+        /**
+         * Sets a counter for the number of retried bulk items. Defaults to not set.
+         * @param retryCounter the retry counter
+         * @return this builder
+         */
+        public Builder setRetryCounter(Count retryCounter) {
+            this.retryCounter = retryCounter;
+            return this;
+        }
+
+        /**
+         * Sets if the bulk content is written when actions are added, into recycled paged buffers, instead of
+         * being built from the action requests when a bulk request is sent. Defaults to <tt>false</tt>.
+         * @param preSerialized true for writing the bulk content when actions are added
+         * @return this builder
+         */
+        public Builder setPreSerialized(boolean preSerialized) {
+            this.preSerialized = preSerialized;
+            return this;
+        }
+
         /**
          * Builds a new bulk processor.
          * @return a HTTP bulk processor
          */
         public HttpBulkProcessor build() {
-            return new HttpBulkProcessor(client, listener, name, concurrentRequests, bulkActions, bulkSize, flushInterval);
+            return new HttpBulkProcessor(client, listener, name, concurrentRequests, bulkActions, bulkSize, flushInterval,
+                    adaptiveBulkSizer, maxRetries, retryBackoff, retryCounter, preSerialized);
         }
     }
 
@@ -162,6 +229,10 @@ public class HttpBulkProcessor implements Closeable {
     private final int concurrentRequests;
     private final int bulkActions;
     private final long bulkSize;
+    private final AdaptiveBulkSizer adaptiveBulkSizer;
+    private final BulkRetryHandler retryHandler;
+    private final PageCacheRecycler pageCacheRecycler;
+    private final BigArrays bigArrays;
 
     private final Semaphore semaphore;
     private final ScheduledThreadPoolExecutor scheduler;
@@ -173,15 +244,25 @@ public class HttpBulkProcessor implements Closeable {
 
     private volatile boolean closed = false;
 
-    HttpBulkProcessor(Client client, Listener listener, @Nullable String name, int concurrentRequests, int bulkActions, ByteSizeValue bulkSize, @Nullable TimeValue flushInterval) {
+    HttpBulkProcessor(Client client, Listener listener, @Nullable String name, int concurrentRequests, int bulkActions, ByteSizeValue bulkSize, @Nullable TimeValue flushInterval,
+                      @Nullable AdaptiveBulkSizer adaptiveBulkSizer,
+                      int maxRetries, TimeValue retryBackoff, @Nullable Count retryCounter, boolean preSerialized) {
         this.client = client;
         this.listener = listener;
         this.concurrentRequests = concurrentRequests;
         this.bulkActions = bulkActions;
         this.bulkSize = bulkSize.bytes();
+        this.adaptiveBulkSizer = adaptiveBulkSizer;
+        if (preSerialized) {
+            this.pageCacheRecycler = new PageCacheRecycler(client.settings(), client.threadPool());
+            this.bigArrays = new BigArrays(pageCacheRecycler, null);
+        } else {
+            this.pageCacheRecycler = null;
+            this.bigArrays = null;
+        }
 
         this.semaphore = new Semaphore(concurrentRequests);
-        this.bulkRequest = new BulkRequest();
+        this.bulkRequest = newBulkRequest();
 
         if (flushInterval != null) {
             this.scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory(client.settings(), (name != null ? "[" + name + "]" : "") + "bulk_processor"));
@@ -192,6 +273,8 @@ public class HttpBulkProcessor implements Closeable {
             this.scheduler = null;
             this.scheduledFuture = null;
         }
+        this.retryHandler = maxRetries > 0 ?
+                new BulkRetryHandler(client, name, maxRetries, retryBackoff, retryCounter) : null;
     }
 
     /**
@@ -230,14 +313,23 @@ public class HttpBulkProcessor implements Closeable {
         if (bulkRequest.numberOfActions() > 0) {
             execute();
         }
-        if (this.concurrentRequests < 1) {
-            return true;
-        }
-        if (semaphore.tryAcquire(this.concurrentRequests, timeout, unit)) {
-            semaphore.release(this.concurrentRequests);
-            return true;
+        try {
+            if (this.concurrentRequests < 1) {
+                return true;
+            }
+            if (semaphore.tryAcquire(this.concurrentRequests, timeout, unit)) {
+                semaphore.release(this.concurrentRequests);
+                return true;
+            }
+            return false;
+        } finally {
+            if (this.retryHandler != null) {
+                this.retryHandler.close();
+            }
+            if (this.pageCacheRecycler != null) {
+                this.pageCacheRecycler.close();
+            }
         }
-        return false;
     }
 
     /**
@@ -308,32 +400,48 @@ public class HttpBulkProcessor implements Closeable {
         final BulkRequest bulkRequest = this.bulkRequest;
         final long executionId = executionIdGen.incrementAndGet();
 
-        this.bulkRequest = new BulkRequest();
+        this.bulkRequest = newBulkRequest();
 
         if (concurrentRequests == 0) {
             // execute in a blocking fashion...
             boolean afterCalled = false;
             try {
                 listener.beforeBulk(executionId, bulkRequest);
-                BulkResponse bulkItemResponses = client.execute(BulkAction.INSTANCE, bulkRequest).actionGet();
+                long t0 = System.nanoTime();
+                BulkResponse bulkItemResponses = retryHandler != null ?
+                        retryHandler.executeAndWait(bulkRequest) :
+                        client.execute(BulkAction.INSTANCE, bulkRequest).actionGet();
+                if (adaptiveBulkSizer != null) {
+                    adaptiveBulkSizer.onResponse(System.nanoTime() - t0, bulkItemResponses);
+                }
                 afterCalled = true;
                 listener.afterBulk(executionId, bulkRequest, bulkItemResponses);
             } catch (Exception e) {
                 if (!afterCalled) {
+                    if (adaptiveBulkSizer != null) {
+                        adaptiveBulkSizer.onFailure(e);
+                    }
                     listener.afterBulk(executionId, bulkRequest, e);
                 }
+            } finally {
+                release(bulkRequest);
             }
         } else {
             boolean success = false;
             try {
                 listener.beforeBulk(executionId, bulkRequest);
                 semaphore.acquire();
-                client.execute(BulkAction.INSTANCE, bulkRequest, new ActionListener<BulkResponse>() {
+                final long t0 = System.nanoTime();
+                ActionListener<BulkResponse> actionListener = new ActionListener<BulkResponse>() {
                     @Override
                     public void onResponse(BulkResponse response) {
                         try {
+                            if (adaptiveBulkSizer != null) {
+                                adaptiveBulkSizer.onResponse(System.nanoTime() - t0, response);
+                            }
                             listener.afterBulk(executionId, bulkRequest, response);
                         } finally {
+                            release(bulkRequest);
                             semaphore.release();
                         }
                     }
@@ -341,12 +449,21 @@ public class HttpBulkProcessor implements Closeable {
                     @Override
                     public void onFailure(Throwable e) {
                         try {
+                            if (adaptiveBulkSizer != null) {
+                                adaptiveBulkSizer.onFailure(e);
+                            }
                             listener.afterBulk(executionId, bulkRequest, e);
                         } finally {
+                            release(bulkRequest);
                             semaphore.release();
                         }
                     }
-                });
+                };
+                if (retryHandler != null) {
+                    retryHandler.execute(bulkRequest, actionListener);
+                } else {
+                    client.execute(BulkAction.INSTANCE, bulkRequest, actionListener);
+                }
                 success = true;
             } catch (InterruptedException e) {
                 Thread.interrupted();
@@ -355,13 +472,34 @@ public class HttpBulkProcessor implements Closeable {
                 listener.afterBulk(executionId, bulkRequest, t);
             } finally {
                  if (!success) {
+                     release(bulkRequest);
                      semaphore.release();
                  }
             }
         }
     }
 
+    private BulkRequest newBulkRequest() {
+        return bigArrays != null ? new SerializedBulkRequest(bigArrays) : new BulkRequest();
+    }
+
+    private static void release(BulkRequest bulkRequest) {
+        if (bulkRequest instanceof SerializedBulkRequest) {
+            ((SerializedBulkRequest) bulkRequest).close();
+        }
+    }
+
+    /**
+     * Returns the number of actions which trigger the execution of a bulk request. If an adaptive bulk sizer
+     * is set, this is the number of actions currently chosen by the sizer.
+     * @return the number of actions per bulk request
+     */
+    public int getBulkActions() {
+        return adaptiveBulkSizer != null ? adaptiveBulkSizer.getBulkActions() : bulkActions;
+    }
+
     private boolean isOverTheLimit() {
+        int bulkActions = getBulkActions();
         return bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions || bulkSize != -1 && bulkRequest.estimatedSizeInBytes() >= bulkSize;
     }
 
@@ -16,12 +16,21 @@
 package org.xbib.elasticsearch.plugin.helper;
 
 import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestModule;
 import org.xbib.elasticsearch.action.ingest.IngestAction;
+import org.xbib.elasticsearch.action.ingest.IngestModule;
 import org.xbib.elasticsearch.action.ingest.TransportIngestAction;
+import org.xbib.elasticsearch.rest.action.ingest.IngestParsingModule;
+import org.xbib.elasticsearch.rest.action.ingest.IngestParsingService;
 import org.xbib.elasticsearch.rest.action.ingest.RestIngestAction;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
 public class HelperPlugin extends Plugin {
 
     @Override
@@ -34,6 +43,16 @@ public class HelperPlugin extends Plugin {
         return "Helper plugin";
     }
 
+    @Override
+    public Collection<Module> nodeModules() {
+        return Arrays.<Module>asList(new IngestModule(), new IngestParsingModule());
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(IngestParsingService.class);
+    }
+
 
     public void onModule(ActionModule module) {
         module.registerAction(IngestAction.INSTANCE, TransportIngestAction.class);
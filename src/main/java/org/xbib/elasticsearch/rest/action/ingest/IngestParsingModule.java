@@ -0,0 +1,14 @@
+package org.xbib.elasticsearch.rest.action.ingest;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Binds the node services of the ingest REST action.
+ */
+public class IngestParsingModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(IngestParsingService.class).asEagerSingleton();
+    }
+}
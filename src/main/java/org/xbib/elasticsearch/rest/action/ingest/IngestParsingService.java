@@ -0,0 +1,70 @@
+package org.xbib.elasticsearch.rest.action.ingest;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node service which owns the pool for parsing large ingest bodies in parallel chunks. The pool exists only
+ * if {@code action.ingest.parsechunksize} is set, and it is shut down when the node is closed.
+ */
+public class IngestParsingService extends AbstractLifecycleComponent<IngestParsingService> {
+
+    private final ForkJoinPool pool;
+
+    private final ByteSizeValue chunkSize;
+
+    @Inject
+    public IngestParsingService(Settings settings) {
+        super(settings);
+        this.chunkSize = settings.getAsBytesSize("action.ingest.parsechunksize", null);
+        this.pool = chunkSize != null ? new ForkJoinPool(settings.getAsInt("action.ingest.parsethreads",
+                Runtime.getRuntime().availableProcessors())) : null;
+    }
+
+    /**
+     * The pool for parsing.
+     *
+     * @return the pool, or null if parallel parsing is off
+     */
+    public ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * The size of the chunks to parse in parallel.
+     *
+     * @return the chunk size, or null if parallel parsing is off
+     */
+    public ByteSizeValue chunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    protected void doStart() {
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() {
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
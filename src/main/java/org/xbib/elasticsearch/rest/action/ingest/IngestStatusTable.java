@@ -0,0 +1,189 @@
+package org.xbib.elasticsearch.rest.action.ingest;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.xbib.elasticsearch.action.ingest.IngestActionFailure;
+import org.xbib.elasticsearch.action.ingest.IngestRequest;
+import org.xbib.elasticsearch.action.ingest.IngestResponse;
+import org.xbib.elasticsearch.helper.client.IngestProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of the status of recent ingest requests, in a ring buffer keyed by ingest identifier.
+ * The status of an ingest request is overwritten by the request with the same slot in the next round,
+ * so the table holds the status of about the last requests of its capacity. The table is the listener of
+ * the ingest processor, and is safe for concurrent use without locks.
+ */
+public class IngestStatusTable implements IngestProcessor.IngestListener {
+
+    private final static ESLogger logger = Loggers.getLogger(IngestStatusTable.class);
+
+    /**
+     * The maximum number of failure messages kept per ingest request.
+     */
+    private static final int MAX_FAILURES = 10;
+
+    private final AtomicReferenceArray<Status> statuses;
+
+    public IngestStatusTable(int capacity) {
+        this.statuses = new AtomicReferenceArray<>(Math.max(capacity, 1));
+    }
+
+    /**
+     * Returns the status of an ingest request.
+     *
+     * @param ingestId the ingest identifier
+     * @return the status, or null if the ingest identifier is unknown or the status has been overwritten
+     */
+    public Status get(long ingestId) {
+        if (ingestId <= 0L) {
+            return null;
+        }
+        Status status = statuses.get(slot(ingestId));
+        return status != null && status.ingestId == ingestId ? status : null;
+    }
+
+    @Override
+    public void onRequest(int concurrency, IngestRequest request) {
+        long v = RestIngestAction.volumeCounter.addAndGet(request.estimatedSizeInBytes());
+        if (logger.isDebugEnabled()) {
+            logger.debug("ingest request [{}] of {} items, {} bytes, {} concurrent requests",
+                    request.ingestId(), request.numberOfActions(), v, concurrency);
+        }
+        update(new Status(request.ingestId(), State.PENDING, request.numberOfActions(), 0, 0,
+                Collections.<String>emptyList(), -1L));
+    }
+
+    @Override
+    public void onResponse(int concurrency, IngestResponse response) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("ingest response [{}] [{} succeeded] [{} failed] [{}ms]",
+                    response.ingestId(),
+                    response.successSize(),
+                    response.getFailures().size(),
+                    response.tookInMillis());
+        }
+        List<String> messages = new ArrayList<>();
+        for (IngestActionFailure f : response.getFailures()) {
+            logger.error("ingest [{}] failure, reason: {}", response.ingestId(), f.message());
+            if (messages.size() < MAX_FAILURES) {
+                messages.add(f.message());
+            }
+        }
+        Status status = get(response.ingestId());
+        update(new Status(response.ingestId(), State.COMPLETED,
+                status != null ? status.actions : response.successSize() + response.getFailures().size(),
+                response.successSize(), response.getFailures().size(), messages, response.tookInMillis()));
+    }
+
+    @Override
+    public void onFailure(int concurrency, long ingestId, Throwable failure) {
+        logger.error("ingest [{}] error", ingestId, failure);
+        Status status = get(ingestId);
+        int actions = status != null ? status.actions : 0;
+        update(new Status(ingestId, State.FAILED, actions, 0, actions,
+                Collections.singletonList(String.valueOf(failure.getMessage())), -1L));
+    }
+
+    private int slot(long ingestId) {
+        return (int) (ingestId % statuses.length());
+    }
+
+    /**
+     * Put a status into its slot, unless the slot already holds the status of a later ingest request.
+     *
+     * @param status the status
+     */
+    private void update(Status status) {
+        int slot = slot(status.ingestId);
+        while (true) {
+            Status current = statuses.get(slot);
+            if (current != null && current.ingestId > status.ingestId) {
+                return;
+            }
+            if (statuses.compareAndSet(slot, current, status)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The state of an ingest request.
+     */
+    public enum State {
+        PENDING, COMPLETED, FAILED
+    }
+
+    /**
+     * The immutable status of an ingest request.
+     */
+    public static class Status {
+
+        private final long ingestId;
+
+        private final State state;
+
+        private final int actions;
+
+        private final int succeeded;
+
+        private final int failed;
+
+        private final List<String> failures;
+
+        private final long tookInMillis;
+
+        Status(long ingestId, State state, int actions, int succeeded, int failed, List<String> failures,
+               long tookInMillis) {
+            this.ingestId = ingestId;
+            this.state = state;
+            this.actions = actions;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.failures = failures;
+            this.tookInMillis = tookInMillis;
+        }
+
+        public long ingestId() {
+            return ingestId;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public int actions() {
+            return actions;
+        }
+
+        public int succeeded() {
+            return succeeded;
+        }
+
+        public int failed() {
+            return failed;
+        }
+
+        /**
+         * Returns the first failure messages.
+         *
+         * @return the failure messages, at most ten
+         */
+        public List<String> failures() {
+            return failures;
+        }
+
+        /**
+         * Returns the time of the ingest request.
+         *
+         * @return the time in milliseconds, or -1 if not completed
+         */
+        public long tookInMillis() {
+            return tookInMillis;
+        }
+    }
+}
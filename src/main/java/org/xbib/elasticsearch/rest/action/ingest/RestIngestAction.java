@@ -21,27 +21,35 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
-import org.xbib.elasticsearch.action.ingest.IngestActionFailure;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.helper.client.ByteBudget;
 import org.xbib.elasticsearch.helper.client.IngestProcessor;
+import org.xbib.elasticsearch.helper.client.ThresholdFlushPolicy;
 import org.xbib.elasticsearch.action.ingest.IngestRequest;
 import org.xbib.elasticsearch.action.ingest.IngestResponse;
 
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 import static org.elasticsearch.rest.RestRequest.Method.PUT;
 import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
+import static org.elasticsearch.rest.RestStatus.NOT_FOUND;
 import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.RestStatus.TOO_MANY_REQUESTS;
 
 /**
  * <pre>
@@ -51,6 +59,23 @@ import static org.elasticsearch.rest.RestStatus.OK;
  * { "create" : { "_index" : "test", "_type" : "type1", "_id" : "1" }
  * { "type1" : { "field1" : "value1" } }
  * </pre>
+ *
+ * With {@code action.ingest.segmentsize}, large bodies are parsed in segments of complete actions, and the
+ * ingest requests of a segment are sent before the next segment is parsed. The HTTP layer aggregates the chunks
+ * of a body before the handler is called, so the body itself is in memory. A segmented body may be accepted
+ * partially: if a segment fails, the segments before are already sent, and the error response lists the IDs
+ * of their ingest requests in {@code ids}, with {@code "partial" : true}.
+ *
+ * The actions buffered, queued and in flight are bounded by {@code action.ingest.maxbufferedvolume}, 10% of the
+ * heap by default. A body which does not fit is rejected by 429 Too Many Requests.
+ *
+ * With {@code action.ingest.admissiontimeout}, a body is accepted only if fewer than {@code action.ingest.maxqueued}
+ * ingest requests are queued and a slot for an ingest request is free within the admission timeout, otherwise
+ * it is rejected by 429 Too Many Requests with a Retry-After header, estimated by the rate of responses.
+ *
+ * The response is sent as soon as the body is accepted, with the IDs of the ingest requests sent or queued
+ * for the body. Actions which remain buffered are sent with a later ingest request. The status of an ingest
+ * request is available by {@code GET /_ingest/{id}} while it is held by the status table.
  */
 
 public class RestIngestAction extends BaseRestHandler {
@@ -64,9 +89,14 @@ public class RestIngestAction extends BaseRestHandler {
      * The IngestProcessor
      */
     private final IngestProcessor ingestProcessor;
+    /**
+     * The status of recent ingest requests
+     */
+    private final IngestStatusTable statusTable;
 
     @Inject
-    public RestIngestAction(Settings settings, RestController controller, Client client) {
+    public RestIngestAction(Settings settings, RestController controller, Client client,
+                            IngestParsingService parsingService) {
         super(settings, controller, client);
 
         controller.registerHandler(POST, "/_ingest", this);
@@ -75,6 +105,7 @@ public class RestIngestAction extends BaseRestHandler {
         controller.registerHandler(PUT, "/{index}/_ingest", this);
         controller.registerHandler(POST, "/{index}/{type}/_ingest", this);
         controller.registerHandler(PUT, "/{index}/{type}/_ingest", this);
+        controller.registerHandler(GET, "/_ingest/{id}", this);
 
         int actions = settings.getAsInt("action.ingest.maxactions", 1000);
         int concurrency = settings.getAsInt("action.ingest.maxconcurrency",
@@ -82,84 +113,175 @@ public class RestIngestAction extends BaseRestHandler {
         ByteSizeValue volume = settings.getAsBytesSize("action.ingest.maxvolume",
                 ByteSizeValue.parseBytesSizeValue("10m", "action.ingest.maxvolume"));
 
+        TimeValue maxAge = settings.getAsTime("action.ingest.maxage", null);
+        // oversized documents are sent alone
+        ByteSizeValue oversizedVolume = settings.getAsBytesSize("action.ingest.oversizedvolume", null);
+
+        // opt-in: reject bodies by 429 if too many requests are queued, or no request slot is free within a short time
+        TimeValue admissionTimeout = settings.getAsTime("action.ingest.admissiontimeout", null);
+        // the status of the most recent ingest requests, for GET /_ingest/{id}
+        this.statusTable = new IngestStatusTable(settings.getAsInt("action.ingest.statuses", 1024));
+        // never block the HTTP worker while all requests are in flight, queue instead
         this.ingestProcessor = new IngestProcessor(client)
-                .maxActions(actions)
+                .blocking(false)
+                .admissionTimeout(admissionTimeout)
+                .maxQueuedRequests(settings.getAsInt("action.ingest.maxqueued", -1))
+                .listener(statusTable)
                 .maxConcurrentRequests(concurrency)
-                .maxVolumePerRequest(volume);
+                .flushPolicy(new ThresholdFlushPolicy(actions, volume, maxAge, oversizedVolume));
+        // the queue of the non-blocking processor is bounded by a byte budget, 10% of the heap by default,
+        // and bodies are rejected by 429 if the budget is exhausted, 0 turns the budget off
+        ByteSizeValue bufferedVolume = settings.getAsMemory("action.ingest.maxbufferedvolume", "10%");
+        if (bufferedVolume.bytes() > 0L) {
+            TimeValue bufferedVolumeWait = settings.getAsTime("action.ingest.maxbufferedvolumewait",
+                    TimeValue.timeValueMillis(0));
+            ingestProcessor.byteBudget(new ByteBudget(bufferedVolume, bufferedVolumeWait, null));
+        }
+        // opt-in: parse and send large bodies in segments, so their parsed actions do not exist all at once
+        ingestProcessor.segmentSize(settings.getAsBytesSize("action.ingest.segmentsize", null));
+        // parse large bodies in parallel chunks, the pool is owned by the node and shut down on close
+        if (parsingService.pool() != null) {
+            ingestProcessor.parallelParsing(parsingService.pool(), parsingService.chunkSize());
+        }
     }
 
     @Override
     public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
-        final IngestIdHolder idHolder = new IngestIdHolder();
-        final CountDownLatch latch = new CountDownLatch(1);
+        if (request.method() == GET) {
+            handleStatusRequest(request, channel);
+            return;
+        }
+        final List<Long> ingestIds = new ArrayList<>();
         IngestProcessor.IngestListener ingestListener = new IngestProcessor.IngestListener() {
             @Override
             public void onRequest(int concurrency, IngestRequest ingestRequest) {
-                long v = volumeCounter.addAndGet(ingestRequest.estimatedSizeInBytes());
-                if (logger.isDebugEnabled()) {
-                    logger.debug("ingest request [{}] of {} items, {} bytes, {} concurrent requests",
-                            ingestRequest.ingestId(), ingestRequest.numberOfActions(), v, concurrency);
+                synchronized (ingestIds) {
+                    ingestIds.add(ingestRequest.ingestId());
                 }
-                idHolder.ingestId(ingestRequest.ingestId());
-                latch.countDown();
+                statusTable.onRequest(concurrency, ingestRequest);
             }
 
             @Override
             public void onResponse(int concurrency, IngestResponse response) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("ingest response [{}] [{} succeeded] [{} failed] [{}ms]",
-                            response.ingestId(),
-                            response.successSize(),
-                            response.getFailures().size(),
-                            response.tookInMillis());
-                }
-                if (!response.getFailures().isEmpty()) {
-                    for (IngestActionFailure f : response.getFailures()) {
-                        logger.error("ingest [{}] failure, reason: {}", response.ingestId(), f.message());
-                    }
-                }
+                statusTable.onResponse(concurrency, response);
             }
 
             @Override
             public void onFailure(int concurrency, long ingestId, Throwable failure) {
-                logger.error("ingest [{}] error", ingestId, failure);
+                statusTable.onFailure(concurrency, ingestId, failure);
             }
         };
         try {
             long t0 = System.currentTimeMillis();
+            // the ingest requests of the body are queued before add returns, so their IDs are known
             ingestProcessor.add(request.content(), request.param("index"), request.param("type"), ingestListener);
-            // estimation, should be enough time to wait for an ID
-            boolean b = latch.await(100, TimeUnit.MILLISECONDS);
             long t1 = System.currentTimeMillis();
             XContentBuilder builder = jsonBuilder();
             builder.startObject();
             builder.field("took", t1 - t0);
-            // got ID?
-            if (b) {
-                builder.field("id", idHolder.ingestId());
+            synchronized (ingestIds) {
+                if (!ingestIds.isEmpty()) {
+                    builder.field("id", ingestIds.get(ingestIds.size() - 1));
+                    builder.field("ids", ingestIds);
+                }
             }
             builder.endObject();
             channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (EsRejectedExecutionException e) {
+            sendRejection(channel, e, ingestIds);
         } catch (Exception e) {
-            try {
+            sendError(channel, BAD_REQUEST, e, ingestIds);
+        }
+    }
+
+    /**
+     * Shed load by 429 Too Many Requests, with a hint when to retry, estimated by the current rate of responses.
+     *
+     * @param channel   the channel
+     * @param e         the rejection
+     * @param ingestIds the IDs of the ingest requests already sent for the body
+     */
+    private void sendRejection(RestChannel channel, EsRejectedExecutionException e, List<Long> ingestIds) {
+        try {
+            long retryAfter = ingestProcessor.retryAfter().seconds();
+            XContentBuilder builder = jsonBuilder();
+            builder.startObject()
+                    .field("error", e.getMessage())
+                    .field("retry_after", retryAfter)
+                    .field("rejected", ingestProcessor.rejections().getCount());
+            partial(builder, ingestIds);
+            builder.endObject();
+            BytesRestResponse response = new BytesRestResponse(TOO_MANY_REQUESTS, builder);
+            response.addHeader("Retry-After", Long.toString(retryAfter));
+            channel.sendResponse(response);
+        } catch (IOException e1) {
+            logger.error("Failed to send failure response", e1);
+        }
+    }
+
+    private void handleStatusRequest(RestRequest request, RestChannel channel) {
+        try {
+            long ingestId = Long.parseLong(request.param("id"));
+            IngestStatusTable.Status status = statusTable.get(ingestId);
+            if (status == null) {
                 XContentBuilder builder = jsonBuilder();
-                builder.startObject().field("error", e.getMessage()).endObject();
-                channel.sendResponse(new BytesRestResponse(BAD_REQUEST, builder));
-            } catch (IOException e1) {
-                logger.error("Failed to send failure response", e1);
+                builder.startObject().field("id", ingestId).field("found", false).endObject();
+                channel.sendResponse(new BytesRestResponse(NOT_FOUND, builder));
+                return;
             }
+            XContentBuilder builder = jsonBuilder();
+            builder.startObject()
+                    .field("id", status.ingestId())
+                    .field("found", true)
+                    .field("status", status.state().name().toLowerCase(Locale.ROOT))
+                    .field("actions", status.actions())
+                    .field("succeeded", status.succeeded())
+                    .field("failed", status.failed());
+            if (status.tookInMillis() >= 0L) {
+                builder.field("took", status.tookInMillis());
+            }
+            if (!status.failures().isEmpty()) {
+                builder.field("failures", status.failures());
+            }
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (Exception e) {
+            sendError(channel, BAD_REQUEST, e);
         }
     }
 
-    static final class IngestIdHolder {
-        private long ingestId;
+    private void sendError(RestChannel channel, RestStatus status, Exception e) {
+        sendError(channel, status, e, null);
+    }
 
-        public void ingestId(long ingestId) {
-            this.ingestId = ingestId;
+    private void sendError(RestChannel channel, RestStatus status, Exception e, List<Long> ingestIds) {
+        try {
+            XContentBuilder builder = jsonBuilder();
+            builder.startObject().field("error", e.getMessage());
+            partial(builder, ingestIds);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(status, builder));
+        } catch (IOException e1) {
+            logger.error("Failed to send failure response", e1);
         }
+    }
 
-        public long ingestId() {
-            return ingestId;
+    /**
+     * Add the IDs of the ingest requests sent for a partially accepted body to an error response.
+     *
+     * @param builder   the builder
+     * @param ingestIds the IDs of the ingest requests, or null
+     * @throws IOException if the IDs can not be added
+     */
+    private static void partial(XContentBuilder builder, List<Long> ingestIds) throws IOException {
+        if (ingestIds == null) {
+            return;
+        }
+        synchronized (ingestIds) {
+            if (!ingestIds.isEmpty()) {
+                builder.field("partial", true);
+                builder.field("ids", ingestIds);
+            }
         }
     }
 
@@ -0,0 +1,34 @@
+package org.xbib.metrics;
+
+/**
+ * A gauge whose value is set explicitly by the instrumented code, for example a limit which is
+ * adjusted at runtime.
+ *
+ * @param <T> the type of the metric's value
+ */
+public class SettableGauge<T> implements Gauge<T> {
+
+    private volatile T value;
+
+    public SettableGauge() {
+        this(null);
+    }
+
+    public SettableGauge(T value) {
+        this.value = value;
+    }
+
+    /**
+     * Sets the metric's current value.
+     *
+     * @param value the new value
+     */
+    public void setValue(T value) {
+        this.value = value;
+    }
+
+    @Override
+    public T getValue() {
+        return value;
+    }
+}